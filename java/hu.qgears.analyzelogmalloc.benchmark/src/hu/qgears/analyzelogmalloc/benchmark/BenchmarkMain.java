@@ -0,0 +1,21 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with the JMH command line options and the GC profiler enabled so the
+ * results contain the bytes allocated per operation (gc.alloc.rate.norm) beside the score.
+ */
+public class BenchmarkMain {
+	public static void main(String[] args) throws Exception {
+		Options options=new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,126 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import hu.qgears.analyzelogmalloc.Entry;
+import hu.qgears.analyzelogmalloc.LogGenerator;
+import hu.qgears.analyzelogmalloc.LogParser;
+import hu.qgears.analyzelogmalloc.StackDictionary;
+
+/**
+ * Benchmark fixtures built from {@link SyntheticLog} streams.
+ */
+public class Fixtures {
+	/**
+	 * Output that only counts the written bytes so writing it can not be optimized away.
+	 */
+	public static class CountingOutputStream extends OutputStream
+	{
+		private long count;
+		@Override
+		public void write(int b) {
+			count++;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count+=len;
+		}
+		public long getCount() {
+			return count;
+		}
+	}
+	/**
+	 * Generate a stream and parse it into entries. The stream is parsed while it is generated so it is never
+	 * stored as a whole in memory.
+	 * @param seed
+	 * @param records number of records of the stream
+	 * @param depth number of frames of each stack trace
+	 * @param sites number of distinct allocating call sites
+	 * @param mix
+	 * @param stacks dictionary that stores the stack traces of the entries
+	 * @return entries in stream order with their sequence numbers set
+	 */
+	public static Entry[] entries(int seed, int records, int depth, int sites, SyntheticLog.Mix mix, StackDictionary stacks)
+	{
+		final List<Entry> ret=new ArrayList<Entry>(records+1);
+		final LogParser parser=new LogParser(stacks, e->{
+			e.setSeq(ret.size()+1);
+			e.setReceiveNanos(System.nanoTime());
+			ret.add(e);
+		});
+		final ByteBuffer buf=ByteBuffer.allocate(64*1024);
+		OutputStream out=new OutputStream() {
+			@Override
+			public void write(int b) {
+				write(new byte[]{(byte)b}, 0, 1);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) {
+				while(len>0)
+				{
+					int n=Math.min(len, buf.remaining());
+					buf.put(b, off, n);
+					off+=n;
+					len-=n;
+					if(!buf.hasRemaining())
+					{
+						buf.flip();
+						parser.parse(buf);
+						buf.compact();
+					}
+				}
+			}
+		};
+		try
+		{
+			LogGenerator log=SyntheticLog.create(seed, depth, sites, mix);
+			log.writeHeader(out);
+			for(int i=0;i<records;++i)
+			{
+				log.writeRecord(out);
+			}
+		}catch(IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+		buf.flip();
+		parser.parse(buf);
+		parser.finish(buf);
+		return ret.toArray(new Entry[ret.size()]);
+	}
+	/**
+	 * Split a stream into records: the lines of each record are the header line and the stack trace lines
+	 * (without the closing "-" line). Lines before the first record are dropped.
+	 * @param log
+	 * @return
+	 */
+	public static String[][] records(byte[] log)
+	{
+		List<String[]> ret=new ArrayList<String[]>();
+		List<String> current=null;
+		for(String line: new String(log, StandardCharsets.US_ASCII).split("\n"))
+		{
+			if(line.startsWith("+"))
+			{
+				current=new ArrayList<String>(Arrays.asList(line));
+			}else if(line.startsWith("-"))
+			{
+				if(current!=null)
+				{
+					ret.add(current.toArray(new String[current.size()]));
+				}
+				current=null;
+			}else if(current!=null)
+			{
+				current.add(line);
+			}
+		}
+		return ret.toArray(new String[ret.size()][]);
+	}
+}
@@ -0,0 +1,79 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hu.qgears.analyzelogmalloc.Entry;
+import hu.qgears.analyzelogmalloc.LogParser;
+import hu.qgears.analyzelogmalloc.StackDictionary;
+
+/**
+ * Parsing of records: through the String based {@link Entry#setStartLine(String)}/{@link Entry#addLine(String)} API
+ * and through the byte based {@link LogParser}. Score is records/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ParseBenchmark {
+	private static final int RECORDS=10000;
+	@Param({"4", "16", "48"})
+	public int depth;
+	private byte[] log;
+	private String[][] records;
+	private int next;
+	private StackDictionary stacks;
+	private LogParser parser;
+	private long sum;
+	@Setup
+	public void setup()
+	{
+		log=SyntheticLog.generate(1, RECORDS, depth, 1000, SyntheticLog.Mix.steady);
+		records=Fixtures.records(log);
+		stacks=new StackDictionary();
+		parser=new LogParser(stacks, e->sum+=e.getStackId());
+	}
+	/**
+	 * A single record per operation parsed from its lines.
+	 */
+	@Benchmark
+	public int setStartLineAddLine()
+	{
+		String[] r=records[next];
+		next=(next+1)%records.length;
+		Entry e=new Entry(stacks);
+		e.setStartLine(r[0]);
+		for(int i=1;i<r.length;++i)
+		{
+			e.addLine(r[i]);
+		}
+		return e.getStackId();
+	}
+	/**
+	 * The whole stream parsed from its bytes.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long logParser()
+	{
+		ByteBuffer buf=ByteBuffer.wrap(log);
+		parser.parse(buf);
+		parser.finish(buf);
+		return sum;
+	}
+}
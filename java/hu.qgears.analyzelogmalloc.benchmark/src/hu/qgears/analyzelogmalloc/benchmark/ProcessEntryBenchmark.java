@@ -0,0 +1,60 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hu.qgears.analyzelogmalloc.Entry;
+import hu.qgears.analyzelogmalloc.EntryProcessor;
+import hu.qgears.analyzelogmalloc.StackDictionary;
+
+/**
+ * Accounting of parsed records by {@link EntryProcessor#processEntry(Entry)}: one record per operation so the
+ * score is records/s and the normalized allocation rate of the GC profiler is bytes allocated per record.
+ * When all records were processed the processor is replaced by a new one and the stream is processed again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ProcessEntryBenchmark {
+	@Param({"10000", "1000000"})
+	public int records;
+	@Param({"8", "32"})
+	public int depth;
+	@Param({"grow", "steady", "churn"})
+	public String mix;
+	private StackDictionary stacks;
+	private Entry[] entries;
+	private EntryProcessor processor;
+	private int next;
+	@Setup
+	public void setup()
+	{
+		stacks=new StackDictionary();
+		entries=Fixtures.entries(1, records, depth, 1000, SyntheticLog.Mix.valueOf(mix), stacks);
+		processor=new EntryProcessor(stacks);
+	}
+	@Benchmark
+	public void processEntry()
+	{
+		processor.processEntry(entries[next++]);
+		if(next==entries.length)
+		{
+			next=0;
+			processor=new EntryProcessor(stacks);
+		}
+	}
+}
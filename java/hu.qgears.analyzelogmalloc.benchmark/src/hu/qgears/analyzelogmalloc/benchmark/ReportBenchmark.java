@@ -0,0 +1,83 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import hu.qgears.analyzelogmalloc.Analyze;
+import hu.qgears.analyzelogmalloc.Entry;
+import hu.qgears.analyzelogmalloc.EntryProcessor;
+import hu.qgears.analyzelogmalloc.StackDictionary;
+
+/**
+ * Reports of a processor that holds the live set of a growing stream: print, snapshot and compare to the state
+ * after the first half of the stream. Score is the time of a whole report.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class ReportBenchmark {
+	@Param({"10000", "100000"})
+	public int records;
+	@Param({"16"})
+	public int depth;
+	private EntryProcessor prev;
+	private EntryProcessor current;
+	private Analyze.Args args;
+	private Fixtures.CountingOutputStream sink;
+	private PrintStream out;
+	@Setup
+	public void setup()
+	{
+		StackDictionary stacks=new StackDictionary();
+		Entry[] entries=Fixtures.entries(1, records, depth, 1000, SyntheticLog.Mix.grow, stacks);
+		prev=new EntryProcessor(stacks);
+		current=new EntryProcessor(stacks);
+		for(int i=0;i<entries.length;++i)
+		{
+			if(i<entries.length/2)
+			{
+				prev.processEntry(entries[i]);
+			}
+			current.processEntry(entries[i]);
+		}
+		args=new Analyze.Args();
+		sink=new Fixtures.CountingOutputStream();
+		out=new PrintStream(sink);
+	}
+	@Benchmark
+	public long processOutput()
+	{
+		current.processOutput(out);
+		out.flush();
+		return sink.getCount();
+	}
+	@Benchmark
+	public long snapshot()
+	{
+		current.snapshot(out);
+		out.flush();
+		return sink.getCount();
+	}
+	@Benchmark
+	public long processCompare()
+	{
+		current.processCompare(out, prev, args);
+		out.flush();
+		return sink.getCount();
+	}
+}
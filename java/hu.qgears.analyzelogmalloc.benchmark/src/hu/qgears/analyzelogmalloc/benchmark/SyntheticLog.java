@@ -0,0 +1,79 @@
+package hu.qgears.analyzelogmalloc.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import hu.qgears.analyzelogmalloc.LogGenerator;
+
+/**
+ * Reproducible {@link LogGenerator} streams of the benchmarks. The same parameters always produce the same bytes.
+ * The streams have a single process, no leaks and no reallocs so the alloc/free mix is fully controlled by {@link Mix}.
+ */
+public class SyntheticLog {
+	public static final long PID=LogGenerator.PID;
+	/**
+	 * Alloc/free mix of the stream.
+	 */
+	public enum Mix
+	{
+		/** Live set grows: 30% of the records are frees of random live blocks. */
+		grow(30, 0),
+		/** Live set is stable: 50% of the records are frees of random live blocks. */
+		steady(50, 0),
+		/** Live set is stable and most blocks are freed right after allocation (short lived blocks). */
+		churn(50, 90);
+		final int freePercent;
+		final int lifoPercent;
+		private Mix(int freePercent, int lifoPercent) {
+			this.freePercent=freePercent;
+			this.lifoPercent=lifoPercent;
+		}
+	}
+	/**
+	 * @param seed
+	 * @param depth number of frames of each stack trace
+	 * @param sites number of distinct allocating call sites
+	 * @param mix
+	 * @return generator of the stream
+	 */
+	public static LogGenerator create(int seed, int depth, int sites, Mix mix)
+	{
+		LogGenerator.Args args=new LogGenerator.Args();
+		args.seed=seed;
+		args.depth=depth;
+		args.sites=sites;
+		args.freePercent=mix.freePercent;
+		args.lifoPercent=mix.lifoPercent;
+		args.leakPercent=0;
+		args.reallocPercent=0;
+		args.pids=1;
+		return new LogGenerator(args);
+	}
+	/**
+	 * Generate a whole stream into memory.
+	 * @param seed
+	 * @param records number of records after the header
+	 * @param depth number of frames of each stack trace
+	 * @param sites number of distinct allocating call sites
+	 * @param mix
+	 * @return
+	 */
+	public static byte[] generate(int seed, int records, int depth, int sites, Mix mix)
+	{
+		try
+		{
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			LogGenerator log=create(seed, depth, sites, mix);
+			log.writeHeader(bos);
+			for(int i=0;i<records;++i)
+			{
+				log.writeRecord(bos);
+			}
+			return bos.toByteArray();
+		}catch(IOException e)
+		{
+			// ByteArrayOutputStream does not throw
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package hu.qgears.analyzelogmalloc;
+
+/**
+ * Compact map from block address to block size. Used to track the blocks allocated while the analyser is off:
+ * 16 bytes per cell and no object per block.
+ *
+ * Open addressing hash map (linear probing, backward shift deletion) like the index of {@link AllocationTable}.
+ * Address 0 is used as the empty cell marker so it can not be stored (free(NULL) does not release a block).
+ */
+public class AddressMap {
+	private long[] keys=new long[1024];
+	private long[] values=new long[1024];
+	private int mask=1023;
+	private int n;
+	/**
+	 * Store the size of the block. The previous size on the same address is overwritten.
+	 * @param addr not 0
+	 * @param size
+	 * @return true if the address was not in the map
+	 */
+	public boolean put(long addr, long size)
+	{
+		if(addr==0)
+		{
+			return false;
+		}
+		if((n+1)*2>keys.length)
+		{
+			rehash(keys.length*2);
+		}
+		int i=AllocationTable.hash(addr)&mask;
+		while(keys[i]!=0)
+		{
+			if(keys[i]==addr)
+			{
+				values[i]=size;
+				return false;
+			}
+			i=(i+1)&mask;
+		}
+		keys[i]=addr;
+		values[i]=size;
+		n++;
+		return true;
+	}
+	/**
+	 * Remove the block from the map.
+	 * @param addr
+	 * @return the size of the removed block or -1 if there was no block on the address
+	 */
+	public long remove(long addr)
+	{
+		if(addr==0)
+		{
+			return -1;
+		}
+		int i=AllocationTable.hash(addr)&mask;
+		while(keys[i]!=0)
+		{
+			if(keys[i]==addr)
+			{
+				long ret=values[i];
+				delete(i);
+				n--;
+				return ret;
+			}
+			i=(i+1)&mask;
+		}
+		return -1;
+	}
+	/**
+	 * @return a copy of the map
+	 */
+	public AddressMap copy()
+	{
+		AddressMap ret=new AddressMap();
+		ret.keys=keys.clone();
+		ret.values=values.clone();
+		ret.mask=mask;
+		ret.n=n;
+		return ret;
+	}
+	/**
+	 * @return the addresses and sizes of the stored blocks: address and size of each block are stored
+	 * at index 2*i and 2*i+1
+	 */
+	public long[] toArray()
+	{
+		long[] ret=new long[n*2];
+		int j=0;
+		for(int i=0;i<keys.length;++i)
+		{
+			if(keys[i]!=0)
+			{
+				ret[j++]=keys[i];
+				ret[j++]=values[i];
+			}
+		}
+		return ret;
+	}
+	/**
+	 * @return number of blocks stored
+	 */
+	public int size()
+	{
+		return n;
+	}
+	/**
+	 * Backward shift deletion, see {@link AllocationTable}.
+	 */
+	private void delete(int hole)
+	{
+		int i=hole;
+		while(true)
+		{
+			i=(i+1)&mask;
+			if(keys[i]==0)
+			{
+				break;
+			}
+			int home=AllocationTable.hash(keys[i])&mask;
+			if(((i-home)&mask)>=((i-hole)&mask))
+			{
+				keys[hole]=keys[i];
+				values[hole]=values[i];
+				hole=i;
+			}
+		}
+		keys[hole]=0;
+	}
+	private void rehash(int capacity)
+	{
+		long[] oldKeys=keys;
+		long[] oldValues=values;
+		keys=new long[capacity];
+		values=new long[capacity];
+		mask=capacity-1;
+		for(int j=0;j<oldKeys.length;++j)
+		{
+			if(oldKeys[j]!=0)
+			{
+				int i=AllocationTable.hash(oldKeys[j])&mask;
+				while(keys[i]!=0)
+				{
+					i=(i+1)&mask;
+				}
+				keys[i]=oldKeys[j];
+				values[i]=oldValues[j];
+			}
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Table of memory blocks keyed by their address.
+ *
+ * Data of the blocks are stored in columns (struct of arrays) of primitive types so no object is created
+ * per block. Each block is stored in a slot: slot indexes are stable while the block is in the table
+ * and slots of removed blocks are reused.
+ *
+ * Addresses are mapped to slots by an open addressing hash index (linear probing, backward shift deletion).
+ *
+ * Columns are split into fixed size pages so growing the table does not copy the existing data.
+ *
+ * {@link #freeze()} creates a read only point in time view of the table that shares the pages with the table.
+ * Pages are copied on the next write (copy on write) so the view stays consistent while the table is modified.
+ */
+public class AllocationTable {
+	private static final int PAGE_BITS=12;
+	private static final int PAGE_SIZE=1<<PAGE_BITS;
+	private static final int PAGE_MASK=PAGE_SIZE-1;
+	/**
+	 * Hash index: address of the block in the slot.
+	 */
+	private long[] indexKeys;
+	/**
+	 * Hash index: slot+1 of the block. 0 means empty hash cell.
+	 */
+	private int[] indexSlots;
+	private int indexMask;
+	private long[][] address=new long[0][];
+	private long[][] size=new long[0][];
+	private int[][] pid=new int[0][];
+	private int[][] tid=new int[0][];
+	private int[][] stack=new int[0][];
+	/**
+	 * Sequence number and receive time (nanos) of the allocation entry. See {@link Entry#getSeq()}.
+	 */
+	private long[][] seq=new long[0][];
+	private long[][] received=new long[0][];
+	/**
+	 * Index of the title of the entry in {@link #titles} +1. Negated when the block is removed from the slot
+	 * so the data of a removed block stays readable. 0 means that the slot was never used.
+	 */
+	private byte[][] method=new byte[0][];
+	/**
+	 * Pages that are shared with a frozen view and must be copied before they are written.
+	 */
+	private boolean[] shared=new boolean[0];
+	/**
+	 * Number of pages copied because they were shared with a frozen view.
+	 */
+	private long copiedPages;
+	/**
+	 * This table is a read only view created by {@link #freeze()}.
+	 */
+	private final boolean frozen;
+	/**
+	 * Titles of entries (eg. "malloc") stored in this table. Stored once and referenced by index from the slots.
+	 */
+	private List<String> titles=new ArrayList<String>();
+	/**
+	 * Number of slots ever used (including currently free slots).
+	 */
+	private int slotLimit;
+	/**
+	 * Stack of slot indexes that are free to reuse.
+	 */
+	private int[] freeSlots=new int[16];
+	private int nFree;
+	private int n;
+	public AllocationTable() {
+		indexKeys=new long[1024];
+		indexSlots=new int[1024];
+		indexMask=1023;
+		frozen=false;
+	}
+	/**
+	 * Create a read only view of the table. The view has no address index.
+	 */
+	private AllocationTable(AllocationTable o) {
+		address=o.address.clone();
+		size=o.size.clone();
+		pid=o.pid.clone();
+		tid=o.tid.clone();
+		stack=o.stack.clone();
+		seq=o.seq.clone();
+		received=o.received.clone();
+		method=o.method.clone();
+		titles=new ArrayList<String>(o.titles);
+		slotLimit=o.slotLimit;
+		n=o.n;
+		frozen=true;
+	}
+	/**
+	 * Create a read only view of the current state of this table. The cost is proportional to the number of
+	 * pages and not to the number of blocks: data is shared and pages are copied when this table writes them next time.
+	 * The view supports iteration of the slots but not {@link #find(long)}.
+	 * @return
+	 */
+	public AllocationTable freeze()
+	{
+		checkWritable();
+		AllocationTable ret=new AllocationTable(this);
+		Arrays.fill(shared, true);
+		return ret;
+	}
+	/**
+	 * @return the number of pages copied because they were shared with a frozen view
+	 */
+	public long getCopiedPages() {
+		return copiedPages;
+	}
+	private void checkWritable() {
+		if(frozen)
+		{
+			throw new IllegalStateException("Frozen allocation table is read only");
+		}
+	}
+	/**
+	 * Prepare the page for writing: copy it if it is shared with a frozen view.
+	 */
+	private void writable(int p)
+	{
+		if(shared[p])
+		{
+			address[p]=address[p].clone();
+			size[p]=size[p].clone();
+			pid[p]=pid[p].clone();
+			tid[p]=tid[p].clone();
+			stack[p]=stack[p].clone();
+			seq[p]=seq[p].clone();
+			received[p]=received[p].clone();
+			method[p]=method[p].clone();
+			shared[p]=false;
+			copiedPages++;
+		}
+	}
+	/**
+	 * @return the number of blocks stored in the table.
+	 */
+	public int size()
+	{
+		return n;
+	}
+	/**
+	 * Find the slot of the block.
+	 * @param addr
+	 * @return slot of the block or -1 if there is no block on this address
+	 */
+	public int find(long addr)
+	{
+		checkWritable();
+		int i=hash(addr)&indexMask;
+		int s;
+		while((s=indexSlots[i])!=0)
+		{
+			if(indexKeys[i]==addr)
+			{
+				return s-1;
+			}
+			i=(i+1)&indexMask;
+		}
+		return -1;
+	}
+	/**
+	 * Store a new block in the table. The address must not be present in the table.
+	 * @return the slot of the new block.
+	 */
+	public int add(long addr, long size, String title, long pid, long tid, int stack)
+	{
+		if((n+1)*2>indexKeys.length)
+		{
+			rehash(indexKeys.length*2);
+		}
+		int slot=allocateSlot();
+		writable(slot>>>PAGE_BITS);
+		int i=hash(addr)&indexMask;
+		while(indexSlots[i]!=0)
+		{
+			i=(i+1)&indexMask;
+		}
+		indexKeys[i]=addr;
+		indexSlots[i]=slot+1;
+		n++;
+		address[slot>>>PAGE_BITS][slot&PAGE_MASK]=addr;
+		set(slot, size, title, pid, tid, stack);
+		return slot;
+	}
+	/**
+	 * Overwrite all data of the block stored in the slot except its address.
+	 */
+	public void set(int slot, long size, String title, long pid, long tid, int stack)
+	{
+		checkWritable();
+		int p=slot>>>PAGE_BITS;
+		int o=slot&PAGE_MASK;
+		writable(p);
+		this.size[p][o]=size;
+		this.method[p][o]=(byte)(getTitleIndex(title)+1);
+		this.pid[p][o]=(int)pid;
+		this.tid[p][o]=(int)tid;
+		this.stack[p][o]=stack;
+		this.seq[p][o]=0;
+		this.received[p][o]=0;
+	}
+	/**
+	 * Store the sequence number and the receive time of the allocation entry of the block.
+	 * Must be called after {@link #add(long, long, String, long, long, int)} or {@link #set(int, long, String, long, long, int)}.
+	 */
+	public void setReceived(int slot, long seq, long receiveNanos)
+	{
+		checkWritable();
+		int p=slot>>>PAGE_BITS;
+		int o=slot&PAGE_MASK;
+		writable(p);
+		this.seq[p][o]=seq;
+		this.received[p][o]=receiveNanos;
+	}
+	/**
+	 * Remove the block from the table.
+	 * Data of the removed block can still be queried through the returned slot until the next {@link #add(long, long, String, long, long, int)} call.
+	 * @param addr
+	 * @return the slot of the removed block or -1 if there was no block on the address
+	 */
+	public int remove(long addr)
+	{
+		checkWritable();
+		int i=hash(addr)&indexMask;
+		int s;
+		while((s=indexSlots[i])!=0)
+		{
+			if(indexKeys[i]==addr)
+			{
+				deleteIndexCell(i);
+				int slot=s-1;
+				writable(slot>>>PAGE_BITS);
+				byte[] m=method[slot>>>PAGE_BITS];
+				m[slot&PAGE_MASK]=(byte)-m[slot&PAGE_MASK];
+				if(nFree==freeSlots.length)
+				{
+					freeSlots=Arrays.copyOf(freeSlots, nFree*2);
+				}
+				freeSlots[nFree++]=slot;
+				n--;
+				return slot;
+			}
+			i=(i+1)&indexMask;
+		}
+		return -1;
+	}
+	/**
+	 * Backward shift deletion: move following cells of the probe sequence into the hole
+	 * so no tombstone is necessary.
+	 */
+	private void deleteIndexCell(int hole)
+	{
+		int i=hole;
+		while(true)
+		{
+			i=(i+1)&indexMask;
+			if(indexSlots[i]==0)
+			{
+				break;
+			}
+			int home=hash(indexKeys[i])&indexMask;
+			// Move cell i into the hole if its home is not cyclically within (hole, i]
+			if(((i-home)&indexMask)>=((i-hole)&indexMask))
+			{
+				indexKeys[hole]=indexKeys[i];
+				indexSlots[hole]=indexSlots[i];
+				hole=i;
+			}
+		}
+		indexSlots[hole]=0;
+	}
+	private int allocateSlot() {
+		if(nFree>0)
+		{
+			return freeSlots[--nFree];
+		}
+		int slot=slotLimit++;
+		int p=slot>>>PAGE_BITS;
+		if(p==address.length)
+		{
+			address=Arrays.copyOf(address, p+1);
+			size=Arrays.copyOf(size, p+1);
+			pid=Arrays.copyOf(pid, p+1);
+			tid=Arrays.copyOf(tid, p+1);
+			stack=Arrays.copyOf(stack, p+1);
+			seq=Arrays.copyOf(seq, p+1);
+			received=Arrays.copyOf(received, p+1);
+			method=Arrays.copyOf(method, p+1);
+			shared=Arrays.copyOf(shared, p+1);
+			address[p]=new long[PAGE_SIZE];
+			size[p]=new long[PAGE_SIZE];
+			pid[p]=new int[PAGE_SIZE];
+			tid[p]=new int[PAGE_SIZE];
+			stack[p]=new int[PAGE_SIZE];
+			seq[p]=new long[PAGE_SIZE];
+			received[p]=new long[PAGE_SIZE];
+			method[p]=new byte[PAGE_SIZE];
+		}
+		return slot;
+	}
+	private void rehash(int capacity) {
+		long[] oldKeys=indexKeys;
+		int[] oldSlots=indexSlots;
+		indexKeys=new long[capacity];
+		indexSlots=new int[capacity];
+		indexMask=capacity-1;
+		for(int j=0;j<oldSlots.length;++j)
+		{
+			if(oldSlots[j]!=0)
+			{
+				int i=hash(oldKeys[j])&indexMask;
+				while(indexSlots[i]!=0)
+				{
+					i=(i+1)&indexMask;
+				}
+				indexKeys[i]=oldKeys[j];
+				indexSlots[i]=oldSlots[j];
+			}
+		}
+	}
+	private int getTitleIndex(String title) {
+		for(int i=0;i<titles.size();++i)
+		{
+			String t=titles.get(i);
+			if(t==title || t.equals(title))
+			{
+				return i;
+			}
+		}
+		titles.add(title);
+		return titles.size()-1;
+	}
+	/**
+	 * Allocated addresses are aligned so low bits are mostly zero - mix all bits into the hash.
+	 */
+	static int hash(long addr)
+	{
+		long h=addr*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32));
+	}
+	/**
+	 * @return upper limit (exclusive) of the slot indexes that may hold a block.
+	 */
+	public int getSlotLimit() {
+		return slotLimit;
+	}
+	public boolean isUsed(int slot) {
+		return method[slot>>>PAGE_BITS][slot&PAGE_MASK]>0;
+	}
+	public long getAddress(int slot) {
+		return address[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public long getSize(int slot) {
+		return size[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public long getPid(int slot) {
+		return pid[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public long getTid(int slot) {
+		return tid[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public int getStack(int slot) {
+		return stack[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public long getSeq(int slot) {
+		return seq[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public long getReceiveNanos(int slot) {
+		return received[slot>>>PAGE_BITS][slot&PAGE_MASK];
+	}
+	public String getTitle(int slot) {
+		return titles.get(Math.abs(method[slot>>>PAGE_BITS][slot&PAGE_MASK])-1);
+	}
+	/**
+	 * Create an entry object that represents the block stored in the slot.
+	 * @param slot
+	 * @param stacks the dictionary that resolves the stack id of the block
+	 * @return
+	 */
+	public Entry toEntry(int slot, StackDictionary stacks)
+	{
+		Entry e=new Entry(stacks);
+		e.setTitle(getTitle(slot));
+		e.setFields(getSize(slot), getAddress(slot), getPid(slot), getTid(slot));
+		e.setStack(getStack(slot));
+		return e;
+	}
+	/**
+	 * Collect the slots of all blocks ordered by address. The order is not maintained by the table
+	 * but created when this method is called.
+	 * @return slots of all blocks ordered by address
+	 */
+	public int[] getSlotsOrderedByAddress()
+	{
+		long[] keys=new long[n];
+		int[] slots=new int[n];
+		int j=0;
+		for(int i=0;i<slotLimit;++i)
+		{
+			if(isUsed(i))
+			{
+				keys[j]=getAddress(i);
+				slots[j]=i;
+				j++;
+			}
+		}
+		sort(keys, slots, 0, n-1);
+		return slots;
+	}
+	/**
+	 * Quicksort keys and move values parallel with them.
+	 * @param from first index (inclusive)
+	 * @param to last index (inclusive)
+	 */
+	private static void sort(long[] keys, int[] values, int from, int to)
+	{
+		while(to-from>16)
+		{
+			long pivot=keys[(from+to)>>>1];
+			int i=from;
+			int j=to;
+			while(i<=j)
+			{
+				while(keys[i]<pivot) i++;
+				while(keys[j]>pivot) j--;
+				if(i<=j)
+				{
+					swap(keys, values, i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller part to limit stack depth
+			if(j-from<to-i)
+			{
+				sort(keys, values, from, j);
+				from=i;
+			}else
+			{
+				sort(keys, values, i, to);
+				to=j;
+			}
+		}
+		for(int i=from+1;i<=to;++i)
+		{
+			for(int j=i;j>from && keys[j-1]>keys[j];--j)
+			{
+				swap(keys, values, j, j-1);
+			}
+		}
+	}
+	private static void swap(long[] keys, int[] values, int i, int j)
+	{
+		long k=keys[i];
+		keys[i]=keys[j];
+		keys[j]=k;
+		int v=values[i];
+		values[i]=values[j];
+		values[j]=v;
+	}
+}
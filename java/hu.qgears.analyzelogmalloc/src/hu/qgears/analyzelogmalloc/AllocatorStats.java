@@ -0,0 +1,357 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Counters of allocations aggregated by allocator key. Updated in O(1) for each processed entry so reports
+ * do not have to group and sum all stored allocations.
+ *
+ * Counters are stored in primitive arrays indexed by the frame id of the allocator key
+ * (+1 so that {@link StackDictionary#NO_FRAME} is stored at index 0).
+ * Requested sizes are also counted in a {@link SizeHistogram} for each key.
+ */
+public class AllocatorStats {
+	private long[] liveCount=new long[0];
+	private long[] liveBytes=new long[0];
+	private long[] allocs=new long[0];
+	private long[] frees=new long[0];
+	private long[] peakBytes=new long[0];
+	/**
+	 * Size histograms of the not freed blocks and of all allocated blocks. Created with the first allocation of the key.
+	 */
+	private SizeHistogram[] liveSizes=new SizeHistogram[0];
+	private SizeHistogram[] allSizes=new SizeHistogram[0];
+	/**
+	 * A block was allocated by the allocator.
+	 * @param key frame id of the allocator key
+	 * @param size
+	 */
+	public void allocated(int key, long size)
+	{
+		int i=index(key);
+		liveCount[i]++;
+		liveBytes[i]+=size;
+		allocs[i]++;
+		if(liveBytes[i]>peakBytes[i])
+		{
+			peakBytes[i]=liveBytes[i];
+		}
+		if(liveSizes[i]==null)
+		{
+			liveSizes[i]=new SizeHistogram();
+			allSizes[i]=new SizeHistogram();
+		}
+		SizeHistogram.writable(liveSizes, i).add(size);
+		SizeHistogram.writable(allSizes, i).add(size);
+	}
+	/**
+	 * A block allocated by the allocator was freed.
+	 * @param key frame id of the allocator key
+	 * @param size
+	 */
+	public void freed(int key, long size)
+	{
+		int i=index(key);
+		liveCount[i]--;
+		liveBytes[i]-=size;
+		frees[i]++;
+		removeLiveSize(i, size);
+	}
+	/**
+	 * A block allocated by the allocator was overwritten by a new allocation on the same address
+	 * without being freed.
+	 * @param key frame id of the allocator key
+	 * @param size
+	 */
+	public void lost(int key, long size)
+	{
+		int i=index(key);
+		liveCount[i]--;
+		liveBytes[i]-=size;
+		removeLiveSize(i, size);
+	}
+	private void removeLiveSize(int i, long size)
+	{
+		if(liveSizes[i]!=null)
+		{
+			SizeHistogram.writable(liveSizes, i).remove(size);
+		}
+	}
+	private int index(int key)
+	{
+		int i=key+1;
+		if(i>=liveCount.length)
+		{
+			int l=Math.max(i+1, liveCount.length*2);
+			liveCount=Arrays.copyOf(liveCount, l);
+			liveBytes=Arrays.copyOf(liveBytes, l);
+			allocs=Arrays.copyOf(allocs, l);
+			frees=Arrays.copyOf(frees, l);
+			peakBytes=Arrays.copyOf(peakBytes, l);
+			liveSizes=Arrays.copyOf(liveSizes, l);
+			allSizes=Arrays.copyOf(allSizes, l);
+		}
+		return i;
+	}
+	/**
+	 * @return a copy of the current state of the counters. Size histograms are shared and copied on write.
+	 */
+	public AllocatorStats copy()
+	{
+		AllocatorStats ret=new AllocatorStats();
+		ret.liveCount=liveCount.clone();
+		ret.liveBytes=liveBytes.clone();
+		ret.allocs=allocs.clone();
+		ret.frees=frees.clone();
+		ret.peakBytes=peakBytes.clone();
+		ret.liveSizes=SizeHistogram.share(liveSizes);
+		ret.allSizes=SizeHistogram.share(allSizes);
+		return ret;
+	}
+	/**
+	 * Add the counters of an other instance to this one (eg. to aggregate the processes of a process tree).
+	 * Peak bytes become the sum of the peaks which is an upper bound of the peak of the aggregate.
+	 * @param o
+	 */
+	public void add(AllocatorStats o)
+	{
+		if(o.liveCount.length>0)
+		{
+			index(o.liveCount.length-2);
+		}
+		for(int i=0;i<o.liveCount.length;++i)
+		{
+			liveCount[i]+=o.liveCount[i];
+			liveBytes[i]+=o.liveBytes[i];
+			allocs[i]+=o.allocs[i];
+			frees[i]+=o.frees[i];
+			peakBytes[i]+=o.peakBytes[i];
+			if(o.liveSizes[i]!=null)
+			{
+				if(liveSizes[i]==null)
+				{
+					liveSizes[i]=new SizeHistogram();
+					allSizes[i]=new SizeHistogram();
+				}
+				SizeHistogram.writable(liveSizes, i).add(o.liveSizes[i]);
+				SizeHistogram.writable(allSizes, i).add(o.allSizes[i]);
+			}
+		}
+	}
+	/**
+	 * @return number of all allocations that are not freed yet
+	 */
+	public long getTotalLiveCount()
+	{
+		long ret=0;
+		for(long c: liveCount)
+		{
+			ret+=c;
+		}
+		return ret;
+	}
+	/**
+	 * @return sum of the size of all allocations that are not freed yet
+	 */
+	public long getTotalLiveBytes()
+	{
+		long ret=0;
+		for(long c: liveBytes)
+		{
+			ret+=c;
+		}
+		return ret;
+	}
+	/**
+	 * @return keys that have allocations that are not freed yet
+	 */
+	public int[] getLiveKeys()
+	{
+		return keys(liveCount);
+	}
+	/**
+	 * @return keys that had allocations
+	 */
+	public int[] getKeys()
+	{
+		return keys(allocs);
+	}
+	private static int[] keys(long[] a)
+	{
+		int n=0;
+		for(long c: a)
+		{
+			if(c>0)
+			{
+				n++;
+			}
+		}
+		int[] ret=new int[n];
+		n=0;
+		for(int i=0;i<a.length;++i)
+		{
+			if(a[i]>0)
+			{
+				ret[n++]=i-1;
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Overwrite the all time counters of the allocator (eg. when the state is restored from a {@link Checkpoint}).
+	 * The live counters are not changed.
+	 * @param key frame id of the allocator key
+	 * @param allocs
+	 * @param frees
+	 * @param peakBytes
+	 */
+	public void setCounters(int key, long allocs, long frees, long peakBytes)
+	{
+		int i=index(key);
+		this.allocs[i]=allocs;
+		this.frees[i]=frees;
+		this.peakBytes[i]=Math.max(peakBytes, liveBytes[i]);
+	}
+	/**
+	 * @param n maximum number of keys returned
+	 * @return the keys with the most live bytes in decreasing order
+	 */
+	public int[] getTopByLiveBytes(int n)
+	{
+		return top(liveBytes, n);
+	}
+	/**
+	 * @param n maximum number of keys returned
+	 * @return the keys with the most live allocations in decreasing order
+	 */
+	public int[] getTopByLiveCount(int n)
+	{
+		return top(liveCount, n);
+	}
+	private static int[] top(long[] metric, int n)
+	{
+		int[] ret=topIndexes(metric, n);
+		for(int i=0;i<ret.length;++i)
+		{
+			ret[i]--;
+		}
+		return ret;
+	}
+	/**
+	 * Select the indexes of the top n positive values by a bounded min-heap: O(values * log n) and no per value object.
+	 * @param metric
+	 * @param n
+	 * @return indexes ordered by decreasing value
+	 */
+	static int[] topIndexes(long[] metric, int n)
+	{
+		int[] heap=new int[Math.max(0, n)];
+		int size=0;
+		for(int i=0;i<metric.length;++i)
+		{
+			if(metric[i]<=0)
+			{
+				continue;
+			}
+			if(size<heap.length)
+			{
+				heap[size]=i;
+				siftUp(heap, size, metric);
+				size++;
+			}else if(size>0 && metric[i]>metric[heap[0]])
+			{
+				heap[0]=i;
+				siftDown(heap, size, metric);
+			}
+		}
+		// Pop the minimum to the end: the array becomes ordered by decreasing metric
+		for(int end=size-1;end>0;--end)
+		{
+			int t=heap[0];
+			heap[0]=heap[end];
+			heap[end]=t;
+			siftDown(heap, end, metric);
+		}
+		return Arrays.copyOf(heap, size);
+	}
+	private static void siftUp(int[] heap, int i, long[] metric)
+	{
+		while(i>0)
+		{
+			int parent=(i-1)/2;
+			if(metric[heap[i]]>=metric[heap[parent]])
+			{
+				break;
+			}
+			int t=heap[i];
+			heap[i]=heap[parent];
+			heap[parent]=t;
+			i=parent;
+		}
+	}
+	private static void siftDown(int[] heap, int size, long[] metric)
+	{
+		int i=0;
+		while(true)
+		{
+			int min=i;
+			int l=2*i+1;
+			int r=l+1;
+			if(l<size && metric[heap[l]]<metric[heap[min]])
+			{
+				min=l;
+			}
+			if(r<size && metric[heap[r]]<metric[heap[min]])
+			{
+				min=r;
+			}
+			if(min==i)
+			{
+				return;
+			}
+			int t=heap[i];
+			heap[i]=heap[min];
+			heap[min]=t;
+			i=min;
+		}
+	}
+	private long get(long[] a, int key)
+	{
+		int i=key+1;
+		return i<a.length?a[i]:0;
+	}
+	public long getLiveCount(int key) {
+		return get(liveCount, key);
+	}
+	public long getLiveBytes(int key) {
+		return get(liveBytes, key);
+	}
+	public long getAllocs(int key) {
+		return get(allocs, key);
+	}
+	public long getFrees(int key) {
+		return get(frees, key);
+	}
+	public long getPeakBytes(int key) {
+		return get(peakBytes, key);
+	}
+	/**
+	 * @param key
+	 * @return histogram of the sizes of the not freed blocks of the allocator
+	 */
+	public SizeHistogram getLiveSizes(int key) {
+		return get(liveSizes, key);
+	}
+	/**
+	 * @param key
+	 * @return histogram of the sizes of all blocks allocated by the allocator
+	 */
+	public SizeHistogram getAllSizes(int key) {
+		return get(allSizes, key);
+	}
+	private SizeHistogram get(SizeHistogram[] a, int key)
+	{
+		int i=key+1;
+		return i<a.length && a[i]!=null?a[i]:new SizeHistogram();
+	}
+}
@@ -4,22 +4,28 @@ import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.io.Reader;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import hu.qgears.commons.UtilEvent;
 import hu.qgears.commons.UtilString;
@@ -40,20 +46,62 @@ public class Analyze implements Closeable {
 		public String host=null;
 		@JOHelp("TCP port of server port")
 		public int port=0;
-		@JOHelp("Pipe input (or file input)")
+		@JOHelp("Pipe input (or file input). Files may be gzip compressed. A comma separated list, a glob pattern (eg. /data/soak.log-*.gz) or the manifest of a segmented tee file is read as a single stream in order with decompression running ahead on a separate thread.")
 		public File pipe;
-		@JOHelp("Compare to this later state")
+		@JOHelp("Compare to this later state. Accepts the same inputs as pipe.")
 		public File compare;
 		@JOHelp("If set then create a copy of the incoming stream into this file.")
 		public File tee;
-		public OutputStream openTee() throws FileNotFoundException {
+		@JOHelp("Periodically write the state of stream 0 (stored allocations and counters) with its offset in the stream into this checkpoint file. See resume.")
+		public File checkpoint;
+		@JOHelp("Seconds between two checkpoints. 0 means that checkpoints are only written by the checkpoint command.")
+		public int checkpointSeconds=600;
+		@JOHelp("Load the checkpoint file and continue from its offset: the rest of the tee file is processed then the input is appended to the tee file. The input has to continue the recorded stream.")
+		public boolean resume;
+		@JOHelp("Start a new tee segment after this many megabytes. Segments are listed with their offset in the stream in the <tee>.manifest file. 0 means no size limit.")
+		public int teeSegmentMB;
+		@JOHelp("Start a new tee segment after this many minutes. 0 means no time limit.")
+		public int teeSegmentMinutes;
+		@JOHelp("Compress the tee segments with gzip.")
+		public boolean teeGzip;
+		public OutputStream openTee() throws IOException {
+			return openTee(0);
+		}
+		/**
+		 * Open the tee output of a stream. Stream 0 is teed into the tee file, other streams
+		 * into files with the stream id appended to the name. Stream 0 is appended to the tee file in resume mode.
+		 * The data is written by a {@link TeeWriter} thread.
+		 * @param streamId
+		 * @return null if tee is not set
+		 * @throws IOException
+		 */
+		public OutputStream openTee(int streamId) throws IOException {
 			if(tee!=null)
 			{
-				System.out.println("Tee to: "+tee.getAbsolutePath());
-				return new FileOutputStream(tee);
+				File f=streamId==0?tee:new File(tee.getPath()+"."+streamId);
+				System.out.println("Tee to: "+f.getAbsolutePath());
+				return new TeeWriter(f, teeSegmentMB*1024L*1024L, teeSegmentMinutes*60000L, teeGzip, streamId==0 && resume);
 			}
 			return null;
 		}
+		@JOHelp("Number of threads that parse the input stream in parallel. 0 means that the input is parsed and processed on the reader thread.")
+		public int parserThreads=Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()-2));
+		@JOHelp("Process the entries of each PID of the stream (forked children) separately instead of ignoring all PIDs but the first one.")
+		public boolean perPid;
+		@JOHelp("Rewrite the absolute addresses of stack frames to module relative offsets using the memory maps in the header of the log. Allocator keys become the same in different runs of the program (ASLR) so snapshots of different runs can be compared.")
+		public boolean canonicalFrames;
+		@JOHelp("Sampling mode: keep the stack trace of 1 in this many allocations only. All allocations are still accounted exactly (balance, matching, not freed objects), reports by allocator are estimated from the sampled ones. 0 or 1 means no sampling.")
+		public int sampleEvery;
+		@JOHelp("Byte weighted sampling mode: keep the stack trace of an allocation of size s with probability 1-exp(-s/sampleBytes) (on average one sample per this many bytes, large blocks are always sampled). Overrides sampleEvery. 0 means no byte weighted sampling.")
+		public int sampleBytes;
+		@JOHelp("Maximum number of examples of each kind of anomaly (free without allocation, memory freed twice, etc.) printed to stderr per second. All anomalies are counted by kind and allocator (see the anomalies command and the end of the print report). 0 means that anomalies are only counted.")
+		public int anomalyExamples=AnomalyStats.DEFAULT_EXAMPLES_PER_SECOND;
+		@JOHelp("Index file of a recorded log used by the history and sites commands. See buildIndex.")
+		public File index;
+		@JOHelp("Build the index of the pipe input (a recorded log: tee file, gzip file, list, glob or manifest of segments) into the index file instead of analysing it. Then the history and sites commands can be used in interactive mode.")
+		public boolean buildIndex;
+		@JOHelp("In compare mode stream both snapshots ordered by address instead of loading them into memory. Memory use is proportional to the number of allocators. Snapshots must be ordered by address (snapshots written by this analyser are).")
+		public boolean streamingCompare;
 		@JOHelp("In compare mode write all instances (instead of a single example) of allocations that contain this string (in any of the stack trace)")
 		public List<String> printAllIfContains=new ArrayList<String>();
 		@JOHelp("In compare mode hide all instances of allocations that's identifier line contain this string")
@@ -75,13 +123,32 @@ public class Analyze implements Closeable {
 		/**
 		 * In case of programmed embedded compare mode (not interactive mode)
 		 * send all difference entries to the host.
+		 * With {@link #streamingCompare} the freed and allocated lists only contain the first example entry
+		 * (the counters and sizes are complete): use {@link #compareFreedEntryEvent} and {@link #compareAllocatedEntryEvent}
+		 * to receive all entries.
 		 */
 		@JOSkip
 		public UtilEvent<DifferentEntries> compareDiffEntryEvent=new UtilEvent<DifferentEntries>();
+		/**
+		 * In compare mode each entry of the first snapshot that is not in the second one (freed) and each entry of the
+		 * second snapshot that is not in the first one (allocated) is sent to these events unless its allocator is hidden.
+		 * The entry object may be reused after the listener returned.
+		 */
+		@JOSkip
+		public UtilEvent<Entry> compareFreedEntryEvent=new UtilEvent<Entry>();
+		@JOSkip
+		public UtilEvent<Entry> compareAllocatedEntryEvent=new UtilEvent<Entry>();
 		public boolean isDiffEntryHidden(DifferentEntries de) {
+			return isHidden(de.key);
+		}
+		/**
+		 * @param key allocator key
+		 * @return true if the differences of the allocator are not reported, see {@link #hideIfContains}
+		 */
+		public boolean isHidden(String key) {
 			for(String s: hideIfContains)
 			{
-				if(de.key.contains(s))
+				if(key.contains(s))
 				{
 					return true;
 				}
@@ -92,23 +159,58 @@ public class Analyze implements Closeable {
 	private final SignalFutureWrapper<Boolean> closed=new SignalFutureWrapper<>();
 	/**
 	 * Analysation is running.
-	 * When false then input is ignored.
+	 * When false then only the address and size of the allocated blocks are tracked, see {@link EntryProcessor#trackOff(Entry)}.
+	 */
+	private volatile boolean on=true;
+	/**
+	 * Process each PID of the streams separately. See {@link Args#perPid}.
+	 */
+	private boolean perPid;
+	/**
+	 * Sampler of the stack traces. null means that all stack traces are stored. See {@link Args#sampleEvery}.
+	 */
+	private Sampler sampler;
+	/**
+	 * See {@link Args#anomalyExamples}.
+	 */
+	private int anomalyExamples=AnomalyStats.DEFAULT_EXAMPLES_PER_SECOND;
+	/**
+	 * Default file of the checkpoint command. See {@link Args#checkpoint}.
+	 */
+	private File checkpointFile;
+	/**
+	 * Index of a recorded log used by the history and sites commands. See {@link Args#index}.
 	 */
-	private boolean on=true;
+	private LogIndex logIndex;
 	/**
-	 * All processed bytes of the log - never zeroes. Useful to track whether anything happens at all
+	 * All processed bytes of all streams - never zeroes. Useful to track whether anything happens at all
 	 * and to estimate required bandwidth (RAM, pipe, TCP, etc. depending on the setup) of logging and processing.
-	 * 
-	 * In real it is the number of UTF characters and not bytes but that should be the same in stack traces
-	 * and for estimation purposes that must be enough.
 	 */
 	private volatile long processedBytes=0;
 	/**
-	 * The current entry read from log-malloc-simple input data strem.
-	 * The object is updated with data read from input until the next object header is read. Then this object is processed.
+	 * All processed entries of all streams - never zeroes.
+	 */
+	private volatile long processedEntries=0;
+	/**
+	 * Metrics of the last snapshot written in the background.
+	 */
+	private volatile String lastSnapshotMetrics;
+	/**
+	 * Stack traces of all processed entries. Shared by the parser and all entry processors of this analyser.
+	 */
+	private final StackDictionary stacks=new StackDictionary();
+	/**
+	 * All input streams. Guarded by the monitor of the analyser.
 	 */
-	private Entry e = new Entry();
-	private EntryProcessor entryProcessor=new EntryProcessor();
+	private final List<LogStream> streams=new ArrayList<LogStream>();
+	/**
+	 * The stream that the user commands are applied to.
+	 */
+	private LogStream selected;
+	public Analyze() {
+		selected=new LogStream(0, "stream 0", new EntryProcessor(stacks));
+		streams.add(selected);
+	}
 	public static void main(String[] args) throws Exception {
 		Args a=new Args();
 		AnnotatedClass ac=new AnnotatedClass();
@@ -141,16 +243,58 @@ public class Analyze implements Closeable {
 	 * @param args
 	 */
 	public void start(final Args args) {
+		perPid=args.perPid;
+		sampler=Sampler.create(args);
+		anomalyExamples=args.anomalyExamples;
+		if(sampler!=null)
+		{
+			System.out.println("Sampling mode: "+sampler);
+		}
+		synchronized (this) {
+			selected.entryProcessor=createProcessor();
+		}
+		checkpointFile=args.checkpoint;
+		if(args.compare==null && args.checkpoint!=null)
+		{
+			if(args.resume)
+			{
+				try {
+					resume(args);
+				} catch (IOException e) {
+					throw new RuntimeException("Resume from checkpoint failed: "+args.checkpoint.getAbsolutePath(), e);
+				}
+			}
+			startCheckpointWriter(args);
+		}else if(args.resume)
+		{
+			throw new IllegalArgumentException("--resume requires --checkpoint");
+		}
+		if(args.buildIndex)
+		{
+			buildIndex(args);
+			if(args.modeInteractive)
+			{
+				communicateUser();
+			}
+			return;
+		}else if(args.index!=null)
+		{
+			try {
+				openIndex(args.index);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 		if(args.compare!=null)
 		{
 			System.out.println("Compare mode: "+args.pipe.getAbsolutePath()+" "+args.compare.getAbsolutePath());
 			try
 			{
-				try(FileInputStream fis=new FileInputStream(args.pipe))
+				try(InputStream is=LogArchive.open(args.pipe.getPath()))
 				{
-					try(FileInputStream fis2=new FileInputStream(args.compare))
+					try(InputStream is2=LogArchive.open(args.compare.getPath()))
 					{
-						executeCompare(fis, fis2, System.out, args);
+						executeCompare(is, is2, System.out, args);
 					}
 				}
 			} catch (Exception e) {
@@ -166,9 +310,9 @@ public class Analyze implements Closeable {
 			new Thread("logreader thread") {
 				public void run() {
 					try {
-						try(FileInputStream fis=new FileInputStream(args.pipe))
+						try(InputStream is=LogArchive.open(args.pipe.getPath()))
 						{
-							processInput(args, fis, args.openTee());
+							processInput(openStream("pipe "+args.pipe.getPath()), args, is, args.openTee());
 						}
 					} catch (Exception e) {
 						e.printStackTrace();
@@ -184,6 +328,78 @@ public class Analyze implements Closeable {
 			communicateUser();
 		}
 	}
+	/**
+	 * Build the index of the pipe input and open it. See {@link Args#buildIndex}.
+	 * @param args
+	 */
+	private void buildIndex(Args args)
+	{
+		if(args.pipe==null || args.index==null)
+		{
+			throw new IllegalArgumentException("--buildIndex requires --pipe and --index");
+		}
+		try {
+			long t0=System.currentTimeMillis();
+			long n=LogIndex.build(args.pipe.getPath(), args.index, args.canonicalFrames);
+			System.out.println("Index built: "+args.index.getAbsolutePath()+" entries: "+n+" millis: "+(System.currentTimeMillis()-t0));
+			openIndex(args.index);
+		} catch (IOException e) {
+			throw new RuntimeException("Building index failed: "+args.index.getAbsolutePath(), e);
+		}
+	}
+	/**
+	 * Open the index file used by the history and sites commands.
+	 * @param f
+	 * @throws IOException
+	 */
+	public void openIndex(File f) throws IOException
+	{
+		logIndex=LogIndex.open(f);
+		System.out.println("Index opened: "+f.getAbsolutePath()+" allocators: "+logIndex.getNumberOfKeys());
+	}
+	/**
+	 * Print the allocations and frees of the address found in the index of the recorded log.
+	 * @param out
+	 * @param address hexadecimal address (0x prefix is optional)
+	 * @param n print the last n entries
+	 * @throws IOException
+	 */
+	public void printHistory(PrintStream out, String address, int n) throws IOException
+	{
+		if(logIndex==null)
+		{
+			out.println("index is not opened (--index)");
+			return;
+		}
+		long a=Long.parseUnsignedLong(address.startsWith("0x")?address.substring(2):address, 16);
+		logIndex.print(out, "History of 0x"+Long.toHexString(a), logIndex.history(a, n));
+	}
+	/**
+	 * Print the allocations of the allocator found in the index of the recorded log.
+	 * @param out
+	 * @param allocator the allocator key or a part of it that identifies a single allocator
+	 * @param n print the last n entries
+	 * @throws IOException
+	 */
+	public void printSites(PrintStream out, String allocator, int n) throws IOException
+	{
+		if(logIndex==null)
+		{
+			out.println("index is not opened (--index)");
+			return;
+		}
+		int[] keys=logIndex.findKeys(allocator);
+		if(keys.length==1)
+		{
+			logIndex.print(out, "Allocations of "+logIndex.getKey(keys[0]), logIndex.sites(keys[0], n));
+			return;
+		}
+		out.println(keys.length==0?"No allocator matches: "+allocator:"Allocators matching "+allocator+": "+keys.length);
+		for(int i=0;i<keys.length && i<n;++i)
+		{
+			out.println(logIndex.getKey(keys[i]));
+		}
+	}
 	/**
 	 * Execute compare
 	 * @param is1 first snapshot to compare. On non-exception path it is closed by this method
@@ -192,55 +408,45 @@ public class Analyze implements Closeable {
 	 * @throws IOException 
 	 */
 	public void executeCompare(InputStream is1, InputStream is2, PrintStream out, Args args) throws IOException {
+		if(args.streamingCompare)
+		{
+			new StreamingCompare(stacks, args).compare(is1, is2, out);
+			return;
+		}
 		processInput(args, is1, null);
 		is1.close();
-		EntryProcessor prev=entryProcessor;
-		entryProcessor=new EntryProcessor();
+		EntryProcessor prev=selected.entryProcessor;
+		selected.entryProcessor=createProcessor();
 		processInput(args, is2, null);
 		is2.close();
-		entryProcessor.processCompare(out, prev, args);
+		selected.entryProcessor.processCompare(out, prev, args);
 	}
 
+	/**
+	 * Start the TCP server on a new thread. Any number of clients may connect at the same time:
+	 * each connection is read by a single selector thread and parsed and processed as a separate stream
+	 * by its own {@link IngestPipeline}.
+	 * The first connection is processed as stream 0.
+	 * @param args
+	 */
 	private void startTCPServer(final Args args) {
-		new Thread("TCP listen thread") {
+		new Thread("TCP server thread") {
 			public void run() {
 				try {
-					try(ServerSocket ss=new ServerSocket())
+					try(Selector selector=Selector.open(); ServerSocketChannel ssc=ServerSocketChannel.open())
 					{
-						ss.bind(new InetSocketAddress(args.host, args.port));
-						SocketAddress sa=ss.getLocalSocketAddress();
-						System.out.println("TCP server port opened: "+args.host+":"+ss.getLocalPort());
+						ssc.bind(new InetSocketAddress(args.host, args.port));
+						ssc.configureBlocking(false);
+						ssc.register(selector, SelectionKey.OP_ACCEPT);
+						SocketAddress sa=ssc.getLocalAddress();
+						System.out.println("TCP server port opened: "+args.host+":"+ssc.socket().getLocalPort());
 						args.eventTcpServerOpened.ready(sa, null);
-						closed.addOnReadyHandler(e->{try {
-							ss.close();
-						} catch (IOException e1) {
-							e1.printStackTrace();
-						}});
-						Socket s=ss.accept();
-						closed.addOnReadyHandler(e->{try {
-							s.close();
-						} catch (IOException e1) {
-							e1.printStackTrace();
-						}});
-						System.out.println("TCP client connected...");
-						new Thread("TCP read thread")
-						{
-							@Override
-							public void run() {
-								try {
-									try
-									{
-										processInput(args, s.getInputStream(), args.openTee());
-									}finally
-									{
-										s.close();
-									}
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-						}
-						.start();
+						AtomicBoolean stop=new AtomicBoolean();
+						closed.addOnReadyHandler(e->{
+							stop.set(true);
+							selector.wakeup();
+						});
+						serve(args, selector, ssc, stop);
 					}
 				} catch (IOException e) {
 					e.printStackTrace();
@@ -248,54 +454,306 @@ public class Analyze implements Closeable {
 			};
 		}.start();
 	}
+	private void serve(Args args, Selector selector, ServerSocketChannel ssc, AtomicBoolean stop) throws IOException
+	{
+		while(!stop.get())
+		{
+			selector.select();
+			for(SelectionKey key: selector.selectedKeys())
+			{
+				if(!key.isValid())
+				{
+					continue;
+				}
+				if(key.isAcceptable())
+				{
+					SocketChannel ch=ssc.accept();
+					if(ch!=null)
+					{
+						ch.configureBlocking(false);
+						Connection c=new Connection(args, ch, selector);
+						ch.register(selector, SelectionKey.OP_READ, c);
+					}
+				}else if(key.isReadable())
+				{
+					Connection c=(Connection) key.attachment();
+					try
+					{
+						if(!c.read())
+						{
+							key.cancel();
+							c.close();
+						}else if(c.pause())
+						{
+							key.interestOps(0);
+						}
+					}catch(IOException e)
+					{
+						e.printStackTrace();
+						key.cancel();
+						c.close();
+					}
+				}
+			}
+			selector.selectedKeys().clear();
+			for(SelectionKey key: selector.keys())
+			{
+				if(key.isValid() && key.attachment() instanceof Connection && ((Connection) key.attachment()).resume())
+				{
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			}
+		}
+		for(SelectionKey key: selector.keys())
+		{
+			if(key.attachment() instanceof Connection)
+			{
+				((Connection) key.attachment()).close();
+			}
+		}
+	}
 	/**
-	 * Do processing of input stream in by reading it line by line in a blocking manner.
+	 * A TCP client connection. The selector thread only reads the data into the chunks of the {@link IngestPipeline}
+	 * of the connection: parsing and accounting are done by the threads of the pipeline.
+	 * When all chunks of the pipeline are in use the connection is not read until a chunk is processed.
+	 */
+	private class Connection
+	{
+		private final SocketChannel ch;
+		private final LogStream stream;
+		private final OutputStream tee;
+		private final IngestPipeline pipeline;
+		private boolean finished;
+		/**
+		 * Reading is paused because the pipeline has no free chunk.
+		 */
+		private volatile boolean paused;
+		private final boolean modeInteractive;
+		public Connection(Args args, SocketChannel ch, Selector selector) throws IOException {
+			this.ch=ch;
+			modeInteractive=args.modeInteractive;
+			stream=openStream("TCP "+ch.getRemoteAddress());
+			final long inputOffset=stream.inputOffset;
+			System.out.println("TCP client connected: stream "+stream.id+" "+stream.getName());
+			tee=args.openTee(stream.id);
+			stream.tee=tee instanceof TeeWriter?(TeeWriter)tee:null;
+			pipeline=new IngestPipeline(stacks, new IngestPipeline.BatchListener() {
+				@Override
+				public void entriesParsed(Entry[] entries, int n, long endOffset, boolean stacksSkipped) {
+					processEntries(stream, entries, n, endOffset<0?-1:inputOffset+endOffset, stacksSkipped);
+				}
+			}, Math.max(1, args.parserThreads));
+			pipeline.setSkipForeignPids(!perPid);
+			pipeline.setCanonicalFrames(args.canonicalFrames);
+			pipeline.setSampler(sampler);
+			pipeline.setSkipStacks(()->!on);
+			pipeline.setOnChunkFree(()->{
+				if(paused)
+				{
+					selector.wakeup();
+				}
+			});
+			if(inputOffset>0)
+			{
+				// The connection continues the stream of a checkpoint
+				synchronized (Analyze.this) {
+					pipeline.setResumed(stream.getHeader(), stream.entryProcessor.getPid());
+				}
+			}
+			stream.setHeader(pipeline.getHeader());
+		}
+		/**
+		 * Read available data into the pipeline. Must be called only when the pipeline is ready, see {@link #pause()}.
+		 * @return false at end of stream
+		 */
+		boolean read() throws IOException
+		{
+			ByteBuffer buf;
+			try {
+				buf=pipeline.getInputBuffer();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			int r=ch.read(buf);
+			if(r>0)
+			{
+				if(tee!=null)
+				{
+					tee.write(buf.array(), buf.position()-r, r);
+				}
+				stream.processedBytes+=r;
+				processedBytes+=r;
+				try {
+					pipeline.inputRead();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			return r>=0;
+		}
+		/**
+		 * @return true if reading has to be paused because the pipeline has no free chunk
+		 */
+		boolean pause()
+		{
+			// Set before checking so that a chunk freed meanwhile wakes up the selector
+			paused=true;
+			if(pipeline.isReady())
+			{
+				paused=false;
+			}
+			return paused;
+		}
+		/**
+		 * @return true if reading was paused and can be continued
+		 */
+		boolean resume()
+		{
+			if(paused && pipeline.isReady())
+			{
+				paused=false;
+				return true;
+			}
+			return false;
+		}
+		/**
+		 * Close the channel and process the rest of the stream on a new thread so the selector thread is not blocked.
+		 */
+		void close()
+		{
+			if(finished)
+			{
+				return;
+			}
+			finished=true;
+			try {
+				ch.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			new Thread("TCP stream close "+stream.id) {
+				@Override
+				public void run() {
+					pipeline.close();
+					try {
+						if(tee!=null)
+						{
+							tee.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					stream.closed();
+					if(modeInteractive)
+					{
+						System.err.println("Input closed: stream "+stream.id+" "+stream.getName());
+					}
+				}
+			}.start();
+		}
+	}
+	/**
+	 * @return new empty processor with the settings of the analyser (sampler, anomaly examples)
+	 */
+	private EntryProcessor createProcessor()
+	{
+		EntryProcessor ret=new EntryProcessor(stacks, sampler);
+		ret.setAnomalyExamples(anomalyExamples);
+		return ret;
+	}
+	/**
+	 * Get a stream for a new input. Stream 0 is used in case it did not have an input yet.
+	 * @param name
+	 * @return
+	 */
+	private synchronized LogStream openStream(String name)
+	{
+		LogStream ret=streams.get(0);
+		if(!ret.claim(name))
+		{
+			ret=new LogStream(streams.size(), name, createProcessor());
+			ret.claim(name);
+			streams.add(ret);
+		}
+		return ret;
+	}
+	/**
+	 * Do processing of input stream in by reading it chunk by chunk in a blocking manner.
+	 * Raw bytes are copied to the tee output unchanged and parsed by the {@link IngestPipeline}.
+	 * In case the input is a {@link BinarySnapshot} then it is loaded directly.
+	 * Returns after all entries of the input were processed.
 	 * @param outputStream 
 	 * @param f
 	 */
 	private void processInput(Args args, InputStream in, OutputStream outputStream) {
+		processInput(selected, args, in, outputStream);
+	}
+	private void processInput(LogStream stream, Args args, InputStream in, OutputStream outputStream) {
 		try {
-			Reader r = new InputStreamReader(in, StandardCharsets.UTF_8);
-			BufferedReader br = new BufferedReader(r);
-			OutputStreamWriter osw=null;
-			if(outputStream!=null)
-			{
-				osw=new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
-			}
-			try
+			final long inputOffset=stream.inputOffset;
+			IngestPipeline.BatchListener listener=new IngestPipeline.BatchListener() {
+				@Override
+				public void entriesParsed(Entry[] entries, int n, long endOffset, boolean stacksSkipped) {
+					processEntries(stream, entries, n, endOffset<0?-1:inputOffset+endOffset, stacksSkipped);
+				}
+			};
+			byte[] prefix=new byte[BinarySnapshot.MAGIC.length];
+			int nPrefix=readFully(in, prefix);
+			if(BinarySnapshot.isBinarySnapshot(prefix, nPrefix))
 			{
-				String line;
-				while ((line = br.readLine()) != null) {
-					if(osw!=null)
+				try
+				{
+					if(outputStream!=null)
 					{
-						osw.write(line);
-						osw.write("\n");
-					}
-					processedBytes+=line.length()+1;
-					if (line.startsWith("+")) {
-						// Log entry starts. Close previous log entry and setup new object.
-						processEntry();
-						e.setStartLine(line);
-					} else if (line.startsWith("-")) {
-						// Log entry finished. Process current log entry.
-						processEntry();
-					} else {
-						e.addLine(line);
+						outputStream.close();
 					}
+					ReadableByteChannel ch=in instanceof FileInputStream?((FileInputStream) in).getChannel():Channels.newChannel(in);
+					BinarySnapshot.read(ch, stacks, listener);
+				}finally
+				{
+					in.close();
 				}
-				processEntry();
-			} finally
+			}else
 			{
-				br.close();
-				if(osw!=null)
+				stream.tee=outputStream instanceof TeeWriter?(TeeWriter)outputStream:null;
+				IngestPipeline pipeline=new IngestPipeline(stacks, listener, args.parserThreads);
+				pipeline.setSkipForeignPids(!perPid);
+				pipeline.setCanonicalFrames(args.canonicalFrames);
+				pipeline.setSampler(sampler);
+				pipeline.setSkipStacks(()->!on);
+				if(inputOffset>0)
 				{
-					osw.close();
+					// The input continues the stream of a checkpoint
+					synchronized (this) {
+						pipeline.setResumed(stream.getHeader(), stream.entryProcessor.getPid());
+					}
 				}
-				if(outputStream!=null)
+				stream.setHeader(pipeline.getHeader());
+				try
+				{
+					int n=nPrefix;
+					ByteBuffer buf=pipeline.getInputBuffer();
+					buf.put(prefix, 0, n);
+					do {
+						if(outputStream!=null)
+						{
+							outputStream.write(buf.array(), buf.position()-n, n);
+						}
+						stream.processedBytes+=n;
+						processedBytes+=n;
+						pipeline.inputRead();
+					} while ((n = read(in, buf=pipeline.getInputBuffer())) >= 0);
+				} finally
 				{
-					outputStream.close();
+					pipeline.close();
+					in.close();
+					if(outputStream!=null)
+					{
+						outputStream.close();
+					}
 				}
 			}
+			stream.closed();
 			if(args.modeInteractive)
 			{
 				System.err.println("Input closed.");
@@ -305,17 +763,217 @@ public class Analyze implements Closeable {
 		}
 	}
 	/**
-	 * Process the current entry that is being updated right now by input.
-	 * In case the current entry is empty then does nothing.
-	 * In case the current entry was opened with a "+..." line then store it into the entryprocessor
+	 * Load the checkpoint into stream 0 and process the rest of the tee file after the offset of the checkpoint.
+	 * The next input of stream 0 continues the stream after the end of the tee file.
+	 * @param args
+	 * @throws IOException
+	 */
+	private void resume(Args args) throws IOException
+	{
+		LogStream stream=streams.get(0);
+		EntryProcessor p=createProcessor();
+		Checkpoint c=Checkpoint.read(args.checkpoint, p);
+		synchronized (this) {
+			stream.entryProcessor=p;
+			stream.processedOffset=c.getOffset();
+		}
+		stream.inputOffset=c.getOffset();
+		System.out.println("Resumed from checkpoint: "+args.checkpoint.getAbsolutePath()+" offset: "+c.getOffset());
+		if(args.tee!=null && TeeWriter.isRecorded(args.tee))
+		{
+			long recorded=TeeWriter.getRecordedLength(args.tee);
+			if(recorded<c.getOffset())
+			{
+				throw new IOException("The tee file is shorter than the offset of the checkpoint: "+recorded+" < "+c.getOffset()
+					+", the checkpoint does not belong to the recorded stream: "+args.tee.getAbsolutePath());
+			}
+			stream.setHeader(readHeader(args.tee));
+			processInput(stream, args, TeeWriter.openRecorded(args.tee, c.getOffset()), null);
+			stream.inputOffset=recorded;
+			System.out.println("Processed tee file after the checkpoint: "+args.tee.getAbsolutePath()+" "+Math.max(0, recorded-c.getOffset())+" bytes");
+		}
+	}
+	/**
+	 * Parse the header (PID, executable, memory maps) at the beginning of a recorded log (the tee file or its segments).
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	private static ProcessMaps readHeader(File f) throws IOException
+	{
+		ProcessMaps ret=new ProcessMaps();
+		try(InputStream fis=TeeWriter.openRecorded(f, 0))
+		{
+			byte[] a=new byte[64*1024];
+			int n=0;
+			int r;
+			while(!ret.isComplete() && (r=fis.read(a, n, a.length-n))>=0)
+			{
+				n+=r;
+				int lineEnd=n;
+				while(lineEnd>0 && a[lineEnd-1]!='\n')
+				{
+					lineEnd--;
+				}
+				ret.parse(a, 0, lineEnd);
+				System.arraycopy(a, lineEnd, a, 0, n-lineEnd);
+				n-=lineEnd;
+				if(n==a.length)
+				{
+					a=Arrays.copyOf(a, a.length*2);
+				}
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Write checkpoints periodically on a background thread, see {@link Args#checkpointSeconds}.
+	 * @param args
+	 */
+	private void startCheckpointWriter(final Args args)
+	{
+		if(args.checkpointSeconds<=0)
+		{
+			return;
+		}
+		final Thread t=new Thread("checkpoint writer") {
+			@Override
+			public void run() {
+				while(true)
+				{
+					try {
+						Thread.sleep(args.checkpointSeconds*1000L);
+						writeCheckpoint(args.checkpoint);
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+		t.setDaemon(true);
+		closed.addOnReadyHandler(e->t.interrupt());
+		t.start();
+	}
+	/**
+	 * Write the state of stream 0 into a {@link Checkpoint} file. Ingest is only blocked while the state is copied,
+	 * the file is written while new entries are processed. Processors of the other PIDs (in per PID mode)
+	 * are not part of the checkpoint.
+	 * The tee of the stream is synced to the disk before the checkpoint is written so the offset of the checkpoint
+	 * is never past the end of the recorded stream.
+	 * @param f
+	 * @throws IOException
+	 */
+	public void writeCheckpoint(File f) throws IOException
+	{
+		long t0=System.currentTimeMillis();
+		LogStream stream=streams.get(0);
+		EntryProcessor frozen;
+		Checkpoint c;
+		synchronized (this) {
+			frozen=stream.entryProcessor.freezeForCheckpoint();
+			c=new Checkpoint(stream.processedOffset);
+		}
+		// Input is teed before it is parsed: the bytes up to the offset were all handed to the tee already
+		TeeWriter tee=stream.tee;
+		if(tee!=null)
+		{
+			tee.sync();
+		}
+		c.write(f, frozen);
+		System.out.println("Checkpoint written: "+f.getAbsolutePath()+" offset: "+c.getOffset()+" size: "+f.length()
+			+" bytes in "+(System.currentTimeMillis()-t0)+" ms");
+	}
+	/**
+	 * Read from the stream directly into the array of the buffer.
+	 * (Channels.newChannel(InputStream) would copy through a small temporary array.)
+	 * @return number of bytes read or -1 on end of stream
+	 */
+	private static int read(InputStream in, ByteBuffer buf) throws IOException
+	{
+		int n=in.read(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+		if(n>0)
+		{
+			buf.position(buf.position()+n);
+		}
+		return n;
+	}
+	/**
+	 * Read from the stream until the array is full or the stream ends.
+	 * @return number of bytes read
 	 */
-	private void processEntry() {
-		if(on)
+	private static int readFully(InputStream in, byte[] a) throws IOException
+	{
+		int ret=0;
+		int n;
+		while(ret<a.length && (n=in.read(a, ret, a.length-ret))>=0)
 		{
-			synchronized (this) {
-				entryProcessor.processEntry(e);
+			ret+=n;
+		}
+		return ret;
+	}
+	/**
+	 * Process a batch of entries that were closed in the input stream.
+	 * In case the analyser is on then store them into the entryprocessor, otherwise only track the allocated blocks.
+	 * Entries parsed without stack lines are only tracked even if the analyser was turned on meanwhile: their blocks
+	 * would be stored without allocator.
+	 * The monitor of the analyser is taken once for the whole batch.
+	 * Entries get their sequence number here (and their receive time in case the input did not set it).
+	 * @param endOffset offset of the end of the last entry in the stream. -1 if unknown.
+	 * @param stacksSkipped the stack lines of the entries were not parsed because the analyser was off
+	 */
+	private void processEntries(LogStream stream, Entry[] entries, int n, long endOffset, boolean stacksSkipped) {
+		long now=0;
+		for(int i=0;i<n;++i)
+		{
+			Entry e=entries[i];
+			e.setSeq(++stream.seq);
+			if(e.getReceiveNanos()==0)
+			{
+				if(now==0)
+				{
+					now=System.nanoTime();
+				}
+				e.setReceiveNanos(now);
+			}
+		}
+		stream.processedEntries+=n;
+		boolean on=this.on && !stacksSkipped;
+		synchronized (this) {
+			// Streams are processed by different threads
+			processedEntries+=n;
+			if(endOffset>=0)
+			{
+				stream.processedOffset=endOffset;
+			}
+			if(perPid)
+			{
+				for(int i=0;i<n;++i)
+				{
+					EntryProcessor p=stream.getProcessor(entries[i].getPid());
+					if(on)
+					{
+						p.processEntry(entries[i]);
+					}else
+					{
+						p.trackOff(entries[i]);
+					}
+				}
+			}else
+			{
+				EntryProcessor entryProcessor=stream.entryProcessor;
+				for(int i=0;i<n;++i)
+				{
+					if(on)
+					{
+						entryProcessor.processEntry(entries[i]);
+					}else
+					{
+						entryProcessor.trackOff(entries[i]);
+					}
+				}
 			}
-			e = new Entry();
 		}
 	}
 	/**
@@ -336,7 +994,16 @@ public class Analyze implements Closeable {
 						reset();
 						break;
 					case "print":
-						print();
+						if(pieces.size()>1)
+						{
+							printPid(Long.parseLong(pieces.get(1)));
+						}else
+						{
+							print();
+						}
+						break;
+					case "pids":
+						printPids(System.out, pieces.size()>1?Integer.parseInt(pieces.get(1)):20);
 						break;
 					case "save":
 						save(pieces.get(1));
@@ -348,7 +1015,73 @@ public class Analyze implements Closeable {
 						on(false);
 						break;
 					case "snapshot":
-						snapshot(pieces.get(1));
+						snapshotInBackground(pieces.get(1), false);
+						break;
+					case "bsnapshot":
+						snapshotInBackground(pieces.get(1), true);
+						break;
+					case "streams":
+						printStreams(System.out);
+						break;
+					case "select":
+						select(Integer.parseInt(pieces.get(1)));
+						break;
+					case "threads":
+						freeze().printThreads(System.out, pieces.size()>1?Integer.parseInt(pieces.get(1)):20);
+						break;
+					case "top":
+						LiveQuery top=LiveQuery.parse(pieces, 1);
+						if(top.isFiltered())
+						{
+							freeze().printQuery(System.out, top);
+						}else
+						{
+							freeze().printTop(System.out, top.getN(), top.isByCount());
+						}
+						break;
+					case "filter":
+						freeze().printQuery(System.out, LiveQuery.parse(pieces, 1));
+						break;
+					case "group":
+						if(pieces.size()<4 || !pieces.get(1).equals("by") || !pieces.get(2).equals("frame"))
+						{
+							System.out.println("usage: group by frame <k> [n] [bytes|count] [frame=<substring>] [mindepth=<d>] [maxdepth=<d>]");
+							break;
+						}
+						LiveQuery group=LiveQuery.parse(pieces, 4);
+						group.setGroupDepth(Integer.parseInt(pieces.get(3)));
+						freeze().printQuery(System.out, group);
+						break;
+					case "rate":
+						freeze().printRate(System.out, (pieces.size()>1?Long.parseLong(pieces.get(1)):60)*1000, 20);
+						break;
+					case "churn":
+						freeze().printChurn(System.out, pieces.size()>1?Integer.parseInt(pieces.get(1)):20,
+							pieces.size()>2?Long.parseLong(pieces.get(2)):1000);
+						break;
+					case "checkpoint":
+						if(pieces.size()>1 || checkpointFile!=null)
+						{
+							writeCheckpoint(pieces.size()>1?new File(pieces.get(1)):checkpointFile);
+						}else
+						{
+							System.out.println("checkpoint file is not set (--checkpoint)");
+						}
+						break;
+					case "anomalies":
+						freeze().printAnomalies(System.out, pieces.size()>1?Integer.parseInt(pieces.get(1)):10);
+						break;
+					case "index":
+						openIndex(new File(pieces.get(1)));
+						break;
+					case "history":
+						printHistory(System.out, pieces.get(1), pieces.size()>2?Integer.parseInt(pieces.get(2)):10);
+						break;
+					case "sites":
+						printSites(System.out, line.trim().substring(command.length()).trim(), 10);
+						break;
+					case "ratecsv":
+						saveRateCsv(pieces.get(1));
 						break;
 					default:
 						System.out.println("unknown command: '"+command+"'");
@@ -366,21 +1099,131 @@ public class Analyze implements Closeable {
 			e.printStackTrace();
 		}
 	}
-	synchronized public void snapshot(OutputStream fos) throws IOException {
+	/**
+	 * Write all current stored allocations into the stream. Ingest is only blocked while the state is frozen,
+	 * the data is written while new entries are processed.
+	 * @param fos
+	 * @throws IOException
+	 */
+	public void snapshot(OutputStream fos) throws IOException {
+		writeSnapshot(freeze(), fos, false);
+	}
+	/**
+	 * Write all current stored allocations into the stream in the {@link BinarySnapshot} format.
+	 * @param fos
+	 * @throws IOException
+	 */
+	public void snapshotBinary(OutputStream fos) throws IOException {
+		writeSnapshot(freeze(), fos, true);
+	}
+	private void writeSnapshot(EntryProcessor frozen, OutputStream fos, boolean binary) throws IOException {
+		if(binary)
+		{
+			frozen.snapshotBinary(fos);
+			fos.flush();
+			return;
+		}
 		PrintStream ps=new PrintStream(fos, false, "UTF-8");
-		entryProcessor.snapshot(ps);
+		frozen.snapshot(ps);
 		ps.flush();
 	}
+	/**
+	 * Write all current stored allocations into a file in textual format.
+	 * Ingest is only blocked while the state is frozen, the file is written on the caller's thread.
+	 * @param filePath
+	 * @throws IOException
+	 */
 	public void snapshot(String filePath) throws IOException {
-		File f=new File(filePath);
-		FileOutputStream fos=new FileOutputStream(f);
-		try
-		{
-			snapshot(fos);
-		}finally
-		{
-			fos.close();
+		snapshot(filePath, false);
+	}
+	/**
+	 * Write all current stored allocations into a file.
+	 * Ingest is only blocked while the state is frozen, the file is written on the caller's thread.
+	 * @param filePath
+	 * @param binary write {@link BinarySnapshot} format instead of text
+	 * @throws IOException
+	 */
+	public void snapshot(String filePath, boolean binary) throws IOException {
+		new SnapshotWriter(filePath, binary).write();
+	}
+	/**
+	 * Write all current stored allocations into a file on a background thread.
+	 * The file contains the state at the time of this call. Metrics of the writer are printed when finished.
+	 * Used by the snapshot and bsnapshot console commands so the console is not blocked.
+	 * @param filePath
+	 * @param binary write {@link BinarySnapshot} format instead of text
+	 * @throws IOException in case the file can not be opened
+	 */
+	private void snapshotInBackground(String filePath, boolean binary) throws IOException {
+		final SnapshotWriter w=new SnapshotWriter(filePath, binary);
+		new Thread("snapshot writer") {
+			@Override
+			public void run() {
+				try {
+					w.write();
+					System.out.println(lastSnapshotMetrics);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.start();
+		System.out.println("Snapshot is being written in the background: "+w.f.getAbsolutePath());
+	}
+	/**
+	 * Frozen copy of the state and the opened snapshot file. Created on the caller's thread,
+	 * {@link #write()} may be called on any thread.
+	 */
+	private class SnapshotWriter
+	{
+		private final File f;
+		private final FileOutputStream fos;
+		private final boolean binary;
+		private final long t0;
+		private final long bytes0;
+		private final long entries0;
+		private final EntryProcessor live;
+		private final EntryProcessor frozen;
+		private final long copiedPages0;
+		private final long tFrozen;
+		public SnapshotWriter(String filePath, boolean binary) throws IOException {
+			this.binary=binary;
+			f=new File(filePath);
+			fos=new FileOutputStream(f);
+			t0=System.currentTimeMillis();
+			bytes0=processedBytes;
+			entries0=processedEntries;
+			synchronized (Analyze.this) {
+				live=selected.entryProcessor;
+				frozen=live.freeze();
+			}
+			copiedPages0=live.getCopiedPages();
+			tFrozen=System.currentTimeMillis();
 		}
+		/**
+		 * Write the frozen state into the file, close it and store the metrics of the writer.
+		 * @throws IOException
+		 */
+		public void write() throws IOException {
+			try
+			{
+				writeSnapshot(frozen, fos, binary);
+			}finally
+			{
+				fos.close();
+			}
+			long t1=System.currentTimeMillis();
+			lastSnapshotMetrics="Snapshot "+f.getAbsolutePath()+" allocations: "+frozen.getNumberOfAllocations()
+				+" ingest blocked (millis): "+(tFrozen-t0)
+				+" writer lag behind ingest (millis, entries, bytes): "+(t1-tFrozen)+" "+(processedEntries-entries0)+" "+(processedBytes-bytes0)
+				+" pages copied on write: "+(live.getCopiedPages()-copiedPages0);
+		}
+	}
+	/**
+	 * Freeze the current state of the processor. Ingest is blocked only while the frozen copy is created.
+	 * @return read only copy of the current state
+	 */
+	private synchronized EntryProcessor freeze() {
+		return selected.entryProcessor.freeze();
 	}
 
 	/**
@@ -396,7 +1239,7 @@ public class Analyze implements Closeable {
 	 * @param string
 	 * @throws IOException
 	 */
-	synchronized private void save(String string) throws IOException {
+	private void save(String string) throws IOException {
 		File f=new File(string);
 		FileOutputStream fos=new FileOutputStream(f);
 		try
@@ -409,35 +1252,155 @@ public class Analyze implements Closeable {
 			fos.close();
 		}
 	}
+	/**
+	 * Write the allocation rate time series of the selected stream into a CSV file.
+	 * @param string file name
+	 * @throws IOException
+	 */
+	private void saveRateCsv(String string) throws IOException {
+		EntryProcessor frozen=freeze();
+		try(FileOutputStream fos=new FileOutputStream(new File(string)))
+		{
+			PrintStream ps=new PrintStream(fos, false, "UTF-8");
+			frozen.writeRateCsv(ps);
+			ps.flush();
+		}
+	}
+	/**
+	 * Print the current state of the processor. The state is frozen first so ingest is not blocked while printing.
+	 * @param ps
+	 */
 	private void processOutput(PrintStream ps) {
-		ps.println("Processed bytes: "+processedBytes);
-		entryProcessor.processOutput(ps);
+		EntryProcessor frozen=freeze();
+		ps.println("Processed bytes: "+selected.processedBytes);
+		if(lastSnapshotMetrics!=null)
+		{
+			ps.println("Last "+lastSnapshotMetrics);
+		}
+		frozen.processOutput(ps);
 	}
 
 	/**
 	 * Print the current state of the processor.
 	 */
-	private synchronized void print() {
+	private void print() {
 		processOutput(System.out);
 	}
 	/**
 	 * Reset the current state of the processor. Forgets all events that are logged up to now.
 	 */
 	private synchronized void reset() {
-		entryProcessor = new EntryProcessor();
+		selected.reset();
 		System.out.println("Entry processor reset");
 	}
+	/**
+	 * Freeze the processors of all PIDs of the selected stream.
+	 * @return read only copies of the processors by PID. The first one is the processor of the first PID.
+	 */
+	private synchronized Map<Long, EntryProcessor> freezePids() {
+		Map<Long, EntryProcessor> ret=new LinkedHashMap<Long, EntryProcessor>();
+		ret.put(selected.entryProcessor.getPid(), selected.entryProcessor.freeze());
+		for(Map.Entry<Long, EntryProcessor> e: selected.pidProcessors.entrySet())
+		{
+			ret.put(e.getKey(), e.getValue().freeze());
+		}
+		return ret;
+	}
+	/**
+	 * Print the summary of each PID of the selected stream and the top allocators aggregated over all PIDs.
+	 * @param out
+	 * @param n number of top allocators to print
+	 */
+	private void printPids(PrintStream out, int n) {
+		Map<Long, EntryProcessor> pids=freezePids();
+		for(Map.Entry<Long, EntryProcessor> e: pids.entrySet())
+		{
+			e.getValue().printSummary(out, "PID "+e.getKey());
+		}
+		EntryProcessor all=EntryProcessor.aggregate(stacks, new ArrayList<EntryProcessor>(pids.values()));
+		all.printSummary(out, "All PIDs");
+		out.println("Top allocators of all PIDs:");
+		all.printTop(out, n);
+	}
+	/**
+	 * Print the state of a single PID of the selected stream.
+	 * @param pid
+	 */
+	private void printPid(long pid) {
+		EntryProcessor p=freezePids().get(pid);
+		if(p==null)
+		{
+			System.out.println("No entries of PID "+pid+" (per PID mode is "+(perPid?"on":"off")+")");
+			return;
+		}
+		p.processOutput(System.out);
+	}
+	/**
+	 * Print all input streams. The selected stream is marked with '*'.
+	 * @param out
+	 */
+	private synchronized void printStreams(PrintStream out) {
+		for(LogStream s: streams)
+		{
+			ProcessMaps h=s.getHeader();
+			out.println((s==selected?" * ":"   ")+s.id+" "+s.getName()+(h!=null && h.getExe()!=null?" exe: "+h.getExe()+" PID: "+h.getPid():"")+" open: "+s.isOpen()
+				+" bytes: "+s.getProcessedBytes()+" entries: "+s.getProcessedEntries()
+				+" allocations: "+s.entryProcessor.getNumberOfAllocations());
+		}
+	}
+	/**
+	 * Select the stream that the print, save, snapshot, top and reset commands are applied to.
+	 * @param id
+	 */
+	private synchronized void select(int id) {
+		if(id<0 || id>=streams.size())
+		{
+			System.out.println("No such stream: "+id);
+			return;
+		}
+		selected=streams.get(id);
+		System.out.println("Selected stream: "+selected.id+" "+selected.getName());
+	}
 	/**
 	 * Print possible commands to the user.
 	 * @param out
 	 */
 	private static void printCommands(PrintStream out) {
-		out.println(" * off - turn analyzer off while the application is setting up (to spare CPU cycles when analysation is not required - eg initialization of the program)");
+		out.println(" * off - turn analyzer off while the application is setting up (to spare CPU cycles when analysation is not required - eg initialization of the program). Only the address and size of the allocated blocks are tracked so their frees are not reported after on");
 		out.println(" * on - turn analyzer on when the critical session is started (default is on)");
 		out.println(" * (reset - clear all log entries cached by the analyzer)");
+		out.println(" * streams - list all input streams (TCP connections) with their processing counters");
+		out.println(" * select <id> - select the stream that print, save, snapshot, top and reset are applied to (default is stream 0)");
 		out.println(" * print - print current allocation status (since last reset/on) to stdout");
+		out.println(" * print <pid> - print current allocation status of a single PID (in per PID mode)");
+		out.println(" * pids [n] - print summary of each PID and the n (default 20) top allocators of all PIDs together (in per PID mode)");
 		out.println(" * save <filename> - print current allocation status (since last reset/on) to file");
-		out.println(" * snapshot <filename> - save all current stored allocations into a file");
+		out.println(" * top [n] [bytes|count] - print the n (default 20) allocators holding the most memory (or blocks) with their allocation counters");
+		out.println(" * filter frame=<substring> [mindepth=<d>] [maxdepth=<d>] [n] [bytes|count] - print the n (default 20) allocators holding the most memory (or blocks) in the not freed blocks that have a frame containing the substring between the depths (0 is the allocator key)");
+		out.println(" * group by frame <k> [n] [bytes|count] [filter] - print the n (default 20) frames at depth k of the stack traces of the not freed blocks holding the most memory (or blocks)");
+		out.println(" * threads [n] - print the n (default 20) threads with the highest allocation rate and the n threads holding the most memory");
+		out.println(" * rate [seconds] - print the allocation and free rate of the last seconds (default 60, at most 600) by second and the allocators with the highest allocation rate");
+		out.println(" * ratecsv <filename> - save the allocation rate time series (by second, globally and by allocator) of the last 10 minutes into a CSV file");
+		out.println(" * churn [n] [records] - print the n (default 20) allocators with the most blocks freed within the given number of log records (default 1000) after allocation with their lifetime histograms");
+		out.println(" * anomalies [n] - print the number of anomalies (free without allocation, memory freed twice, etc.) by kind with the n (default 10) allocators having the most of them and the last example");
+		out.println(" * checkpoint [filename] - write the state of stream 0 into the checkpoint file now (default is the --checkpoint file)");
+		out.println(" * index <filename> - open the index of a recorded log for the history and sites commands (see --buildIndex)");
+		out.println(" * history <address> [n] - print the last n (default 10) allocations and frees of the address found in the index of the recorded log with their stack traces");
+		out.println(" * sites <allocator> - print the number and the last 10 allocations of the allocator (the key or a unique part of it) found in the index of the recorded log");
+		out.println(" * snapshot <filename> - save all current stored allocations into a file (written in the background while processing goes on)");
+		out.println(" * bsnapshot <filename> - same as snapshot but in compact binary format (compare mode detects the format)");
+	}
+	/**
+	 * @return number of entries processed from all streams since start
+	 */
+	public long getProcessedEntries() {
+		return processedEntries;
+	}
+	/**
+	 * @return number of bytes read from all streams since start
+	 */
+	public long getProcessedBytes() {
+		return processedBytes;
 	}
 	@Override
 	public void close() {
@@ -0,0 +1,174 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Counters of the inconsistencies found in the log stream (frees without allocation etc.) by kind and by
+ * allocator key. Counting is O(1) and creates no object so anomalies do not slow down processing.
+ *
+ * Examples are rate limited: {@link #add(Kind, int, long)} allows at most the configured number of examples of each
+ * kind per second (and always the first one) so the text of the entry is only built for a few of them.
+ * Counters by key are indexed by the frame id of the allocator key +1 like in {@link AllocatorStats}.
+ */
+public class AnomalyStats {
+	public static final int DEFAULT_EXAMPLES_PER_SECOND=10;
+	public enum Kind
+	{
+		freeWithoutAllocation("Free without allocation"),
+		reallocationWithoutFree("Reallocation without free"),
+		sizesNotEqual("Sizes not equal"),
+		freedTwice("Memory freed twice"),
+		unknownEntry("Unknown entry");
+		private final String title;
+		private Kind(String title) {
+			this.title=title;
+		}
+		public String getTitle() {
+			return title;
+		}
+	}
+	private static final Kind[] KINDS=Kind.values();
+	private long[] counts=new long[KINDS.length];
+	private long[][] keyCounts=new long[KINDS.length][0];
+	/**
+	 * The last example of each kind.
+	 */
+	private String[] examples=new String[KINDS.length];
+	private int examplesPerSecond=DEFAULT_EXAMPLES_PER_SECOND;
+	/**
+	 * Second (currentTimeMillis/1000) of the rate limit window and the number of examples of each kind in it.
+	 */
+	private long second;
+	private int[] examplesInSecond=new int[KINDS.length];
+	/**
+	 * @param examplesPerSecond maximum number of examples of each kind per second. 0 means that only the first
+	 * example is kept.
+	 */
+	public void setExamplesPerSecond(int examplesPerSecond) {
+		this.examplesPerSecond=examplesPerSecond;
+	}
+	public int getExamplesPerSecond() {
+		return examplesPerSecond;
+	}
+	/**
+	 * Count an anomaly.
+	 * @param kind
+	 * @param key frame id of the allocator key of the anomaly
+	 * @param now current time in millis
+	 * @return true means that an example should be created and stored by {@link #setExample(Kind, String)}
+	 */
+	public boolean add(Kind kind, int key, long now)
+	{
+		int k=kind.ordinal();
+		counts[k]++;
+		int i=key+1;
+		if(i>=keyCounts[k].length)
+		{
+			keyCounts[k]=Arrays.copyOf(keyCounts[k], Math.max(i+1, keyCounts[k].length*2));
+		}
+		keyCounts[k][i]++;
+		if(examples[k]==null)
+		{
+			return true;
+		}
+		long s=now/1000;
+		if(s!=second)
+		{
+			second=s;
+			Arrays.fill(examplesInSecond, 0);
+		}
+		if(examplesInSecond[k]<examplesPerSecond)
+		{
+			examplesInSecond[k]++;
+			return true;
+		}
+		return false;
+	}
+	public void setExample(Kind kind, String example)
+	{
+		examples[kind.ordinal()]=example;
+	}
+	/**
+	 * @return a copy of the current state of the counters.
+	 */
+	public AnomalyStats copy()
+	{
+		AnomalyStats ret=new AnomalyStats();
+		ret.counts=counts.clone();
+		for(int k=0;k<KINDS.length;++k)
+		{
+			ret.keyCounts[k]=keyCounts[k].clone();
+		}
+		ret.examples=examples.clone();
+		ret.examplesPerSecond=examplesPerSecond;
+		return ret;
+	}
+	/**
+	 * Add the counters of the other object to this one.
+	 * @param o
+	 */
+	public void add(AnomalyStats o)
+	{
+		for(int k=0;k<KINDS.length;++k)
+		{
+			counts[k]+=o.counts[k];
+			long[] a=o.keyCounts[k];
+			if(keyCounts[k].length<a.length)
+			{
+				keyCounts[k]=Arrays.copyOf(keyCounts[k], a.length);
+			}
+			for(int i=0;i<a.length;++i)
+			{
+				keyCounts[k][i]+=a[i];
+			}
+			if(examples[k]==null)
+			{
+				examples[k]=o.examples[k];
+			}
+		}
+	}
+	/**
+	 * @return the number of all anomalies
+	 */
+	public long getTotal()
+	{
+		long ret=0;
+		for(long c: counts)
+		{
+			ret+=c;
+		}
+		return ret;
+	}
+	public long getCount(Kind kind)
+	{
+		return counts[kind.ordinal()];
+	}
+	public long getCount(Kind kind, int key)
+	{
+		long[] a=keyCounts[kind.ordinal()];
+		int i=key+1;
+		return i<a.length?a[i]:0;
+	}
+	/**
+	 * @param kind
+	 * @param n maximum number of keys returned
+	 * @return the allocator keys with the most anomalies of the kind in decreasing order
+	 */
+	public int[] getTopKeys(Kind kind, int n)
+	{
+		int[] ret=AllocatorStats.topIndexes(keyCounts[kind.ordinal()], n);
+		for(int i=0;i<ret.length;++i)
+		{
+			ret[i]--;
+		}
+		return ret;
+	}
+	/**
+	 * @param kind
+	 * @return the last example of the kind or null if there was none
+	 */
+	public String getExample(Kind kind)
+	{
+		return examples[kind.ordinal()];
+	}
+}
@@ -0,0 +1,433 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary format of snapshots of the stored allocations. Much smaller and faster to load than the textual
+ * snapshot that repeats the whole stack trace for each allocation.
+ *
+ * Layout (all numbers are unsigned LEB128 varints):
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>frames: count, then for each frame: length and UTF-8 bytes</li>
+ * <li>stacks: count, then for each stack: number of frames and the frame indexes</li>
+ * <li>titles: count, then for each title: length and UTF-8 bytes</li>
+ * <li>allocations: count, then for each allocation ordered by address: address difference to the previous allocation,
+ * size, pid, tid, title index and stack index</li>
+ * </ul>
+ * Only frames and stacks that are referenced by the allocations are written and they are renumbered.
+ */
+public class BinarySnapshot {
+	/**
+	 * First bytes of a binary snapshot. Textual logs and snapshots never start with these bytes.
+	 */
+	public static final byte[] MAGIC="LMSBSNP1".getBytes(StandardCharsets.US_ASCII);
+	private static final int BUFFER_SIZE=1024*1024;
+	/**
+	 * Maximum number of bytes of an encoded allocation record.
+	 */
+	private static final int MAX_RECORD_SIZE=6*10;
+	private BinarySnapshot() {
+	}
+	/**
+	 * @param prefix first bytes of a stream
+	 * @param n number of valid bytes in prefix
+	 * @return true if the stream is a binary snapshot
+	 */
+	public static boolean isBinarySnapshot(byte[] prefix, int n)
+	{
+		if(n<MAGIC.length)
+		{
+			return false;
+		}
+		for(int i=0;i<MAGIC.length;++i)
+		{
+			if(prefix[i]!=MAGIC[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	/**
+	 * Write all allocations of the table into the output ordered by address.
+	 * @param allocations
+	 * @param stacks dictionary that resolves the stack ids of the table
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void write(AllocationTable allocations, StackDictionary stacks, OutputStream out) throws IOException
+	{
+		Writer w=new Writer(out);
+		w.bytes(MAGIC);
+		write(allocations, stacks, w);
+		w.flush();
+	}
+	/**
+	 * Write the sections (dictionaries and allocations) of the table without the {@link #MAGIC} bytes.
+	 * Used to embed allocation tables into other formats, see {@link Checkpoint}.
+	 */
+	static void write(AllocationTable allocations, StackDictionary stacks, Writer w) throws IOException
+	{
+		int[] slots=allocations.getSlotsOrderedByAddress();
+		// Renumber the referenced stacks, frames and titles
+		int[] stackMap=new int[stacks.size()];
+		Arrays.fill(stackMap, -1);
+		int[] usedStacks=new int[16];
+		int nStacks=0;
+		int[] frameMap=new int[stacks.getFrameCount()];
+		Arrays.fill(frameMap, -1);
+		int[] usedFrames=new int[16];
+		int nFrames=0;
+		String[] titles=new String[16];
+		int nTitles=0;
+		int[] recordStacks=new int[slots.length];
+		byte[] recordTitles=new byte[slots.length];
+		for(int i=0;i<slots.length;++i)
+		{
+			int stack=allocations.getStack(slots[i]);
+			if(stackMap[stack]<0)
+			{
+				if(nStacks==usedStacks.length)
+				{
+					usedStacks=Arrays.copyOf(usedStacks, nStacks*2);
+				}
+				stackMap[stack]=nStacks;
+				usedStacks[nStacks++]=stack;
+				for(int f: stacks.getStackFrames(stack))
+				{
+					if(frameMap[f]<0)
+					{
+						if(nFrames==usedFrames.length)
+						{
+							usedFrames=Arrays.copyOf(usedFrames, nFrames*2);
+						}
+						frameMap[f]=nFrames;
+						usedFrames[nFrames++]=f;
+					}
+				}
+			}
+			recordStacks[i]=stackMap[stack];
+			String title=allocations.getTitle(slots[i]);
+			int t=0;
+			while(t<nTitles && !titles[t].equals(title))
+			{
+				t++;
+			}
+			if(t==nTitles)
+			{
+				titles[nTitles++]=title;
+			}
+			recordTitles[i]=(byte)t;
+		}
+		w.varint(nFrames);
+		for(int i=0;i<nFrames;++i)
+		{
+			w.string(stacks.getFrame(usedFrames[i]));
+		}
+		w.varint(nStacks);
+		for(int i=0;i<nStacks;++i)
+		{
+			int[] frames=stacks.getStackFrames(usedStacks[i]);
+			w.varint(frames.length);
+			for(int f: frames)
+			{
+				w.varint(frameMap[f]);
+			}
+		}
+		w.varint(nTitles);
+		for(int i=0;i<nTitles;++i)
+		{
+			w.string(titles[i]);
+		}
+		w.varint(slots.length);
+		long prevAddress=0;
+		for(int i=0;i<slots.length;++i)
+		{
+			int slot=slots[i];
+			long address=allocations.getAddress(slot);
+			w.ensure(MAX_RECORD_SIZE);
+			w.varint(address-prevAddress);
+			w.varint(allocations.getSize(slot));
+			w.varint(allocations.getPid(slot));
+			w.varint(allocations.getTid(slot));
+			w.varint(recordTitles[i]);
+			w.varint(recordStacks[i]);
+			prevAddress=address;
+		}
+	}
+	/**
+	 * Read a binary snapshot and send its allocations to the listener as entries
+	 * with the same data that the textual snapshot would produce.
+	 * @param in channel positioned after the {@link #MAGIC} bytes
+	 * @param stacks frames and stacks of the snapshot are stored into this dictionary
+	 * @param listener receives the allocations
+	 * @throws IOException
+	 */
+	public static void read(ReadableByteChannel in, StackDictionary stacks, IngestPipeline.BatchListener listener) throws IOException
+	{
+		Decoder d=new Decoder(in, stacks);
+		Entry[] batch=new Entry[1024];
+		for(int i=0;i<batch.length;++i)
+		{
+			batch[i]=new Entry(stacks);
+		}
+		int nBatch=0;
+		while(d.next(batch[nBatch]))
+		{
+			nBatch++;
+			if(nBatch==batch.length)
+			{
+				listener.entriesParsed(batch, nBatch, -1, false);
+				nBatch=0;
+			}
+		}
+		listener.entriesParsed(batch, nBatch, -1, false);
+	}
+	/**
+	 * Decodes the allocations of a binary snapshot one by one.
+	 */
+	public static class Decoder
+	{
+		private final Reader r;
+		private final int[] stackIds;
+		private final String[] titles;
+		private final long n;
+		private long i;
+		private long address;
+		/**
+		 * Read the dictionary sections of the snapshot.
+		 * @param in channel positioned after the {@link #MAGIC} bytes
+		 * @param stacks frames and stacks of the snapshot are stored into this dictionary
+		 * @throws IOException
+		 */
+		public Decoder(ReadableByteChannel in, StackDictionary stacks) throws IOException {
+			this(new Reader(in), stacks);
+		}
+		/**
+		 * Read the dictionary sections of an embedded table, see {@link BinarySnapshot#write(AllocationTable, StackDictionary, Writer)}.
+		 * @param r reader positioned at the start of the sections
+		 * @param stacks frames and stacks of the snapshot are stored into this dictionary
+		 * @throws IOException
+		 */
+		Decoder(Reader r, StackDictionary stacks) throws IOException {
+			this.r=r;
+			int nFrames=(int)r.varint();
+			int[] frameIds=new int[nFrames];
+			for(int i=0;i<nFrames;++i)
+			{
+				int l=(int)r.varint();
+				r.ensure(l);
+				frameIds[i]=stacks.internFrame(r.buf.array(), r.buf.position(), r.buf.position()+l);
+				r.buf.position(r.buf.position()+l);
+			}
+			int nStacks=(int)r.varint();
+			stackIds=new int[nStacks];
+			int[] frames=new int[16];
+			for(int i=0;i<nStacks;++i)
+			{
+				int n=(int)r.varint();
+				if(n>frames.length)
+				{
+					frames=new int[n];
+				}
+				for(int j=0;j<n;++j)
+				{
+					frames[j]=frameIds[(int)r.varint()];
+				}
+				stackIds[i]=stacks.internStack(frames, n);
+			}
+			int nTitles=(int)r.varint();
+			titles=new String[nTitles];
+			for(int i=0;i<nTitles;++i)
+			{
+				int l=(int)r.varint();
+				r.ensure(l);
+				titles[i]=new String(r.buf.array(), r.buf.position(), l, StandardCharsets.UTF_8).intern();
+				r.buf.position(r.buf.position()+l);
+			}
+			n=r.varint();
+		}
+		/**
+		 * Decode the next allocation into the entry.
+		 * @param e entry that was created with the dictionary of this decoder
+		 * @return false if there are no more allocations (e is unchanged)
+		 * @throws IOException
+		 */
+		public boolean next(Entry e) throws IOException
+		{
+			if(i>=n)
+			{
+				return false;
+			}
+			i++;
+			r.ensure(MAX_RECORD_SIZE);
+			address+=r.varint();
+			long size=r.varint();
+			long pid=r.varint();
+			long tid=r.varint();
+			String title=titles[(int)r.varint()];
+			int stack=stackIds[(int)r.varint()];
+			e.reset();
+			e.setTitle(title);
+			e.setFields(size, address, pid, tid);
+			e.setStack(stack);
+			return true;
+		}
+	}
+	/**
+	 * Buffered writer of varints and strings.
+	 */
+	static class Writer
+	{
+		private final OutputStream out;
+		private final ByteBuffer buf=ByteBuffer.allocate(BUFFER_SIZE);
+		public Writer(OutputStream out) {
+			this.out=out;
+		}
+		void ensure(int n) throws IOException
+		{
+			if(buf.remaining()<n)
+			{
+				flush();
+			}
+		}
+		void flush() throws IOException
+		{
+			out.write(buf.array(), 0, buf.position());
+			buf.clear();
+		}
+		void varint(long v) throws IOException
+		{
+			ensure(10);
+			while((v&~0x7FL)!=0)
+			{
+				buf.put((byte)((v&0x7F)|0x80));
+				v>>>=7;
+			}
+			buf.put((byte)v);
+		}
+		void bytes(byte[] a) throws IOException
+		{
+			if(a.length>buf.capacity())
+			{
+				flush();
+				out.write(a);
+				return;
+			}
+			ensure(a.length);
+			buf.put(a);
+		}
+		void string(String s) throws IOException
+		{
+			byte[] a=s.getBytes(StandardCharsets.UTF_8);
+			varint(a.length);
+			bytes(a);
+		}
+		/**
+		 * Signed value (zigzag encoded varint).
+		 */
+		void svarint(long v) throws IOException
+		{
+			varint((v<<1)^(v>>63));
+		}
+	}
+	/**
+	 * Buffered reader of varints and strings.
+	 */
+	static class Reader
+	{
+		private final ReadableByteChannel in;
+		private ByteBuffer buf=ByteBuffer.allocate(BUFFER_SIZE);
+		private boolean eof;
+		public Reader(ReadableByteChannel in) {
+			this.in=in;
+			buf.flip();
+		}
+		/**
+		 * Make at least n bytes available in the buffer (or all remaining bytes of the stream).
+		 */
+		void ensure(int n) throws IOException
+		{
+			if(buf.remaining()>=n || eof)
+			{
+				return;
+			}
+			if(n>buf.capacity())
+			{
+				ByteBuffer b=ByteBuffer.allocate(n);
+				b.put(buf);
+				b.flip();
+				buf=b;
+			}
+			buf.compact();
+			while(buf.position()<n)
+			{
+				if(in.read(buf)<0)
+				{
+					eof=true;
+					break;
+				}
+			}
+			buf.flip();
+		}
+		long varint() throws IOException
+		{
+			ensure(10);
+			long ret=0;
+			int shift=0;
+			while(true)
+			{
+				if(!buf.hasRemaining())
+				{
+					throw new EOFException("Unexpected end of binary snapshot");
+				}
+				byte b=buf.get();
+				ret|=((long)(b&0x7F))<<shift;
+				if(b>=0)
+				{
+					return ret;
+				}
+				shift+=7;
+			}
+		}
+		long svarint() throws IOException
+		{
+			long v=varint();
+			return (v>>>1)^-(v&1);
+		}
+		String string() throws IOException
+		{
+			int l=(int)varint();
+			ensure(l);
+			if(buf.remaining()<l)
+			{
+				throw new EOFException("Unexpected end of binary snapshot");
+			}
+			String ret=new String(buf.array(), buf.position(), l, StandardCharsets.UTF_8);
+			buf.position(buf.position()+l);
+			return ret;
+		}
+		/**
+		 * @param a
+		 * @return true if the next bytes are equal to the array. The bytes are consumed in both cases.
+		 */
+		boolean matches(byte[] a) throws IOException
+		{
+			ensure(a.length);
+			boolean ret=buf.remaining()>=a.length;
+			for(int i=0;i<a.length && ret;++i)
+			{
+				ret=buf.get(buf.position()+i)==a[i];
+			}
+			buf.position(buf.position()+Math.min(a.length, buf.remaining()));
+			return ret;
+		}
+	}
+}
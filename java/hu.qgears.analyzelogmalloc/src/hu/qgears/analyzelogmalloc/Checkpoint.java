@@ -0,0 +1,94 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Durable copy of the state of the processor of a stream so that a long analysis session can be continued
+ * after the analyser was restarted without processing the whole recorded log again.
+ * The checkpoint stores the offset in the stream (the tee file) up to which the entries were processed:
+ * the rest of the log is processed after the checkpoint was loaded.
+ *
+ * The file is written sequentially in one pass with the encoding of the {@link BinarySnapshot}
+ * (all numbers are LEB128 varints, signed ones zigzag encoded):
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>stream offset of the end of the last processed entry</li>
+ * <li>state of the processor, see {@link EntryProcessor#writeCheckpoint(BinarySnapshot.Writer)}</li>
+ * <li>{@link #MAGIC} again to mark the complete file</li>
+ * </ul>
+ * The new checkpoint is written into a temporary file that is synced to disk then moved over the previous one
+ * so a crash while writing never destroys the last complete checkpoint.
+ * The size of the checkpoint depends on the number of stored allocations and not on the length of the session.
+ */
+public class Checkpoint {
+	/**
+	 * First and last bytes of a checkpoint.
+	 */
+	public static final byte[] MAGIC="LMSCKPT1".getBytes(StandardCharsets.US_ASCII);
+	private final long offset;
+	/**
+	 * @param offset offset of the end of the last processed entry in the stream
+	 */
+	public Checkpoint(long offset) {
+		this.offset=offset;
+	}
+	/**
+	 * Write the checkpoint file.
+	 * @param f
+	 * @param frozen copy of the processor created by {@link EntryProcessor#freezeForCheckpoint()}
+	 * @throws IOException
+	 */
+	public void write(File f, EntryProcessor frozen) throws IOException
+	{
+		File tmp=new File(f.getPath()+".tmp");
+		try(FileOutputStream fos=new FileOutputStream(tmp))
+		{
+			BinarySnapshot.Writer w=new BinarySnapshot.Writer(fos);
+			w.bytes(MAGIC);
+			w.varint(offset);
+			frozen.writeCheckpoint(w);
+			w.bytes(MAGIC);
+			w.flush();
+			fos.getFD().sync();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	/**
+	 * Load a checkpoint file.
+	 * @param f
+	 * @param target empty processor that receives the state stored in the checkpoint
+	 * @return the stream position of the checkpoint
+	 * @throws IOException in case the file can not be read or it is not a complete checkpoint
+	 */
+	public static Checkpoint read(File f, EntryProcessor target) throws IOException
+	{
+		try(FileInputStream fis=new FileInputStream(f))
+		{
+			BinarySnapshot.Reader r=new BinarySnapshot.Reader(fis.getChannel());
+			if(!r.matches(MAGIC))
+			{
+				throw new StreamCorruptedException("Not a checkpoint file: "+f.getAbsolutePath());
+			}
+			Checkpoint ret=new Checkpoint(r.varint());
+			target.readCheckpoint(r);
+			if(!r.matches(MAGIC))
+			{
+				throw new StreamCorruptedException("Incomplete checkpoint file: "+f.getAbsolutePath());
+			}
+			return ret;
+		}
+	}
+	/**
+	 * @return offset of the end of the last processed entry in the stream (the tee file)
+	 */
+	public long getOffset() {
+		return offset;
+	}
+}
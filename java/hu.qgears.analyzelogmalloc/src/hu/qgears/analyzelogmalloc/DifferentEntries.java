@@ -2,7 +2,9 @@ package hu.qgears.analyzelogmalloc;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class DifferentEntries implements Comparable<DifferentEntries>{
 	public long diffNum=0;
@@ -10,11 +12,60 @@ public class DifferentEntries implements Comparable<DifferentEntries>{
 	public String key;
 	public List<Entry> freed=new ArrayList<Entry>();
 	public List<Entry> allocated=new ArrayList<Entry>();
+	/**
+	 * Sizes of the new and the freed blocks of the allocator.
+	 */
+	public SizeHistogram allocatedSizes=new SizeHistogram();
+	public SizeHistogram freedSizes=new SizeHistogram();
 	@Override
 	public int compareTo(DifferentEntries o) {
 		return key.compareTo(o.key);
 		// return Long.compare(o.diffSize, diffSize);
 	}
+	/**
+	 * @return number of new allocations of this allocator
+	 */
+	public long getAllocatedCount()
+	{
+		return allocated.size();
+	}
+	/**
+	 * @return number of new allocations by their stack trace printed with blurred pointer
+	 */
+	public Map<String, Integer> getAllocatedStacks()
+	{
+		Map<String, Integer> ret=new HashMap<>();
+		for(Entry e: allocated)
+		{
+			incStack(ret, e.printToWholePointerBlurred());
+		}
+		return ret;
+	}
+	protected static void incStack(Map<String, Integer> stacks, String stack) {
+		Integer v=stacks.get(stack);
+		if(v==null)
+		{
+			stacks.put(stack, 1);
+		}else
+		{
+			stacks.put(stack, v+1);
+		}
+	}
+	/**
+	 * Print the size histogram summary of the new and the freed blocks.
+	 * @param out
+	 */
+	public void printSizes(PrintStream out)
+	{
+		if(allocatedSizes.getCount()>0)
+		{
+			out.println("\tsizes new: "+allocatedSizes);
+		}
+		if(freedSizes.getCount()>0)
+		{
+			out.println("\tsizes freed: "+freedSizes);
+		}
+	}
 	public void printFirst(PrintStream out)
 	{
 		if(allocated.size()>0)
@@ -2,6 +2,7 @@ package hu.qgears.analyzelogmalloc;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import hu.qgears.commons.UtilString;
@@ -19,6 +20,10 @@ public class Entry {
 	 * The first line of the entry.
 	 */
 	private String startLine;
+	/**
+	 * The entry header was set (either by {@link #setStartLine(String)} or by {@link LogParser}).
+	 */
+	private boolean filled=false;
 	/**
 	 * The address of allocated memory as a hexa string (eg. 0xabce1234)
 	 */
@@ -48,73 +53,136 @@ public class Entry {
 	 */
 	private long pid;
 	/**
-	 * Thread id TODO implement
+	 * Thread id of the allocating thread.
 	 */
 	private long tid;
 	/**
-	 * Allocator key is the method entry on the stack trace that has called the allocator.
+	 * Sequence number of the entry within its stream: monotonic, assigned when the entry is processed.
+	 */
+	private long seq;
+	/**
+	 * Time when the data of the entry was received (System.nanoTime()). 0 means unknown.
+	 */
+	private long receiveNanos;
+	/**
+	 * Dictionary that resolves the frame and stack ids of this entry.
+	 */
+	private final StackDictionary stacks;
+	/**
+	 * Additional lines in the log entry (stack trace) as frame ids of the dictionary.
+	 * The first frame is the allocator key: the method entry on the stack trace that has called the allocator.
+	 */
+	private int[] frames=NO_FRAMES;
+	private int nFrames;
+	/**
+	 * The frames array is shared with the dictionary and must be copied before modification.
 	 */
-	private String allocatorKey;
+	private boolean framesShared;
 	/**
-	 * Additional lines in the log entry (stack trace)
+	 * Id of the stack trace in the dictionary. -1 means not interned yet.
 	 */
-	private List<String> lines=new ArrayList<String>();
+	private int stackId=-1;
+	private static final int[] NO_FRAMES=new int[0];
+	/**
+	 * Create an entry with a private stack dictionary.
+	 */
+	public Entry() {
+		this(new StackDictionary());
+	}
+	/**
+	 * Create an entry that stores its stack trace in the given dictionary.
+	 * @param stacks
+	 */
+	public Entry(StackDictionary stacks) {
+		this.stacks=stacks;
+	}
+	/**
+	 * Clear all data of the entry so the object can be reused for the next entry of the log stream.
+	 */
+	void reset() {
+		startLine=null;
+		filled=false;
+		address=0;
+		title=null;
+		known=false;
+		allocation=false;
+		free=false;
+		size=0;
+		pid=0;
+		tid=0;
+		seq=0;
+		receiveNanos=0;
+		if(framesShared)
+		{
+			frames=NO_FRAMES;
+			framesShared=false;
+		}
+		nFrames=0;
+		stackId=-1;
+	}
 	/**
 	 * The first line of the log entry tells what we are doing.
 	 * @param line
 	 */
 	public void setStartLine(String line) {
 		this.startLine=line;
+		filled=true;
 		try {
 			List<String> pieces=UtilString.split(startLine, " ");
-			title=pieces.get(1);
-			switch (title) {
-			case "calloc":
-				allocation=true;
-				known=true;
-				parseFields(pieces);
-				break;
-			case "free":
-				known=true;
-				parseFields(pieces);
-				free=true;
-				break;
-			case "malloc":
-				allocation=true;
-				known=true;
-				parseFields(pieces);
-				break;
-			case "realloc_alloc":
-				known=true;
-				parseFields(pieces);
-				allocation=true;
-				break;
-			case "realloc_free":
-				known=true;
-				parseFields(pieces);
-				free=true;
-				break;
-			case "posix_memalign":
-				known=true;
+			if(setTitle(pieces.get(1)))
+			{
 				parseFields(pieces);
-				allocation=true;
-				break;
-			case "INIT":
-				// Nothing to do but no error log
-				known=true;
-				break;
-			case "FINI":
-				// Nothing to do but no error log
-				known=true;
-				break;
-			default:
-				break;
 			}
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
+	/**
+	 * Set the title (the method called) of the entry and the flags that depend on the title.
+	 * @param title
+	 * @return true means that the entry type has size, address and pid fields
+	 */
+	boolean setTitle(String title)
+	{
+		this.title=title;
+		filled=true;
+		switch (title) {
+		case "calloc":
+		case "malloc":
+		case "realloc_alloc":
+		case "posix_memalign":
+			allocation=true;
+			known=true;
+			return true;
+		case "free":
+		case "realloc_free":
+			free=true;
+			known=true;
+			return true;
+		case "INIT":
+			// Nothing to do but no error log
+			known=true;
+			return false;
+		case "FINI":
+			// Nothing to do but no error log
+			known=true;
+			return false;
+		default:
+			return false;
+		}
+	}
+	/**
+	 * Set the numeric fields of the header that were already parsed by {@link LogParser}.
+	 * The start line of the entry is created from these fields when it is first queried.
+	 */
+	void setFields(long size, long address, long pid, long tid)
+	{
+		this.size=size;
+		this.address=address;
+		this.pid=pid;
+		this.tid=tid;
+	}
 	private void parseFields(List<String> pieces) {
 		try {
 			String a=pieces.get(3);
@@ -135,15 +203,23 @@ public class Entry {
 		} catch (Exception e) {
 			System.err.println("Pid parse error:"+pidField+" "+e);
 		}
+		if(pieces.size()>5)
+		{
+			try {
+				tid=Long.parseLong(pieces.get(5));
+			} catch (Exception e) {
+				System.err.println("Tid parse error:"+pieces.get(5)+" "+e);
+			}
+		}
 		size=Long.parseLong(pieces.get(2));
 	}
 	@Override
 	public String toString() {
-		return ""+startLine+"\n"+linesToString();
+		return ""+getStartLine()+"\n"+linesToString();
 	}
 	private String linesToString()
 	{
-		return UtilString.concat(lines, "\n\t", "\n\t", "\n");
+		return UtilString.concat(getLines(), "\n\t", "\n\t", "\n");
 	}
 	/**
 	 * True means that this entry object is initialized with data.
@@ -151,7 +227,7 @@ public class Entry {
 	 */
 	public boolean isFilled()
 	{
-		return startLine!=null;
+		return filled;
 	}
 	public boolean isKnown() {
 		return known;
@@ -173,20 +249,98 @@ public class Entry {
 	 * @param line
 	 */
 	public void addLine(String line) {
-		if(lines.size()==0)
+		addFrame(stacks.internFrame(line));
+	}
+	/**
+	 * Add a line of the stack trace that is already stored in the dictionary.
+	 * @param frameId
+	 */
+	void addFrame(int frameId) {
+		if(framesShared || nFrames==frames.length)
 		{
-			allocatorKey=line;
+			frames=Arrays.copyOf(frames, Math.max(nFrames*2, 16));
+			framesShared=false;
 		}
-		lines.add(line);
+		frames[nFrames++]=frameId;
+		stackId=-1;
+	}
+	/**
+	 * Set the stack trace of the entry to a stack already stored in the dictionary.
+	 * @param stackId
+	 */
+	void setStack(int stackId) {
+		this.stackId=stackId;
+		frames=stacks.getStackFrames(stackId);
+		nFrames=frames.length;
+		framesShared=true;
+	}
+	/**
+	 * @return the id of the stack trace of this entry in the dictionary. The stack is stored in the dictionary
+	 * on the first call.
+	 */
+	public int getStackId() {
+		if(stackId<0)
+		{
+			stackId=stacks.internStack(frames, nFrames);
+		}
+		return stackId;
+	}
+	/**
+	 * Set the id of the stack trace in case the frames of the entry were already interned by the caller.
+	 * @param stackId
+	 */
+	void setStackId(int stackId) {
+		this.stackId=stackId;
+	}
+	/**
+	 * @return ids of the frames of the stack trace. Only the first {@link #getFrameCount()} elements are valid.
+	 * The returned array must not be modified.
+	 */
+	int[] getFrames() {
+		return frames;
+	}
+	int getFrameCount() {
+		return nFrames;
+	}
+	public StackDictionary getStackDictionary() {
+		return stacks;
+	}
+	/**
+	 * @return the frame id of the allocator key or {@link StackDictionary#NO_FRAME} in case there is no stack trace
+	 */
+	public int getAllocatorKeyId() {
+		return nFrames>0?frames[0]:StackDictionary.NO_FRAME;
 	}
+	/**
+	 * Allocator key is the method entry on the stack trace that has called the allocator.
+	 * @return text of the allocator key line or null if there is no stack trace
+	 */
 	public String getAllocatorKey() {
-		return allocatorKey;
+		return nFrames>0?stacks.getFrame(frames[0]):null;
 	}
+	/**
+	 * Get the first line of the entry. In case the entry was created by {@link LogParser} then
+	 * the line is built from the parsed fields on first query.
+	 * @return
+	 */
 	public String getStartLine() {
+		if(startLine==null && filled)
+		{
+			startLine="+ "+title+" "+size+" 0x"+Long.toHexString(address)+" "+pid+" "+tid;
+		}
 		return startLine;
 	}
+	/**
+	 * Resolve the text of the stack trace.
+	 * @return new list that contains the lines of the stack trace
+	 */
 	public List<String> getLines() {
-		return lines;
+		List<String> ret=new ArrayList<String>(nFrames);
+		for(int i=0;i<nFrames;++i)
+		{
+			ret.add(stacks.getFrame(frames[i]));
+		}
+		return ret;
 	}
 	public String printToWhole()
 	{
@@ -216,14 +370,28 @@ public class Entry {
 	public long getPid() {
 		return pid;
 	}
+	public String getTitle() {
+		return title;
+	}
+	public long getTid() {
+		return tid;
+	}
+	public long getSeq() {
+		return seq;
+	}
+	public void setSeq(long seq) {
+		this.seq=seq;
+	}
+	public long getReceiveNanos() {
+		return receiveNanos;
+	}
+	public void setReceiveNanos(long receiveNanos) {
+		this.receiveNanos=receiveNanos;
+	}
 	public boolean containsPattern(String p) {
-		if(allocatorKey.contains(p))
-		{
-			return true;
-		}
-		for(String l: lines)
+		for(int i=0;i<nFrames;++i)
 		{
-			if(l.contains(p))
+			if(stacks.getFrame(frames[i]).contains(p))
 			{
 				return true;
 			}
@@ -1,12 +1,16 @@
 package hu.qgears.analyzelogmalloc;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -16,7 +20,7 @@ import java.util.Set;
 import java.util.TreeMap;
 
 import hu.qgears.analyzelogmalloc.Analyze.Args;
-import hu.qgears.commons.MultiMapHashImpl;
+import hu.qgears.analyzelogmalloc.AnomalyStats.Kind;
 
 /**
  * Processes entries from the log stream by finding allocation/free pairs and summarizing
@@ -26,11 +30,15 @@ public class EntryProcessor {
 	/**
 	 * New entries that were allocated while this analyser was on.
 	 */
-	private Map<Long, Entry> allocations = new TreeMap<Long, Entry>();
+	private AllocationTable allocations = new AllocationTable();
 	/**
 	 * Free entries that correspond to objects that were allocated before reset or when analyser was off.
 	 */
-	private Map<Long, Entry> beforeAllocations = new TreeMap<Long, Entry>();
+	private AllocationTable beforeAllocations = new AllocationTable();
+	/**
+	 * Stack traces of the stored entries.
+	 */
+	private final StackDictionary stacks;
 	/**
 	 * Timestamp of the first entry processed.
 	 */
@@ -42,13 +50,191 @@ public class EntryProcessor {
 	private long matchingSum;
 	private long pid;
 	/**
-	 * All entries stored currently.
+	 * Counters of the allocations by allocator key. Updated with each processed entry.
 	 */
-	public static class Entries
-	{
-		long sum;
-		String key;
-		List<Entry> entries;
+	private AllocatorStats stats=new AllocatorStats();
+	/**
+	 * Counters of the allocations by thread. Updated with each processed entry.
+	 */
+	private ThreadStats threads=new ThreadStats();
+	/**
+	 * Allocation rate time series globally and by allocator key.
+	 */
+	private RateSeries rates=new RateSeries();
+	/**
+	 * Lifetimes of the freed blocks by allocator key.
+	 */
+	private LifetimeStats lifetimes=new LifetimeStats();
+	/**
+	 * In sampling mode only the sampled allocations keep their stack trace. null means that all are kept.
+	 */
+	private final Sampler sampler;
+	/**
+	 * Estimated counters of the allocators in sampling mode.
+	 */
+	private SampledStats sampled=new SampledStats();
+	/**
+	 * Counters of the inconsistencies of the stream by kind and allocator key.
+	 */
+	private AnomalyStats anomalies=new AnomalyStats();
+	/**
+	 * Blocks allocated while the analyser was off (address and size only). Their frees are retired silently
+	 * instead of being reported as frees without allocation. Not copied by {@link #freeze()}.
+	 */
+	private AddressMap offBlocks=new AddressMap();
+	/**
+	 * Number of blocks in {@link #offBlocks}.
+	 */
+	private long offLive;
+	/**
+	 * Frees of blocks allocated while the analyser was off, processed after it was turned on.
+	 */
+	private long retired;
+	private long retiredBytes;
+	/**
+	 * Id of the empty stack trace: the stack of the allocations that are not sampled. -1 until first used.
+	 */
+	private int emptyStack=-1;
+	/**
+	 * Allocator key of each stack id. Local copy of the data in the dictionary that is refreshed when
+	 * a new stack id is found so that no lock is taken for the lookup.
+	 */
+	private int[] stackKeys=new int[0];
+	public EntryProcessor() {
+		this(new StackDictionary());
+	}
+	/**
+	 * @param stacks dictionary of stack traces. May be shared with the parser and with other processors.
+	 */
+	public EntryProcessor(StackDictionary stacks) {
+		this(stacks, null);
+	}
+	/**
+	 * @param stacks dictionary of stack traces. May be shared with the parser and with other processors.
+	 * @param sampler in case it is set then only the stack traces of the sampled allocations are stored,
+	 * all allocations are accounted exactly. See {@link Sampler}.
+	 */
+	public EntryProcessor(StackDictionary stacks, Sampler sampler) {
+		this.stacks=stacks;
+		this.sampler=sampler;
+	}
+	/**
+	 * Create a read only point in time copy of the state of this processor.
+	 * Allocation data is shared with this processor and copied on write so the cost does not depend on the
+	 * number of stored allocations. The copy can be printed on a different thread while this processor is updated.
+	 * @return
+	 */
+	public EntryProcessor freeze() {
+		EntryProcessor ret=new EntryProcessor(stacks, sampler);
+		ret.allocations=allocations.freeze();
+		ret.beforeAllocations=beforeAllocations.freeze();
+		ret.tStart=tStart;
+		ret.balance=balance;
+		ret.beforeBalance=beforeBalance;
+		ret.beforeN=beforeN;
+		ret.matching=matching;
+		ret.matchingSum=matchingSum;
+		ret.pid=pid;
+		ret.stats=stats.copy();
+		ret.threads=threads.copy();
+		ret.rates=rates.copy();
+		ret.lifetimes=lifetimes.copy();
+		ret.sampled=sampled.copy();
+		ret.anomalies=anomalies.copy();
+		ret.offLive=offLive;
+		ret.retired=retired;
+		ret.retiredBytes=retiredBytes;
+		ret.stackKeys=stackKeys;
+		return ret;
+	}
+	/**
+	 * Same as {@link #freeze()} but the blocks allocated while the analyser was off are copied too
+	 * so the copy holds all state that is written into a {@link Checkpoint}.
+	 * @return
+	 */
+	public EntryProcessor freezeForCheckpoint() {
+		EntryProcessor ret=freeze();
+		ret.offBlocks=offBlocks.copy();
+		return ret;
+	}
+	/**
+	 * Create a processor that holds the sum of the counters of the processors (eg. all processes of a process tree).
+	 * The returned processor stores no allocations: it can only be used for {@link #printSummary(PrintStream, String)}
+	 * and {@link #printTop(PrintStream, int)}.
+	 * @param stacks dictionary of the processors
+	 * @param processors
+	 * @return
+	 */
+	public static EntryProcessor aggregate(StackDictionary stacks, List<EntryProcessor> processors) {
+		EntryProcessor ret=new EntryProcessor(stacks, processors.isEmpty()?null:processors.get(0).sampler);
+		for(EntryProcessor p: processors)
+		{
+			if(ret.tStart==0 || (p.tStart!=0 && p.tStart<ret.tStart))
+			{
+				ret.tStart=p.tStart;
+			}
+			ret.balance+=p.balance;
+			ret.beforeBalance+=p.beforeBalance;
+			ret.beforeN+=p.beforeN;
+			ret.matching+=p.matching;
+			ret.matchingSum+=p.matchingSum;
+			ret.stats.add(p.stats);
+			ret.sampled.add(p.sampled);
+			ret.anomalies.add(p.anomalies);
+		}
+		return ret;
+	}
+	/**
+	 * Print a single line summary of the state.
+	 * @param out
+	 * @param name printed at the beginning of the line
+	 */
+	public void printSummary(PrintStream out, String name) {
+		out.println(name+": not freed objects: "+stats.getTotalLiveCount()+" bytes: "+formatMem(stats.getTotalLiveBytes())
+			+" balance: "+formatMem(balance)+" matching alloc/free pairs: "+matching);
+	}
+	/**
+	 * @return the PID of the processed entries. 0 until the first entry was processed.
+	 */
+	public long getPid() {
+		return pid;
+	}
+	public StackDictionary getStackDictionary() {
+		return stacks;
+	}
+	/**
+	 * Create an empty processor with the same settings (dictionary, sampler, anomaly examples) as this one.
+	 * @return
+	 */
+	public EntryProcessor createEmpty() {
+		EntryProcessor ret=new EntryProcessor(stacks, sampler);
+		ret.setAnomalyExamples(anomalies.getExamplesPerSecond());
+		return ret;
+	}
+	/**
+	 * @param perSecond maximum number of examples of each kind of anomaly printed to stderr per second.
+	 * 0 means that anomalies are only counted.
+	 */
+	public void setAnomalyExamples(int perSecond) {
+		anomalies.setExamplesPerSecond(perSecond);
+	}
+	/**
+	 * @return the sampler of the processor or null if all stack traces are stored
+	 */
+	public Sampler getSampler() {
+		return sampler;
+	}
+	/**
+	 * @return number of allocation table pages copied because they were shared with a frozen copy
+	 */
+	public long getCopiedPages() {
+		return allocations.getCopiedPages()+beforeAllocations.getCopiedPages();
+	}
+	/**
+	 * @return number of allocations stored currently
+	 */
+	public int getNumberOfAllocations() {
+		return allocations.size();
 	}
 	public void processOutput(PrintStream out) {
 		out.println("Processing timespan in millis (since first log processed after reset, measured with currentTimeMillis): "+formatMem( (System.currentTimeMillis()-tStart)));
@@ -63,39 +249,360 @@ public class EntryProcessor {
 				+ beforeAllocations.size());
 		out.println("Matching alloc/free pairs through the logging session (n, bytes): " + matching + " "
 				+ formatMem(matchingSum));
-		ProcessedEntries processed=getProcessedEntries();
-		Collections.sort(processed.ess, new Comparator<Entries>() {
-			@Override
-			public int compare(Entries o1, Entries o2) {
-				return (int)(o2.key.compareTo(o1.key));
-			}
-		});
+		if(sampler!=null)
+		{
+			out.println("Sampling: "+sampler+". Stack traces are kept for "
+				+(allocations.size()-stats.getLiveCount(StackDictionary.NO_FRAME))+" not freed objects, the others are listed under allocator null."
+				+" Estimates are given with 95% error bounds.");
+		}
+		if(offLive>0 || retired>0)
+		{
+			out.println("Objects allocated while the analyser was off and freed in log session (n, bytes): "+retired+" "
+				+formatMem(retiredBytes)+" not freed yet: "+offLive);
+		}
+		int[] keys=stats.getLiveKeys();
+		int[] examples=getExampleSlots(keys);
+		List<String> keyStrings=new ArrayList<String>(keys.length);
+		final Map<String, Integer> indexByKey=new HashMap<String, Integer>();
+		for(int i=0;i<keys.length;++i)
+		{
+			String k=getAllocatorKeyString(keys[i]);
+			keyStrings.add(k);
+			indexByKey.put(k, i);
+		}
+		Collections.sort(keyStrings, Collections.reverseOrder());
 		long allSum=0;
-		for(Entries e:processed.ess)
+		for(String k: keyStrings)
 		{
-			out.println("\nallocator: "+e.key+"\n\tN:" + e.entries.size() + " BYTES: "
-				+ formatMem(e.sum)+"\n"+e.entries.get(0).toString());
-			allSum+=e.sum;
+			int i=indexByKey.get(k);
+			long sum=stats.getLiveBytes(keys[i]);
+			out.println("\nallocator: "+k+"\n\tN:" + stats.getLiveCount(keys[i]) + " BYTES: "
+				+ formatMem(sum)+getEstimate(keys[i])+"\n\tsizes: "+stats.getLiveSizes(keys[i])+"\n\tall time sizes: "+stats.getAllSizes(keys[i])
+				+"\n"+allocations.toEntry(examples[i], stacks).toString());
+			allSum+=sum;
 		}
 		
 		out.println("Sum of all allocated but not freed objects within this session: "+allSum);
+		out.println();
+		printThreads(out, 10);
+		if(anomalies.getTotal()>0)
+		{
+			out.println();
+			printAnomalies(out, 10);
+		}
 	}
-	private ProcessedEntries getProcessedEntries() {
-		ProcessedEntries ret=new ProcessedEntries();
-		ret.entriesByAllocator = new MultiMapHashImpl<String, Entry>();
-		for (Entry e : allocations.values()) {
-			// System.out.println(""+e);
-			ret.entriesByAllocator.putSingle(e.getAllocatorKey(), e);
+	/**
+	 * Print the threads that allocate the most (highest allocation rate) and the threads that hold the most memory.
+	 * @param out
+	 * @param n number of threads to print in each list
+	 */
+	public void printThreads(PrintStream out, int n) {
+		long millis=Math.max(1, System.currentTimeMillis()-tStart);
+		out.println("Threads: "+threads.size()+" top threads by allocation rate:");
+		for(int i: threads.getTopByAllocs(n))
+		{
+			printThread(out, i, millis);
+		}
+		out.println("Top threads by not freed bytes:");
+		for(int i: threads.getTopByLiveBytes(n))
+		{
+			printThread(out, i, millis);
 		}
-		for (String key : ret.entriesByAllocator.keySet()) {
-			Entries es=new Entries();
-			es.key=""+key;
-			ret.ess.add(es);
-			es.entries = ret.entriesByAllocator.get(key);
-			for (Entry e : es.entries) {
-				es.sum += e.getSize();
+	}
+	/**
+	 * Print the allocation rate of each time bucket of the window and the allocators with the highest
+	 * allocation rate in the window.
+	 * @param out
+	 * @param windowMillis length of the window that ends now
+	 * @param n number of allocators to print
+	 */
+	public void printRate(PrintStream out, long windowMillis, int n) {
+		long now=System.currentTimeMillis();
+		RateSeries.Bucket[] buckets=rates.getBuckets(now, windowMillis);
+		SimpleDateFormat df=new SimpleDateFormat("HH:mm:ss.SSS");
+		long allocs=0;
+		long allocBytes=0;
+		long frees=0;
+		long freeBytes=0;
+		// Allocations of the window indexed by allocator key+1
+		long[] keyAllocs=new long[0];
+		long[] keyAllocBytes=new long[0];
+		out.println("Time allocs bytes frees bytes (bucket: "+rates.getBucketMillis()+" millis)");
+		for(RateSeries.Bucket b: buckets)
+		{
+			out.println(df.format(new Date(rates.getStartMillis(b)))+" "+b.getAllocs()+" "+formatMem(b.getAllocBytes())
+				+" "+b.getFrees()+" "+formatMem(b.getFreeBytes()));
+			allocs+=b.getAllocs();
+			allocBytes+=b.getAllocBytes();
+			frees+=b.getFrees();
+			freeBytes+=b.getFreeBytes();
+			for(int i=0;i<b.getKeyCount();++i)
+			{
+				int k=b.getKey(i)+1;
+				if(k>=keyAllocs.length)
+				{
+					keyAllocs=Arrays.copyOf(keyAllocs, Math.max(k+1, keyAllocs.length*2));
+					keyAllocBytes=Arrays.copyOf(keyAllocBytes, keyAllocs.length);
+				}
+				keyAllocs[k]+=b.getKeyAllocs(i);
+				keyAllocBytes[k]+=b.getKeyAllocBytes(i);
 			}
 		}
+		double seconds=Math.min(windowMillis, rates.getHistoryMillis())/1000.0;
+		out.println("Average per second in the last "+seconds+" s: allocs: "+formatMem((long)(allocs/seconds))
+			+" bytes: "+formatMem((long)(allocBytes/seconds))+" frees: "+formatMem((long)(frees/seconds))
+			+" bytes: "+formatMem((long)(freeBytes/seconds)));
+		out.println("Top allocators by allocated bytes per second in the window:");
+		for(int k: AllocatorStats.topIndexes(keyAllocBytes, n))
+		{
+			out.println(formatMem((long)(keyAllocBytes[k]/seconds))+" bytes/s "
+				+formatMem((long)(keyAllocs[k]/seconds))+" allocs/s "+getAllocatorKeyString(k-1));
+		}
+	}
+	/**
+	 * Write the whole stored allocation rate time series in CSV format. The rows of the allocators
+	 * follow the global row of each time bucket, the allocator column of the global row is empty.
+	 * @param out
+	 */
+	public void writeRateCsv(PrintStream out) {
+		out.println("time_millis,allocator,allocs,alloc_bytes,frees,free_bytes");
+		for(RateSeries.Bucket b: rates.getBuckets(System.currentTimeMillis(), rates.getHistoryMillis()))
+		{
+			long t=rates.getStartMillis(b);
+			out.println(t+",,"+b.getAllocs()+","+b.getAllocBytes()+","+b.getFrees()+","+b.getFreeBytes());
+			for(int i=0;i<b.getKeyCount();++i)
+			{
+				out.println(t+",\""+getAllocatorKeyString(b.getKey(i)).replace("\"", "\"\"")+"\","+b.getKeyAllocs(i)
+					+","+b.getKeyAllocBytes(i)+","+b.getKeyFrees(i)+","+b.getKeyFreeBytes(i));
+			}
+		}
+	}
+	/**
+	 * Print the allocators that have the most short lived blocks: blocks freed within maxRecords log records
+	 * after their allocation.
+	 * @param out
+	 * @param n number of allocators to print
+	 * @param maxRecords
+	 */
+	public void printChurn(PrintStream out, int n, long maxRecords) {
+		double seconds=Math.max(1, System.currentTimeMillis()-tStart)/1000.0;
+		out.println("Allocators with the most blocks freed within "+maxRecords+" records after allocation (session: "+seconds+" s):");
+		for(int key: lifetimes.getTopByShortLived(n, maxRecords))
+		{
+			out.println("\nallocator: "+getAllocatorKeyString(key)+"\n\tshort lived: "+lifetimes.getShortLived(key, maxRecords)
+				+" of "+lifetimes.getRecords(key).getCount()+" frees, recycled: "+formatMem((long)(lifetimes.getFreedBytes(key)/seconds))+" bytes/s"
+				+"\n\tlifetime (records): "+lifetimes.getRecords(key)+"\n\tlifetime (micros): "+lifetimes.getMicros(key));
+		}
+	}
+	/**
+	 * Print the number of anomalies of each kind, the allocators with the most anomalies and the last example.
+	 * The allocator of a free without allocation is the caller of free.
+	 * @param out
+	 * @param n number of allocators to print for each kind
+	 */
+	public void printAnomalies(PrintStream out, int n) {
+		out.println("Anomalies: "+anomalies.getTotal());
+		for(Kind kind: Kind.values())
+		{
+			long count=anomalies.getCount(kind);
+			if(count==0)
+			{
+				continue;
+			}
+			out.println(kind.getTitle()+": "+count);
+			for(int key: anomalies.getTopKeys(kind, n))
+			{
+				out.println("\t"+anomalies.getCount(kind, key)+" "+getAllocatorKeyString(key));
+			}
+			out.println("\tlast example: "+anomalies.getExample(kind));
+		}
+	}
+	private void printThread(PrintStream out, int i, long millis) {
+		out.println("tid "+threads.getTid(i)+": "+formatMem(threads.getAllocs(i)*1000/millis)+" allocs/s allocs: "+threads.getAllocs(i)
+			+" frees: "+threads.getFrees(i)+" allocated bytes: "+formatMem(threads.getAllocBytes(i))
+			+" not freed: "+threads.getLiveCount(i)+" bytes: "+formatMem(threads.getLiveBytes(i)));
+	}
+	/**
+	 * Print the allocators that hold the most memory. The list is selected from the aggregated counters
+	 * without iterating the stored allocations.
+	 * @param out
+	 * @param n number of allocators to print
+	 */
+	public void printTop(PrintStream out, int n) {
+		printTop(out, n, false);
+	}
+	/**
+	 * Print the allocators that hold the most memory or the most blocks. The list is selected from the aggregated
+	 * counters by a bounded heap without iterating the stored allocations.
+	 * @param out
+	 * @param n number of allocators to print
+	 * @param byCount order by the number of not freed blocks instead of bytes
+	 */
+	public void printTop(PrintStream out, int n, boolean byCount) {
+		if(sampler!=null)
+		{
+			printTopSampled(out, n, byCount);
+			return;
+		}
+		for(int key: byCount?stats.getTopByLiveCount(n):stats.getTopByLiveBytes(n))
+		{
+			out.println(formatMem(stats.getLiveBytes(key))+" bytes in "+stats.getLiveCount(key)+" blocks (allocs: "+stats.getAllocs(key)
+				+" frees: "+stats.getFrees(key)+" peak bytes: "+formatMem(stats.getPeakBytes(key))+") "+getAllocatorKeyString(key));
+		}
+	}
+	/**
+	 * Print the allocators with the most estimated not freed bytes (or blocks) in sampling mode.
+	 */
+	private void printTopSampled(PrintStream out, int n, boolean byCount) {
+		out.println("Estimated from sampled stack traces ("+sampler+", 95% error bounds):");
+		for(int key: byCount?sampled.getTopByLiveCount(n):sampled.getTopByLiveBytes(n))
+		{
+			out.println(formatMem(sampled.getLiveBytes(key))+" +- "+formatMem(sampled.getLiveBytesError(key))+" bytes in "
+				+formatMem(sampled.getLiveCount(key))+" +- "+formatMem(sampled.getLiveCountError(key))+" blocks (sampled blocks: "
+				+stats.getLiveCount(key)+") "+getAllocatorKeyString(key));
+		}
+		int none=StackDictionary.NO_FRAME;
+		out.println("Not sampled: "+formatMem(stats.getLiveBytes(none))+" bytes in "+stats.getLiveCount(none)+" blocks");
+	}
+	/**
+	 * Evaluate a query over the stored allocations: select them by their stack trace, group them by a frame and print
+	 * the top groups. A single scan of the allocation table: the filter and the group are evaluated once for each
+	 * distinct stack trace, the groups are counted in arrays indexed by frame id and the top groups are selected
+	 * by a bounded heap. No per allocation object is created.
+	 * In sampling mode only the sampled allocations have stack traces: the others are in the null group and do not
+	 * match any frame filter.
+	 * @param out
+	 * @param q
+	 */
+	public void printQuery(PrintStream out, LiveQuery q) {
+		// Group (frame id+1) +1 of each stack id: 0 means not evaluated yet, -1 means not selected
+		int[] groupOfStack=new int[stacks.size()];
+		long[] bytes=new long[Math.max(1, stacks.getFrameCount()+1)];
+		long[] count=new long[bytes.length];
+		long totalBytes=0;
+		long totalCount=0;
+		for(int slot=0;slot<allocations.getSlotLimit();++slot)
+		{
+			if(!allocations.isUsed(slot))
+			{
+				continue;
+			}
+			int stack=allocations.getStack(slot);
+			if(stack>=groupOfStack.length)
+			{
+				groupOfStack=Arrays.copyOf(groupOfStack, Math.max(stack+1, stacks.size()));
+			}
+			if(groupOfStack[stack]==0)
+			{
+				int[] frames=stacks.getStackFrames(stack);
+				groupOfStack[stack]=q.matches(stacks, frames)?q.getGroup(frames)+2:-1;
+			}
+			if(groupOfStack[stack]<0)
+			{
+				continue;
+			}
+			int g=groupOfStack[stack]-1;
+			if(g>=bytes.length)
+			{
+				bytes=Arrays.copyOf(bytes, Math.max(g+1, stacks.getFrameCount()+1));
+				count=Arrays.copyOf(count, bytes.length);
+			}
+			long size=allocations.getSize(slot);
+			bytes[g]+=size;
+			count[g]++;
+			totalBytes+=size;
+			totalCount++;
+		}
+		out.println("Query: "+q+(sampler!=null?" (stack traces of sampled allocations only)":""));
+		out.println("Selected: "+formatMem(totalBytes)+" bytes in "+totalCount+" blocks");
+		for(int g: AllocatorStats.topIndexes(q.isByCount()?count:bytes, q.getN()))
+		{
+			out.println(formatMem(bytes[g])+" bytes in "+count[g]+" blocks "+getAllocatorKeyString(g-1));
+		}
+	}
+	/**
+	 * @return the estimated line of the allocator in the output in sampling mode. Empty string when not sampling.
+	 */
+	private String getEstimate(int key)
+	{
+		if(sampler==null || key==StackDictionary.NO_FRAME)
+		{
+			return "";
+		}
+		return "\n\testimated N: "+formatMem(sampled.getLiveCount(key))+" +- "+formatMem(sampled.getLiveCountError(key))
+			+" BYTES: "+formatMem(sampled.getLiveBytes(key))+" +- "+formatMem(sampled.getLiveBytesError(key));
+	}
+	private String getAllocatorKeyString(int key)
+	{
+		return ""+(key==StackDictionary.NO_FRAME?null:stacks.getFrame(key));
+	}
+	private int getAllocatorKey(int stackId)
+	{
+		if(stackId>=stackKeys.length)
+		{
+			stackKeys=stacks.getAllocatorKeys();
+		}
+		return stackKeys[stackId];
+	}
+	/**
+	 * Find the allocation with the lowest address for each allocator key by a single scan of the table.
+	 * @param keys
+	 * @return slot of the example allocation for each key
+	 */
+	private int[] getExampleSlots(int[] keys)
+	{
+		int[] exampleByKey=new int[getKeyLimit(keys)];
+		Arrays.fill(exampleByKey, -1);
+		for(int slot=0;slot<allocations.getSlotLimit();++slot)
+		{
+			if(allocations.isUsed(slot))
+			{
+				int k=getAllocatorKey(allocations.getStack(slot))+1;
+				int prev=exampleByKey[k];
+				if(prev<0 || allocations.getAddress(slot)<allocations.getAddress(prev))
+				{
+					exampleByKey[k]=slot;
+				}
+			}
+		}
+		int[] ret=new int[keys.length];
+		for(int i=0;i<keys.length;++i)
+		{
+			ret[i]=exampleByKey[keys[i]+1];
+		}
+		return ret;
+	}
+	private static int getKeyLimit(int[] keys)
+	{
+		int ret=0;
+		for(int k: keys)
+		{
+			ret=Math.max(ret, k+2);
+		}
+		return ret;
+	}
+	/**
+	 * Group the slots of all stored allocations by allocator key. Group sizes are known from the aggregated
+	 * counters so slots are distributed into preallocated arrays ordered by address.
+	 * @return slots of the allocations by allocator key string
+	 */
+	private Map<String, int[]> getSlotsByAllocator() {
+		int[] keys=stats.getLiveKeys();
+		int[][] groups=new int[getKeyLimit(keys)][];
+		int[] fill=new int[groups.length];
+		for(int k: keys)
+		{
+			groups[k+1]=new int[(int)stats.getLiveCount(k)];
+		}
+		for (int slot : allocations.getSlotsOrderedByAddress()) {
+			int k=getAllocatorKey(allocations.getStack(slot))+1;
+			groups[k][fill[k]++]=slot;
+		}
+		Map<String, int[]> ret=new HashMap<String, int[]>();
+		for(int k: keys)
+		{
+			ret.put(getAllocatorKeyString(k), groups[k+1]);
+		}
 		return ret;
 	}
 	private String formatMem(long mem) {
@@ -107,17 +614,53 @@ public class EntryProcessor {
 		return formatter.format(mem);
 	}
 
+	/**
+	 * Track an entry while the analyser is off: only the address and size of the allocated blocks are stored
+	 * so their frees are retired silently after the analyser is turned on.
+	 * A free of a block allocated while the analyser was on removes the stored allocation like a free that is processed
+	 * (except the time based counters) so the address can be reused by a block allocated while off.
+	 * @param e
+	 */
+	public void trackOff(Entry e) {
+		if(pid==0)
+		{
+			pid=e.getPid();
+		}
+		if(!e.isKnown() || pid!=e.getPid())
+		{
+			return;
+		}
+		if(e.isFree())
+		{
+			int before=allocations.remove(e.getAddress());
+			if(before>=0)
+			{
+				freedStored(before, e.getTid());
+			}else if(offBlocks.remove(e.getAddress())>=0)
+			{
+				offLive--;
+			}
+		}
+		if(e.isAllocation() && offBlocks.put(e.getAddress(), e.getSize()))
+		{
+			offLive++;
+		}
+	}
 	public void processEntry(Entry e) {
+		long now=System.currentTimeMillis();
 		if(tStart==0)
 		{
-			tStart=System.currentTimeMillis();
+			tStart=now;
 		}
 		if(pid==0)
 		{
 			pid=e.getPid();
 		}
 		if (e.isFilled() && !e.isKnown()) {
-			System.err.println("unknown entry: " + e);
+			if(anomalies.add(Kind.unknownEntry, getAllocatorKey(getStackId(e)), now))
+			{
+				example(Kind.unknownEntry, "unknown entry: " + e);
+			}
 		}
 		if (e.isKnown()) {
 			if(pid!=e.getPid())
@@ -128,31 +671,88 @@ public class EntryProcessor {
 				return;
 			}
 			if (e.isAllocation()) {
-				Entry prev=allocations.put(e.getAddress(), e);
+				boolean isSampled=isSampled(e.getAddress(), e.getSize());
+				int stack=isSampled?getStackId(e):getEmptyStackId();
+				int prev=allocations.find(e.getAddress());
+				if(offLive>0 && offBlocks.remove(e.getAddress())>=0)
+				{
+					// The free of the block allocated while off was not logged
+					offLive--;
+				}
 				balance -= e.getSize();
-				if(prev!=null)
+				if(prev>=0)
 				{
-					System.err.println("Reallocation without free: "+e.toString());
-					System.err.println("Prev: "+prev.toString());
-					balance +=prev.getSize();
+					if(anomalies.add(Kind.reallocationWithoutFree, getAllocatorKey(allocations.getStack(prev)), now))
+					{
+						example(Kind.reallocationWithoutFree, "Reallocation without free: "+e.toString()
+							+"\nPrev: "+allocations.toEntry(prev, stacks).toString());
+					}
+					balance +=allocations.getSize(prev);
+					stats.lost(getAllocatorKey(allocations.getStack(prev)), allocations.getSize(prev));
+					sampledFreed(prev);
+					threads.lost(allocations.getTid(prev), allocations.getSize(prev));
+					allocations.set(prev, e.getSize(), e.getTitle(), e.getPid(), e.getTid(), stack);
+				}else
+				{
+					prev=allocations.add(e.getAddress(), e.getSize(), e.getTitle(), e.getPid(), e.getTid(), stack);
+				}
+				allocations.setReceived(prev, e.getSeq(), e.getReceiveNanos());
+				stats.allocated(getAllocatorKey(stack), e.getSize());
+				if(sampler!=null && isSampled)
+				{
+					sampled.allocated(getAllocatorKey(stack), e.getSize(), sampler.getWeight(e.getSize()));
 				}
+				rates.allocated(now, getAllocatorKey(stack), e.getSize());
+				threads.allocated(e.getTid(), e.getSize());
 			}
 			if (e.isFree()) {
-				Entry before = allocations.remove(e.getAddress());
-				if (before != null) {
-					if(before.getSize()!=e.getSize())
+				int before = allocations.remove(e.getAddress());
+				long offSize=before<0 && offLive>0?offBlocks.remove(e.getAddress()):-1;
+				if (before >= 0) {
+					long beforeSize=allocations.getSize(before);
+					if(beforeSize!=e.getSize())
+					{
+						if(anomalies.add(Kind.sizesNotEqual, getAllocatorKey(allocations.getStack(before)), now))
+						{
+							example(Kind.sizesNotEqual, "Sizes not equal: "+beforeSize+" "+e.getSize());
+						}
+					}
+					freedStored(before, e.getTid());
+					rates.freed(now, getAllocatorKey(allocations.getStack(before)), beforeSize);
+					long allocSeq=allocations.getSeq(before);
+					if(allocSeq>0 && e.getSeq()>0)
 					{
-						System.err.println("Sizes not equal: "+before.getSize()+" "+e.getSize());
+						lifetimes.freed(getAllocatorKey(allocations.getStack(before)), beforeSize, e.getSeq()-allocSeq,
+							Math.max(0, e.getReceiveNanos()-allocations.getReceiveNanos(before))/1000);
 					}
-					balance += before.getSize();
 					matching++;
-					matchingSum += before.getSize();
+					matchingSum += beforeSize;
+				} else if(offSize>=0) {
+					// Allocated while the analyser was off
+					offLive--;
+					retired++;
+					retiredBytes+=offSize;
+					threads.freed(e.getTid());
+					rates.freed(now, offSize);
 				} else {
-					System.err.println("Free without allocation: "+e.toString());
-					Entry prev=beforeAllocations.put(e.getAddress(), e);
-					if(prev!=null)
+					int stack=isSampled(e.getAddress(), e.getSize())?getStackId(e):getEmptyStackId();
+					if(anomalies.add(Kind.freeWithoutAllocation, getAllocatorKey(stack), now))
 					{
-						System.err.println("Memory freed twice: "+e+" "+prev);
+						example(Kind.freeWithoutAllocation, "Free without allocation: "+e.toString());
+					}
+					threads.freed(e.getTid());
+					rates.freed(now, e.getSize());
+					int prev=beforeAllocations.find(e.getAddress());
+					if(prev>=0)
+					{
+						if(anomalies.add(Kind.freedTwice, getAllocatorKey(stack), now))
+						{
+							example(Kind.freedTwice, "Memory freed twice: "+e+" "+beforeAllocations.toEntry(prev, stacks));
+						}
+						beforeAllocations.set(prev, e.getSize(), e.getTitle(), e.getPid(), e.getTid(), stack);
+					}else
+					{
+						beforeAllocations.add(e.getAddress(), e.getSize(), e.getTitle(), e.getPid(), e.getTid(), stack);
 					}
 					beforeBalance += e.getSize();
 					beforeN++;
@@ -160,41 +760,234 @@ public class EntryProcessor {
 			}
 		}
 	}
+	/**
+	 * Update the balance and the counters of the stored allocation that was freed.
+	 * @param slot slot of the allocation, already removed from the stored allocations
+	 * @param tid thread that freed the block
+	 */
+	private void freedStored(int slot, long tid)
+	{
+		long size=allocations.getSize(slot);
+		balance += size;
+		stats.freed(getAllocatorKey(allocations.getStack(slot)), size);
+		sampledFreed(slot);
+		threads.freed(tid, allocations.getTid(slot), size);
+	}
+	/**
+	 * Store the example of the anomaly and print it to stderr in case printing is enabled.
+	 */
+	private void example(Kind kind, String example)
+	{
+		anomalies.setExample(kind, example);
+		if(anomalies.getExamplesPerSecond()>0)
+		{
+			System.err.println(example);
+		}
+	}
+	private boolean isSampled(long address, long size)
+	{
+		return sampler==null || sampler.isSampled(address, size);
+	}
+	/**
+	 * Remove the block stored in the slot from the estimated counters in case it was sampled.
+	 * The sampling decision is recomputed from the address and size of the block.
+	 */
+	private void sampledFreed(int slot)
+	{
+		long size=allocations.getSize(slot);
+		if(sampler!=null && sampler.isSampled(allocations.getAddress(slot), size))
+		{
+			sampled.freed(getAllocatorKey(allocations.getStack(slot)), size, sampler.getWeight(size));
+		}
+	}
+	private int getEmptyStackId()
+	{
+		if(emptyStack<0)
+		{
+			emptyStack=stacks.internStack(new int[0], 0);
+		}
+		return emptyStack;
+	}
+	/**
+	 * Get the id of the stack of the entry in the dictionary of this processor.
+	 * Entries parsed into a different dictionary are copied into this one.
+	 */
+	private int getStackId(Entry e) {
+		if(e.getStackDictionary()==stacks)
+		{
+			return e.getStackId();
+		}
+		List<String> lines=e.getLines();
+		int[] frames=new int[lines.size()];
+		for(int i=0;i<frames.length;++i)
+		{
+			frames[i]=stacks.internFrame(lines.get(i));
+		}
+		return stacks.internStack(frames, frames.length);
+	}
 	public void snapshot(PrintStream out) {
-		for(Entry e: allocations.values())
+		for(int slot: allocations.getSlotsOrderedByAddress())
 		{
-			e.printToWhole(out);
+			allocations.toEntry(slot, stacks).printToWhole(out);
 		}
 	}
+	/**
+	 * Write all stored allocations in the {@link BinarySnapshot} format.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void snapshotBinary(OutputStream out) throws IOException {
+		BinarySnapshot.write(allocations, stacks, out);
+	}
+	/**
+	 * Write the state of the processor into a {@link Checkpoint}: the counters, the all time counters of
+	 * the allocators, the stored allocations, the frees without allocation and the blocks allocated while off.
+	 * Should be called on a copy created by {@link #freezeForCheckpoint()}.
+	 * @param w
+	 * @throws IOException
+	 */
+	void writeCheckpoint(BinarySnapshot.Writer w) throws IOException {
+		w.varint(pid);
+		w.varint(tStart);
+		w.svarint(balance);
+		w.svarint(beforeBalance);
+		w.varint(beforeN);
+		w.varint(matching);
+		w.varint(matchingSum);
+		w.varint(retired);
+		w.varint(retiredBytes);
+		int[] keys=stats.getKeys();
+		w.varint(keys.length);
+		for(int key: keys)
+		{
+			if(key==StackDictionary.NO_FRAME)
+			{
+				w.varint(0);
+			}else
+			{
+				w.varint(1);
+				w.string(stacks.getFrame(key));
+			}
+			w.varint(stats.getAllocs(key));
+			w.varint(stats.getFrees(key));
+			w.varint(stats.getPeakBytes(key));
+		}
+		BinarySnapshot.write(allocations, stacks, w);
+		BinarySnapshot.write(beforeAllocations, stacks, w);
+		long[] off=offBlocks.toArray();
+		w.varint(off.length/2);
+		for(long v: off)
+		{
+			w.varint(v);
+		}
+	}
+	/**
+	 * Load the state written by {@link #writeCheckpoint(BinarySnapshot.Writer)} into this empty processor.
+	 * The live counters of the allocators and threads are rebuilt from the stored allocations.
+	 * Rates, lifetimes and anomalies start from zero.
+	 * @param r
+	 * @throws IOException
+	 */
+	void readCheckpoint(BinarySnapshot.Reader r) throws IOException {
+		pid=r.varint();
+		tStart=r.varint();
+		balance=r.svarint();
+		beforeBalance=r.svarint();
+		beforeN=(int)r.varint();
+		matching=(int)r.varint();
+		matchingSum=r.varint();
+		retired=r.varint();
+		retiredBytes=r.varint();
+		int nKeys=(int)r.varint();
+		int[] keys=new int[nKeys];
+		long[] counters=new long[nKeys*3];
+		for(int i=0;i<nKeys;++i)
+		{
+			keys[i]=r.varint()==0?StackDictionary.NO_FRAME:stacks.internFrame(r.string());
+			counters[i*3]=r.varint();
+			counters[i*3+1]=r.varint();
+			counters[i*3+2]=r.varint();
+		}
+		Entry e=new Entry(stacks);
+		BinarySnapshot.Decoder d=new BinarySnapshot.Decoder(r, stacks);
+		while(d.next(e))
+		{
+			int stack=e.getStackId();
+			allocations.add(e.getAddress(), e.getSize(), e.getTitle(), e.getPid(), e.getTid(), stack);
+			stats.allocated(getAllocatorKey(stack), e.getSize());
+			if(sampler!=null && sampler.isSampled(e.getAddress(), e.getSize()))
+			{
+				sampled.allocated(getAllocatorKey(stack), e.getSize(), sampler.getWeight(e.getSize()));
+			}
+			threads.allocated(e.getTid(), e.getSize());
+		}
+		for(int i=0;i<nKeys;++i)
+		{
+			stats.setCounters(keys[i], counters[i*3], counters[i*3+1], counters[i*3+2]);
+		}
+		d=new BinarySnapshot.Decoder(r, stacks);
+		while(d.next(e))
+		{
+			beforeAllocations.add(e.getAddress(), e.getSize(), e.getTitle(), e.getPid(), e.getTid(), e.getStackId());
+		}
+		long nOff=r.varint();
+		for(long i=0;i<nOff;++i)
+		{
+			long address=r.varint();
+			offBlocks.put(address, r.varint());
+		}
+		offLive=offBlocks.size();
+	}
 	public void processCompare(PrintStream out, EntryProcessor prev, Args args) {
-		ProcessedEntries pePrev=prev.getProcessedEntries();
-		ProcessedEntries peCurrent=getProcessedEntries();
-		Set<String> keys=new HashSet<String>(pePrev.entriesByAllocator.keySet());
-		keys.addAll(peCurrent.entriesByAllocator.keySet());
+		Map<String, int[]> groupsPrev=prev.getSlotsByAllocator();
+		Map<String, int[]> groupsCurrent=getSlotsByAllocator();
+		Set<String> keys=new HashSet<String>(groupsPrev.keySet());
+		keys.addAll(groupsCurrent.keySet());
 		List<DifferentEntries> diffs=new ArrayList<DifferentEntries>();
 		for(String key: keys)
 		{
 			DifferentEntries de=new DifferentEntries();
-			List<Entry> ep =pePrev.entriesByAllocator.get(key);
-			List<Entry> ec =peCurrent.entriesByAllocator.get(key);
-			for(Entry e:ep)
+			boolean hidden=args.isHidden(""+key);
+			int[] ep =groupsPrev.get(key);
+			int[] ec =groupsCurrent.get(key);
+			if(ep!=null)
 			{
-				Entry curr=allocations.get(e.getAddress());
-				if(curr==null || curr.getSize()!=e.getSize())
+				for(int slot:ep)
 				{
-					de.diffNum--;
-					de.diffSize-=e.getSize();
-					de.freed.add(e);
+					long size=prev.allocations.getSize(slot);
+					int curr=allocations.find(prev.allocations.getAddress(slot));
+					if(curr<0 || allocations.getSize(curr)!=size)
+					{
+						de.diffNum--;
+						de.diffSize-=size;
+						de.freedSizes.add(size);
+						Entry e=prev.allocations.toEntry(slot, prev.stacks);
+						de.freed.add(e);
+						if(!hidden)
+						{
+							args.compareFreedEntryEvent.eventHappened(e);
+						}
+					}
 				}
 			}
-			for(Entry e:ec)
+			if(ec!=null)
 			{
-				Entry p=prev.allocations.get(e.getAddress());
-				if(p==null || p.getSize()!=e.getSize())
+				for(int slot:ec)
 				{
-					de.diffNum++;
-					de.diffSize+=e.getSize();
-					de.allocated.add(e);
+					long size=allocations.getSize(slot);
+					int p=prev.allocations.find(allocations.getAddress(slot));
+					if(p<0 || prev.allocations.getSize(p)!=size)
+					{
+						de.diffNum++;
+						de.diffSize+=size;
+						de.allocatedSizes.add(size);
+						Entry e=allocations.toEntry(slot, stacks);
+						de.allocated.add(e);
+						if(!hidden)
+						{
+							args.compareAllocatedEntryEvent.eventHappened(e);
+						}
+					}
 				}
 			}
 			if(de.diffNum!=0 || de.diffSize!=0)
@@ -203,6 +996,15 @@ public class EntryProcessor {
 				diffs.add(de);
 			}
 		}
+		printDiffs(out, diffs, args);
+	}
+	/**
+	 * Print the differences ordered by allocator key and send them to the compareDiffEntryEvent of args.
+	 * @param out
+	 * @param diffs
+	 * @param args
+	 */
+	static void printDiffs(PrintStream out, List<DifferentEntries> diffs, Args args) {
 		Collections.sort(diffs);
 		outer:
 		for(DifferentEntries de: diffs)
@@ -211,18 +1013,14 @@ public class EntryProcessor {
 			{
 				args.compareDiffEntryEvent.eventHappened(de);
 				out.println(""+de.diffSize+" "+de.diffNum+" "+de.key);
+				de.printSizes(out);
 				for(String p: args.printAllIfContains)
 				{
-					if(de.allocated.size()>1)
+					if(de.getAllocatedCount()>1)
 					{
 						if(de.allocated.get(0).containsPattern(p))
 						{
-							HashMap<String, Integer> stacks=new HashMap<>();
-							for(Entry e: de.allocated)
-							{
-								String stack=e.printToWholePointerBlurred();
-								incStack(stacks, stack);
-							}
+							Map<String, Integer> stacks=de.getAllocatedStacks();
 							TreeMap<String, Integer> ordered=new TreeMap<String, Integer>(stacks);
 							for(String key: ordered.keySet())
 							{
@@ -237,14 +1035,4 @@ public class EntryProcessor {
 			}
 		}
 	}
-	private void incStack(HashMap<String, Integer> stacks, String stack) {
-		Integer v=stacks.get(stack);
-		if(v==null)
-		{
-			stacks.put(stack, 1);
-		}else
-		{
-			stacks.put(stack, v+1);
-		}
-	}
 }
@@ -0,0 +1,500 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Multi-stage processing of the log-malloc-simple data stream:
+ * <ul>
+ * <li>reader: the caller thread reads raw input into chunks, cuts them at entry boundaries and parses the header of the stream</li>
+ * <li>parsers: one or more worker threads parse chunks into batches of entries</li>
+ * <li>accounting: a single thread hands the batches to the listener in stream order</li>
+ * </ul>
+ * Chunks (the input bytes together with the entries parsed from them) are preallocated and recycled.
+ * Stages are connected by bounded ring buffers so a slow stage blocks the reader instead of consuming unlimited memory.
+ *
+ * With 0 parser threads all stages are executed on the caller thread.
+ *
+ * Usage: fill the buffer returned by {@link #getInputBuffer()} then call {@link #inputRead()}. Repeat until
+ * end of stream then call {@link #close()}.
+ */
+public class IngestPipeline implements Closeable {
+	/**
+	 * Receives the parsed entries.
+	 */
+	public interface BatchListener
+	{
+		/**
+		 * Entries of a chunk of the stream were parsed. Called in stream order and always from the same thread.
+		 * @param entries the entry objects are reused by the pipeline after this method returned
+		 * @param n number of valid entries in the array
+		 * @param endOffset number of bytes of the input up to the end of the last entry of the batch. -1 if unknown.
+		 * @param stacksSkipped the stack lines of the entries were skipped by the parser, see {@link #setSkipStacks(BooleanSupplier)}
+		 */
+		void entriesParsed(Entry[] entries, int n, long endOffset, boolean stacksSkipped);
+	}
+	/**
+	 * A chunk of the input stream and the entries parsed from it.
+	 */
+	private static class Chunk
+	{
+		final ByteBuffer buf;
+		Entry[] entries=new Entry[256];
+		int n;
+		long seq;
+		/**
+		 * Offset of the end of the chunk in the input.
+		 */
+		long end;
+		boolean last;
+		/**
+		 * Time when the data of the chunk was received (System.nanoTime()).
+		 */
+		long receiveNanos;
+		/**
+		 * PID filter of the parser, see {@link LogParser#setPidFilter(long)}.
+		 */
+		long pidFilter;
+		/**
+		 * Frames are canonicalized with these maps, see {@link LogParser#setProcessMaps(ProcessMaps)}.
+		 */
+		ProcessMaps maps;
+		/**
+		 * Stack lines of the entries are skipped, see {@link LogParser#setSkipStacks(boolean)}.
+		 */
+		boolean skipStacks;
+		public Chunk(int size) {
+			buf=ByteBuffer.allocate(size);
+		}
+	}
+	/**
+	 * Parses chunks into their own entry arrays. One instance per parser thread.
+	 */
+	private class ChunkParser implements LogParser.Listener
+	{
+		private Chunk chunk;
+		private final LogParser parser=new LogParser(stacks, this) {
+			@Override
+			protected Entry createEntry() {
+				return nextEntry();
+			}
+		};
+		private Entry nextEntry()
+		{
+			Chunk c=chunk;
+			if(c.n==c.entries.length)
+			{
+				c.entries=Arrays.copyOf(c.entries, c.n*2);
+			}
+			Entry e=c.entries[c.n];
+			if(e==null)
+			{
+				e=new Entry(stacks);
+				c.entries[c.n]=e;
+			}else
+			{
+				e.reset();
+			}
+			return e;
+		}
+		@Override
+		public void entryParsed(Entry e) {
+			chunk.n++;
+		}
+		void parse(Chunk c)
+		{
+			chunk=c;
+			c.n=0;
+			parser.setPidFilter(c.pidFilter);
+			parser.setProcessMaps(c.maps);
+			parser.setSampler(sampler);
+			parser.setSkipStacks(c.skipStacks);
+			parser.parse(c.buf);
+			parser.finish(c.buf);
+			for(int i=0;i<c.n;++i)
+			{
+				c.entries[i].setReceiveNanos(c.receiveNanos);
+			}
+			chunk=null;
+		}
+	}
+	private static final int CHUNK_SIZE=1024*1024;
+	private final StackDictionary stacks;
+	private final BatchListener listener;
+	private final int nChunks;
+	private final ArrayBlockingQueue<Chunk> free;
+	private final ArrayBlockingQueue<Chunk> toParse;
+	/**
+	 * Parsed chunks waiting for the accounting stage indexed by sequence number modulo number of chunks.
+	 * There are never more chunks in flight than the length of this array so indexes do not collide.
+	 */
+	private final Chunk[] parsed;
+	private final Thread[] parserThreads;
+	private final Thread accountingThread;
+	private final ChunkParser inlineParser;
+	private final Chunk poison=new Chunk(0);
+	private Chunk filling;
+	private long nextSeq;
+	/**
+	 * Number of bytes of the input submitted in chunks.
+	 */
+	private long submitted;
+	private boolean skipForeignPids;
+	/**
+	 * PID of the first entry of the stream. Found by the reader stage so that all parsers use the same filter.
+	 */
+	private long pid;
+	/**
+	 * PID of the first entry of the stream in case the input continues a stream, see {@link #setResumed(ProcessMaps, long)}.
+	 */
+	private long resumedPid;
+	/**
+	 * Header of the stream. Parsed by the reader stage before the chunks that contain entries are parsed.
+	 */
+	private ProcessMaps header=new ProcessMaps();
+	private boolean canonicalFrames;
+	private Sampler sampler;
+	private BooleanSupplier skipStacks;
+	private Runnable onChunkFree;
+	/**
+	 * @param stacks dictionary that stores stack traces of the parsed entries
+	 * @param listener receives the parsed entries
+	 * @param nParserThreads number of parser threads. 0 means that parsing and accounting are done on the reader thread.
+	 */
+	public IngestPipeline(StackDictionary stacks, BatchListener listener, int nParserThreads) {
+		this.stacks=stacks;
+		this.listener=listener;
+		nChunks=nParserThreads*2+4;
+		free=new ArrayBlockingQueue<Chunk>(nChunks);
+		toParse=new ArrayBlockingQueue<Chunk>(nChunks+nParserThreads);
+		parsed=new Chunk[nChunks];
+		for(int i=0;i<nChunks;++i)
+		{
+			free.add(new Chunk(CHUNK_SIZE));
+		}
+		parserThreads=new Thread[nParserThreads];
+		if(nParserThreads==0)
+		{
+			inlineParser=new ChunkParser();
+			accountingThread=null;
+		}else
+		{
+			inlineParser=null;
+			for(int i=0;i<nParserThreads;++i)
+			{
+				parserThreads[i]=new Thread("log parser thread "+i) {
+					@Override
+					public void run() {
+						runParser();
+					}
+				};
+				parserThreads[i].start();
+			}
+			accountingThread=new Thread("log accounting thread") {
+				@Override
+				public void run() {
+					runAccounting();
+				}
+			};
+			accountingThread.start();
+		}
+	}
+	/**
+	 * Skip the entries of all PIDs other than the PID of the first entry in the parsers.
+	 * Must be called before the first input is read.
+	 * @param skipForeignPids
+	 */
+	public void setSkipForeignPids(boolean skipForeignPids) {
+		this.skipForeignPids = skipForeignPids;
+	}
+	/**
+	 * Rewrite frames to module relative offsets using the memory maps of the header of the stream.
+	 * Must be called before the first input is read.
+	 * @param canonicalFrames
+	 */
+	public void setCanonicalFrames(boolean canonicalFrames) {
+		this.canonicalFrames = canonicalFrames;
+	}
+	/**
+	 * Skip the stack lines of the entries that are not sampled, see {@link LogParser#setSampler(Sampler)}.
+	 * Must be called before the first input is read.
+	 * @param sampler null means that all stack traces are kept
+	 */
+	public void setSampler(Sampler sampler) {
+		this.sampler = sampler;
+	}
+	/**
+	 * Skip the stack lines of the entries of the chunks that are read while the condition is true
+	 * (eg. the analyser is off). The condition is evaluated by the reader stage for each chunk so entries parsed
+	 * right before the condition changes may be affected too: the listener is told which batches were parsed
+	 * without stack lines.
+	 * Must be called before the first input is read.
+	 * @param skipStacks null means that stack lines are always parsed
+	 */
+	public void setSkipStacks(BooleanSupplier skipStacks) {
+		this.skipStacks = skipStacks;
+	}
+	/**
+	 * Register a handler that is called each time a chunk is processed and becomes free for input again
+	 * (eg. to resume reading a non-blocking channel, see {@link #isReady()}). Called on the accounting thread.
+	 * Must be called before the first input is read.
+	 * @param onChunkFree
+	 */
+	public void setOnChunkFree(Runnable onChunkFree) {
+		this.onChunkFree = onChunkFree;
+	}
+	/**
+	 * Use an already parsed header and PID filter instead of finding them in the input: the input continues
+	 * a stream from the middle (eg. processing is resumed from a {@link Checkpoint}).
+	 * Must be called before the first input is read.
+	 * @param header null means that the header is not known
+	 * @param pid PID of the first entry of the stream. Used in case foreign PIDs are skipped. 0 means unknown.
+	 */
+	public void setResumed(ProcessMaps header, long pid) {
+		if(header!=null)
+		{
+			this.header=header;
+		}
+		this.resumedPid=pid;
+	}
+	/**
+	 * @return the header of the stream. Filled by the reader thread while the header is read.
+	 */
+	public ProcessMaps getHeader() {
+		return header;
+	}
+	/**
+	 * @return the buffer that has to be filled with input data (in write mode). Blocks while all chunks are in use.
+	 */
+	public ByteBuffer getInputBuffer() throws InterruptedException
+	{
+		if(filling==null)
+		{
+			filling=takeFree();
+		}
+		return filling.buf;
+	}
+	/**
+	 * @return true if {@link #getInputBuffer()} and {@link #inputRead()} do not block because all chunks are in use.
+	 * Valid until the next input is read by the same thread.
+	 */
+	public boolean isReady()
+	{
+		return free.size()>=(filling==null?2:1);
+	}
+	/**
+	 * New data was read into the input buffer. All complete entries are sent to processing.
+	 */
+	public void inputRead() throws InterruptedException
+	{
+		ByteBuffer b=filling.buf;
+		byte[] a=b.array();
+		int end=b.position();
+		int cut=findBoundary(a, end);
+		if(cut<=0)
+		{
+			if(b.hasRemaining())
+			{
+				// Wait for more data
+				return;
+			}
+			// A single entry is larger than the chunk - cut at line boundary
+			cut=findLineEnd(a, end);
+			if(cut<=0)
+			{
+				cut=end;
+			}
+		}
+		Chunk next=takeFree();
+		next.buf.put(a, cut, end-cut);
+		b.position(cut);
+		b.flip();
+		submit(filling);
+		filling=next;
+	}
+	/**
+	 * End of stream: process all remaining data and wait until the listener received all entries.
+	 */
+	@Override
+	public void close()
+	{
+		try {
+			Chunk c=filling==null?takeFree():filling;
+			filling=null;
+			c.buf.flip();
+			c.last=true;
+			submit(c);
+			if(accountingThread!=null)
+			{
+				accountingThread.join();
+				for(int i=0;i<parserThreads.length;++i)
+				{
+					toParse.put(poison);
+				}
+				for(Thread t: parserThreads)
+				{
+					t.join();
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	/**
+	 * Find the last entry boundary in the data: the position after the last "-" line or before the last "+" line.
+	 * @return index of the boundary or -1 if there is no complete entry in the data
+	 */
+	private static int findBoundary(byte[] a, int end)
+	{
+		int lineEnd=findLineEnd(a, end);
+		while(lineEnd>0)
+		{
+			int lineStart=lineEnd-1;
+			while(lineStart>0 && a[lineStart-1]!='\n')
+			{
+				lineStart--;
+			}
+			if(a[lineStart]=='-')
+			{
+				return lineEnd;
+			}
+			if(a[lineStart]=='+')
+			{
+				return lineStart;
+			}
+			lineEnd=lineStart;
+		}
+		return -1;
+	}
+	/**
+	 * @return the index after the last new line character or 0 if there is none
+	 */
+	private static int findLineEnd(byte[] a, int end)
+	{
+		for(int i=end-1;i>=0;--i)
+		{
+			if(a[i]=='\n')
+			{
+				return i+1;
+			}
+		}
+		return 0;
+	}
+	private void submit(Chunk c) throws InterruptedException
+	{
+		c.seq=nextSeq++;
+		submitted+=c.buf.remaining();
+		c.end=submitted;
+		c.receiveNanos=System.nanoTime();
+		if(skipForeignPids && pid==0)
+		{
+			pid=resumedPid!=0?resumedPid:LogParser.findFirstPid(c.buf.array(), c.buf.position(), c.buf.limit());
+		}
+		c.pidFilter=pid;
+		if(!header.isComplete())
+		{
+			header.parse(c.buf.array(), c.buf.position(), c.buf.limit());
+		}
+		c.maps=canonicalFrames && header.isComplete()?header:null;
+		c.skipStacks=skipStacks!=null && skipStacks.getAsBoolean();
+		if(inlineParser!=null)
+		{
+			try
+			{
+				inlineParser.parse(c);
+				listener.entriesParsed(c.entries, c.n, c.end, c.skipStacks);
+			}finally
+			{
+				recycle(c);
+			}
+		}else
+		{
+			toParse.put(c);
+		}
+	}
+	private void runParser()
+	{
+		ChunkParser p=new ChunkParser();
+		try {
+			while(true)
+			{
+				Chunk c=toParse.take();
+				if(c==poison)
+				{
+					return;
+				}
+				try
+				{
+					p.parse(c);
+				}catch(Throwable t)
+				{
+					t.printStackTrace();
+				}finally
+				{
+					synchronized (parsed) {
+						parsed[(int)(c.seq%nChunks)]=c;
+						parsed.notifyAll();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	private void runAccounting()
+	{
+		try {
+			long seq=0;
+			while(true)
+			{
+				int index=(int)(seq%nChunks);
+				Chunk c;
+				synchronized (parsed) {
+					while((c=parsed[index])==null)
+					{
+						parsed.wait();
+					}
+					parsed[index]=null;
+				}
+				try
+				{
+					listener.entriesParsed(c.entries, c.n, c.end, c.skipStacks);
+				}catch(Throwable t)
+				{
+					t.printStackTrace();
+				}
+				boolean last=c.last;
+				recycle(c);
+				seq++;
+				if(last)
+				{
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+	private Chunk takeFree() throws InterruptedException
+	{
+		Chunk c=free.take();
+		c.buf.clear();
+		c.n=0;
+		c.last=false;
+		c.pidFilter=0;
+		c.maps=null;
+		c.skipStacks=false;
+		return c;
+	}
+	private void recycle(Chunk c) throws InterruptedException
+	{
+		free.put(c);
+		if(onChunkFree!=null)
+		{
+			onChunkFree.run();
+		}
+	}
+}
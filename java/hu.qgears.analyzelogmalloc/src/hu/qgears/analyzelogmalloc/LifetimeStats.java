@@ -0,0 +1,115 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Lifetime of the freed blocks aggregated by allocator key. Updated in O(1) when a free is matched to its allocation.
+ *
+ * The lifetime of a block is measured in two ways: the number of log records between the allocation and the free
+ * (difference of the sequence numbers, exact) and the time between receiving the two records in microseconds
+ * (only meaningful when the log is processed live). Both are counted in a {@link SizeHistogram} for each key.
+ * Arrays are indexed by the frame id of the allocator key +1 like in {@link AllocatorStats}.
+ */
+public class LifetimeStats {
+	private SizeHistogram[] records=new SizeHistogram[0];
+	private SizeHistogram[] micros=new SizeHistogram[0];
+	private long[] freedBytes=new long[0];
+	/**
+	 * A block of the allocator was freed.
+	 * @param key frame id of the allocator key
+	 * @param size
+	 * @param lifetimeRecords number of records between the allocation and the free
+	 * @param lifetimeMicros time between the allocation and the free
+	 */
+	public void freed(int key, long size, long lifetimeRecords, long lifetimeMicros)
+	{
+		int i=key+1;
+		if(i>=records.length)
+		{
+			int l=Math.max(i+1, records.length*2);
+			records=Arrays.copyOf(records, l);
+			micros=Arrays.copyOf(micros, l);
+			freedBytes=Arrays.copyOf(freedBytes, l);
+		}
+		if(records[i]==null)
+		{
+			records[i]=new SizeHistogram();
+			micros[i]=new SizeHistogram();
+		}
+		SizeHistogram.writable(records, i).add(lifetimeRecords);
+		SizeHistogram.writable(micros, i).add(lifetimeMicros);
+		freedBytes[i]+=size;
+	}
+	/**
+	 * @return a copy of the current state of the counters. Histograms are shared and copied on write.
+	 */
+	public LifetimeStats copy()
+	{
+		LifetimeStats ret=new LifetimeStats();
+		ret.records=SizeHistogram.share(records);
+		ret.micros=SizeHistogram.share(micros);
+		ret.freedBytes=freedBytes.clone();
+		return ret;
+	}
+	/**
+	 * @param n maximum number of keys returned
+	 * @param maxRecords blocks freed within this number of records are short lived
+	 * @return the keys with the most short lived blocks in decreasing order
+	 */
+	public int[] getTopByShortLived(int n, long maxRecords)
+	{
+		long[] metric=new long[records.length];
+		for(int i=0;i<records.length;++i)
+		{
+			if(records[i]!=null)
+			{
+				metric[i]=records[i].getCountAtMost(maxRecords);
+			}
+		}
+		int[] ret=AllocatorStats.topIndexes(metric, n);
+		for(int i=0;i<ret.length;++i)
+		{
+			ret[i]--;
+		}
+		return ret;
+	}
+	/**
+	 * @param key
+	 * @param maxRecords
+	 * @return number of blocks of the allocator that were freed within maxRecords records
+	 */
+	public long getShortLived(int key, long maxRecords)
+	{
+		return getRecords(key).getCountAtMost(maxRecords);
+	}
+	/**
+	 * @param key
+	 * @return histogram of the lifetimes of the freed blocks of the allocator measured in records
+	 */
+	public SizeHistogram getRecords(int key)
+	{
+		return get(records, key);
+	}
+	/**
+	 * @param key
+	 * @return histogram of the lifetimes of the freed blocks of the allocator measured in microseconds
+	 */
+	public SizeHistogram getMicros(int key)
+	{
+		return get(micros, key);
+	}
+	/**
+	 * @param key
+	 * @return sum of the size of the freed blocks of the allocator
+	 */
+	public long getFreedBytes(int key)
+	{
+		int i=key+1;
+		return i<freedBytes.length?freedBytes[i]:0;
+	}
+	private static SizeHistogram get(SizeHistogram[] a, int key)
+	{
+		int i=key+1;
+		return i<a.length && a[i]!=null?a[i]:new SizeHistogram();
+	}
+}
@@ -0,0 +1,143 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.List;
+
+/**
+ * Parameters of a query over the stored (not freed) allocations: which allocations are selected by their stack trace,
+ * how they are grouped and how many groups are printed ordered by bytes or by count.
+ * See {@link EntryProcessor#printQuery(java.io.PrintStream, LiveQuery)}.
+ *
+ * Depth of a frame is its index in the stack trace: 0 is the allocator key (the caller of the allocator).
+ */
+public class LiveQuery {
+	/**
+	 * Select allocations that have a frame containing this string. null means all allocations.
+	 */
+	private String frame;
+	/**
+	 * The frame is searched between these depths (inclusive).
+	 */
+	private int minDepth=0;
+	private int maxDepth=Integer.MAX_VALUE;
+	/**
+	 * Allocations are grouped by the frame at this depth.
+	 */
+	private int groupDepth=0;
+	private boolean byCount;
+	private int n=20;
+	/**
+	 * Parse the arguments of a query command. Arguments in any order:
+	 * <ul>
+	 * <li>a number: the number of groups printed</li>
+	 * <li>bytes or count: order of the groups</li>
+	 * <li>frame=substring, mindepth=d, maxdepth=d: filter, see {@link #matches(StackDictionary, int[])}</li>
+	 * </ul>
+	 * @param pieces the command line split at spaces
+	 * @param from index of the first argument
+	 * @return
+	 * @throws IllegalArgumentException in case of an unknown argument, a negative depth or maxdepth less than mindepth
+	 */
+	public static LiveQuery parse(List<String> pieces, int from)
+	{
+		LiveQuery ret=new LiveQuery();
+		for(int i=from;i<pieces.size();++i)
+		{
+			String p=pieces.get(i);
+			if(p.isEmpty())
+			{
+				continue;
+			}else if(p.equals("bytes"))
+			{
+				ret.byCount=false;
+			}else if(p.equals("count"))
+			{
+				ret.byCount=true;
+			}else if(p.startsWith("frame="))
+			{
+				ret.frame=p.substring("frame=".length());
+			}else if(p.startsWith("mindepth="))
+			{
+				ret.minDepth=Integer.parseInt(p.substring("mindepth=".length()));
+			}else if(p.startsWith("maxdepth="))
+			{
+				ret.maxDepth=Integer.parseInt(p.substring("maxdepth=".length()));
+			}else if(Character.isDigit(p.charAt(0)))
+			{
+				ret.n=Integer.parseInt(p);
+			}else
+			{
+				throw new IllegalArgumentException("Unknown query argument: '"+p+"'");
+			}
+		}
+		if(ret.minDepth<0 || ret.maxDepth<0)
+		{
+			throw new IllegalArgumentException("Depth must not be negative: mindepth="+ret.minDepth+" maxdepth="+ret.maxDepth);
+		}
+		if(ret.maxDepth<ret.minDepth)
+		{
+			throw new IllegalArgumentException("maxdepth must not be less than mindepth: mindepth="+ret.minDepth+" maxdepth="+ret.maxDepth);
+		}
+		return ret;
+	}
+	/**
+	 * @param stacks
+	 * @param frames frame ids of the stack trace of an allocation
+	 * @return true if the allocation is selected by the filter
+	 */
+	public boolean matches(StackDictionary stacks, int[] frames)
+	{
+		if(frame==null)
+		{
+			return true;
+		}
+		for(int i=minDepth;i<frames.length && i<=maxDepth;++i)
+		{
+			if(stacks.getFrame(frames[i]).contains(frame))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * @return true if not all allocations are selected
+	 */
+	public boolean isFiltered()
+	{
+		return frame!=null;
+	}
+	/**
+	 * @param frames
+	 * @return the frame id of the group of the allocation or {@link StackDictionary#NO_FRAME} if the stack is not deep enough
+	 */
+	public int getGroup(int[] frames)
+	{
+		return groupDepth<frames.length?frames[groupDepth]:StackDictionary.NO_FRAME;
+	}
+	/**
+	 * @param groupDepth
+	 * @throws IllegalArgumentException in case the depth is negative
+	 */
+	public void setGroupDepth(int groupDepth) {
+		if(groupDepth<0)
+		{
+			throw new IllegalArgumentException("Group depth must not be negative: "+groupDepth);
+		}
+		this.groupDepth=groupDepth;
+	}
+	public int getGroupDepth() {
+		return groupDepth;
+	}
+	public boolean isByCount() {
+		return byCount;
+	}
+	public int getN() {
+		return n;
+	}
+	@Override
+	public String toString() {
+		String depth=minDepth==0 && maxDepth==Integer.MAX_VALUE?"any depth":"depth "+minDepth+".."+(maxDepth==Integer.MAX_VALUE?"":""+maxDepth);
+		return (frame==null?"all":"frame contains '"+frame+"' at "+depth)
+				+", grouped by frame "+groupDepth+", top "+n+" by "+(byCount?"count":"bytes");
+	}
+}
@@ -0,0 +1,349 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens recorded logs as a single input stream: plain or gzip compressed files and ordered lists of segments.
+ *
+ * The input is given as a comma separated list of parts. Each part may be:
+ * <ul>
+ * <li>a file (gzip compressed files are detected by their first bytes and decompressed)</li>
+ * <li>a glob pattern in the file name (eg. /data/soak.log-*.gz): the matching files in name order</li>
+ * <li>a manifest of a segmented tee (eg. /data/soak.log.manifest, or /data/soak.log when only the manifest exists):
+ * the segments in the order of the manifest, see {@link TeeWriter}</li>
+ * </ul>
+ * A single plain file (or pipe) is read directly. Otherwise the files are read and decompressed by a separate thread
+ * ahead of the consumer so decompression runs in parallel with parsing. Nothing is written to disk.
+ */
+public class LogArchive {
+	private static final int BUFFER_SIZE=1024*1024;
+	private static final int READ_AHEAD_BUFFERS=4;
+	private LogArchive() {
+	}
+	/**
+	 * Open the input.
+	 * @param spec see the description of the class
+	 * @return
+	 * @throws IOException in case a part can not be found
+	 */
+	public static InputStream open(String spec) throws IOException
+	{
+		List<File> files=getFiles(spec);
+		if(files.size()==1 && !isGzip(files.get(0)))
+		{
+			return new FileInputStream(files.get(0));
+		}
+		return new ReadAheadInputStream(concat(files));
+	}
+	/**
+	 * @param spec see the description of the class
+	 * @return the files of the input in order
+	 * @throws IOException in case a part can not be found
+	 */
+	public static List<File> getFiles(String spec) throws IOException
+	{
+		List<File> ret=new ArrayList<File>();
+		for(String part: spec.split(","))
+		{
+			File f=new File(part);
+			if(isGlob(f.getName()))
+			{
+				ret.addAll(glob(f));
+			}else if(part.endsWith(TeeWriter.MANIFEST_SUFFIX) && f.isFile())
+			{
+				ret.addAll(TeeWriter.getSegmentFiles(new File(part.substring(0, part.length()-TeeWriter.MANIFEST_SUFFIX.length()))));
+			}else if(!f.exists() && TeeWriter.isRecorded(f))
+			{
+				ret.addAll(TeeWriter.getSegmentFiles(f));
+			}else if(f.exists())
+			{
+				ret.add(f);
+			}else
+			{
+				throw new FileNotFoundException(f.getAbsolutePath());
+			}
+		}
+		return ret;
+	}
+	private static boolean isGlob(String name)
+	{
+		return name.indexOf('*')>=0 || name.indexOf('?')>=0 || name.indexOf('[')>=0 || name.indexOf('{')>=0;
+	}
+	private static List<File> glob(File pattern) throws IOException
+	{
+		File dir=pattern.getAbsoluteFile().getParentFile();
+		PathMatcher m=FileSystems.getDefault().getPathMatcher("glob:"+pattern.getName());
+		File[] all=dir.listFiles();
+		List<File> ret=new ArrayList<File>();
+		if(all!=null)
+		{
+			Arrays.sort(all);
+			for(File f: all)
+			{
+				if(f.isFile() && m.matches(f.toPath().getFileName()))
+				{
+					ret.add(f);
+				}
+			}
+		}
+		if(ret.isEmpty())
+		{
+			throw new FileNotFoundException("No file matches: "+pattern.getAbsolutePath());
+		}
+		return ret;
+	}
+	/**
+	 * @param f
+	 * @return true if the file is a regular file that starts with the gzip magic bytes. Pipes are not read.
+	 * @throws IOException
+	 */
+	private static boolean isGzip(File f) throws IOException
+	{
+		if(!Files.isRegularFile(f.toPath()))
+		{
+			return false;
+		}
+		try(FileInputStream fis=new FileInputStream(f))
+		{
+			return fis.read()==0x1f && fis.read()==0x8b;
+		}
+	}
+	/**
+	 * Open a single file of the input. Skipping a plain file seeks, skipping a compressed file decompresses the data.
+	 * @param f
+	 * @return the content of the file (decompressed in case it is compressed)
+	 * @throws IOException
+	 */
+	static InputStream openFile(File f) throws IOException
+	{
+		BufferedInputStream ret=new BufferedInputStream(new FileInputStream(f), 64*1024);
+		ret.mark(2);
+		boolean gzip=ret.read()==0x1f && ret.read()==0x8b;
+		ret.reset();
+		return gzip?new GZIPInputStream(ret, 64*1024):ret;
+	}
+	/**
+	 * @param files
+	 * @return the files read one after the other as a single stream (compressed files are decompressed)
+	 */
+	static SegmentInputStream concat(List<File> files)
+	{
+		return new SegmentInputStream(files);
+	}
+	/**
+	 * Reads the files one after the other as a single stream. Files are opened when they are reached.
+	 * A compressed file that is cut at the end (eg. the analyser writing it was killed) is read until the cut.
+	 */
+	static class SegmentInputStream extends InputStream
+	{
+		private final List<File> files;
+		private int next;
+		private InputStream in;
+		/**
+		 * Offset of the first byte of each file in the stream (uncompressed). Filled when the file is opened.
+		 */
+		private final long[] starts;
+		private long position;
+		SegmentInputStream(List<File> files) {
+			this.files=files;
+			starts=new long[files.size()];
+		}
+		/**
+		 * @return offset of the first byte of each file in the stream. Valid for the files that were reached.
+		 */
+		long[] getStarts() {
+			return starts;
+		}
+		@Override
+		public int read() throws IOException {
+			byte[] b=new byte[1];
+			return read(b, 0, 1)<0?-1:b[0]&0xFF;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while(true)
+			{
+				if(in==null)
+				{
+					if(next==files.size())
+					{
+						return -1;
+					}
+					starts[next]=position;
+					in=openFile(files.get(next++));
+				}
+				int ret;
+				try
+				{
+					ret=in.read(b, off, len);
+				}catch(EOFException e)
+				{
+					// Compressed file cut at the end: the analyser writing it was killed
+					if(next<files.size())
+					{
+						System.err.println("Compressed file is cut at the end, continuing with the next one: "+files.get(next-1).getAbsolutePath());
+					}
+					ret=-1;
+				}
+				if(ret>=0)
+				{
+					position+=ret;
+					return ret;
+				}
+				in.close();
+				in=null;
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			if(in!=null)
+			{
+				in.close();
+				in=null;
+			}
+			next=files.size();
+		}
+	}
+	/**
+	 * Reads the source on a separate thread into a bounded set of buffers ahead of the consumer.
+	 */
+	static class ReadAheadInputStream extends InputStream
+	{
+		private final InputStream source;
+		private final ArrayBlockingQueue<ByteBuffer> free=new ArrayBlockingQueue<ByteBuffer>(READ_AHEAD_BUFFERS);
+		private final ArrayBlockingQueue<ByteBuffer> filled=new ArrayBlockingQueue<ByteBuffer>(READ_AHEAD_BUFFERS+1);
+		/**
+		 * Marks the end of the source.
+		 */
+		private final ByteBuffer end=ByteBuffer.allocate(0);
+		private final Thread thread;
+		private volatile IOException error;
+		private volatile boolean closed;
+		private ByteBuffer current;
+		private boolean eof;
+		ReadAheadInputStream(InputStream source) {
+			this.source=source;
+			for(int i=0;i<READ_AHEAD_BUFFERS;++i)
+			{
+				free.add(ByteBuffer.allocate(BUFFER_SIZE));
+			}
+			thread=new Thread("log read ahead") {
+				@Override
+				public void run() {
+					runReader();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		private void runReader()
+		{
+			try {
+				try
+				{
+					while(!closed)
+					{
+						ByteBuffer b=free.take();
+						b.clear();
+						int n;
+						while(b.hasRemaining() && (n=source.read(b.array(), b.position(), b.remaining()))>=0)
+						{
+							b.position(b.position()+n);
+						}
+						b.flip();
+						if(b.hasRemaining())
+						{
+							filled.put(b);
+						}
+						if(b.limit()<b.capacity())
+						{
+							break;
+						}
+					}
+				}catch(IOException e)
+				{
+					error=e;
+				}finally
+				{
+					// There is always place for the end marker: there are more places than buffers
+					filled.put(end);
+				}
+			} catch (InterruptedException e) {
+				// Closed by the consumer
+			}
+		}
+		@Override
+		public int read() throws IOException {
+			byte[] b=new byte[1];
+			return read(b, 0, 1)<0?-1:b[0]&0xFF;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(len==0)
+			{
+				return 0;
+			}
+			while(current==null || !current.hasRemaining())
+			{
+				if(eof)
+				{
+					return -1;
+				}
+				if(current!=null)
+				{
+					free.add(current);
+					current=null;
+				}
+				try {
+					current=filled.take();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				if(current==end)
+				{
+					current=null;
+					eof=true;
+					if(error!=null)
+					{
+						throw error;
+					}
+				}
+			}
+			int n=Math.min(len, current.remaining());
+			current.get(b, off, n);
+			return n;
+		}
+		@Override
+		public void close() throws IOException {
+			if(closed)
+			{
+				return;
+			}
+			closed=true;
+			// Release the reader thread in case it waits for a free buffer
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			source.close();
+		}
+	}
+}
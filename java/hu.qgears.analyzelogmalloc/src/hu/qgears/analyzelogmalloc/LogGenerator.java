@@ -0,0 +1,366 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import joptsimple.annot.AnnotatedClass;
+import joptsimple.annot.JOHelp;
+
+/**
+ * Generator of synthetic log-malloc-simple streams to load test the analyser without running an instrumented program.
+ * The same parameters and seed always produce the same stream.
+ *
+ * Allocations are made from a fixed set of call sites (stack traces); the distribution of the sites is skewed like
+ * in real programs. Frees and reallocs always reference a live block of the same process so the stream contains no
+ * unmatched frees. Leaked blocks are never freed. Freed addresses are reused by later allocations.
+ */
+public class LogGenerator {
+	public static class Args
+	{
+		@JOHelp("Write the stream into this file or FIFO")
+		public File out;
+		@JOHelp("Connect to this TCP host and send the stream")
+		public String host;
+		@JOHelp("TCP port to connect to")
+		public int port;
+		@JOHelp("Number of records to generate. 0 means no limit.")
+		public int records=1000000;
+		@JOHelp("Target rate in records/s. 0 means as fast as possible.")
+		public int rate;
+		@JOHelp("Seed of the random generator")
+		public int seed=1;
+		@JOHelp("Number of frames of each stack trace")
+		public int depth=16;
+		@JOHelp("Number of distinct allocating call sites")
+		public int sites=1000;
+		@JOHelp("Skew of the call site distribution: the site index is sites*random^skew. 1 means uniform distribution.")
+		public int skew=3;
+		@JOHelp("Percent of the records that free a live block")
+		public int freePercent=45;
+		@JOHelp("Percent of the frees that release the most recently allocated (or reallocated) live block (short lived blocks)")
+		public int lifoPercent=0;
+		@JOHelp("Percent of the allocations that are never freed")
+		public int leakPercent=1;
+		@JOHelp("Percent of the records that are realloc pairs (realloc_free and realloc_alloc)")
+		public int reallocPercent=5;
+		@JOHelp("Number of processes in the stream (the first one and forked children)")
+		public int pids=1;
+		@JOHelp("Number of threads of each process")
+		public int threads=8;
+	}
+	public static final long PID=4242;
+	private static final String[] MODULES=new String[]{"/usr/lib/x86_64-linux-gnu/libstdc++.so.6",
+			"/usr/lib/x86_64-linux-gnu/libglib-2.0.so.0", "/usr/lib/x86_64-linux-gnu/libgtk-3.so.0",
+			"/usr/bin/app"};
+	private static final long[] MODULE_BASES=new long[]{0x7f1a91500000L, 0x7f1a92600000L, 0x7f1a93700000L, 0x400000L};
+	private static final long MODULE_SIZE=0x100000;
+	private final Args args;
+	private final Random rnd;
+	private final byte[][] siteStacks;
+	private final long[] siteSizes;
+	/**
+	 * Live blocks that may be freed, indexed by block id. Ids of freed blocks are reused.
+	 */
+	private long[] blockAddress=new long[1024];
+	private long[] blockSize=new long[1024];
+	private int[] blockPid=new int[1024];
+	/**
+	 * Allocation order of the live blocks: doubly linked list of block ids from the newest block. -1 is the end.
+	 * Free block ids are linked by newer from freeBlock.
+	 */
+	private int[] older=new int[1024];
+	private int[] newer=new int[1024];
+	private int newest=-1;
+	private int freeBlock=-1;
+	private int nBlocks;
+	/**
+	 * Ids of the live blocks for random selection (in no particular order) and the index of each block in it.
+	 */
+	private int[] live=new int[1024];
+	private int[] livePos=new int[1024];
+	private int nLive;
+	/**
+	 * Freed addresses that may be reused.
+	 */
+	private long[] freeAddress=new long[1024];
+	private int nFree;
+	private long nextAddress=0x55d0f0000000L;
+	private final StringBuilder line=new StringBuilder();
+	private volatile long writtenRecords;
+	private volatile long writtenBytes;
+	public LogGenerator(Args args) {
+		this.args=args;
+		this.rnd=new Random(args.seed);
+		siteStacks=new byte[args.sites][];
+		siteSizes=new long[args.sites];
+		for(int i=0;i<args.sites;++i)
+		{
+			StringBuilder sb=new StringBuilder();
+			for(int j=0;j<args.depth;++j)
+			{
+				int m=rnd.nextInt(MODULES.length);
+				long offset=rnd.nextInt((int)MODULE_SIZE);
+				sb.append(MODULES[m]).append("(+0x").append(Long.toHexString(offset)).append(")[0x")
+					.append(Long.toHexString(MODULE_BASES[m]+offset)).append("]\n");
+			}
+			siteStacks[i]=sb.toString().getBytes(StandardCharsets.US_ASCII);
+			// Typical sizes are small, some sites allocate large blocks
+			siteSizes[i]=rnd.nextInt(10)==0?4096L<<rnd.nextInt(6):16+8*rnd.nextInt(32);
+		}
+	}
+	/**
+	 * Write the header of the stream: PID, executable, working directory, memory maps and the INIT record.
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeHeader(OutputStream out) throws IOException
+	{
+		StringBuilder sb=new StringBuilder();
+		sb.append("# PID ").append(PID).append("\n# EXE /usr/bin/app\n# CWD /tmp\n# MAPS\n");
+		for(int i=0;i<MODULES.length;++i)
+		{
+			sb.append(Long.toHexString(MODULE_BASES[i])).append('-').append(Long.toHexString(MODULE_BASES[i]+MODULE_SIZE))
+				.append(" r-xp 00000000 08:02 ").append(1000+i).append(' ').append(MODULES[i]).append('\n');
+		}
+		sb.append("+ INIT 32 0x7f1a9b04e140 ").append(PID).append(' ').append(PID).append("\n-\n");
+		write(out, sb.toString().getBytes(StandardCharsets.US_ASCII));
+		writtenRecords++;
+	}
+	/**
+	 * Write the next record of the stream (two records in case of a realloc pair).
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeRecord(OutputStream out) throws IOException
+	{
+		int site=pickSite();
+		int r=rnd.nextInt(100);
+		if(nLive>0 && r<args.reallocPercent)
+		{
+			int b=live[rnd.nextInt(nLive)];
+			long pid=blockPid[b];
+			long tid=pickTid(pid);
+			writeEntry(out, "realloc_free", blockSize[b], blockAddress[b], pid, tid, site);
+			releaseAddress(blockAddress[b]);
+			removeBlock(b);
+			long size=pickSize(site);
+			long address=allocateAddress(size);
+			addBlock(address, size, pid);
+			writeEntry(out, "realloc_alloc", size, address, pid, tid, site);
+		}else if(nLive>0 && r<args.reallocPercent+args.freePercent)
+		{
+			int b=rnd.nextInt(100)<args.lifoPercent?newest:live[rnd.nextInt(nLive)];
+			long pid=blockPid[b];
+			writeEntry(out, "free", blockSize[b], blockAddress[b], pid, pickTid(pid), site);
+			releaseAddress(blockAddress[b]);
+			removeBlock(b);
+		}else
+		{
+			long pid=PID+rnd.nextInt(Math.max(1, args.pids))*1000;
+			long size=pickSize(site);
+			long address=allocateAddress(size);
+			if(rnd.nextInt(100)>=args.leakPercent)
+			{
+				addBlock(address, size, pid);
+			}
+			writeEntry(out, rnd.nextInt(8)==0?"calloc":"malloc", size, address, pid, pickTid(pid), site);
+		}
+	}
+	/**
+	 * Store a live block as the newest one.
+	 */
+	private void addBlock(long address, long size, long pid)
+	{
+		int b=freeBlock;
+		if(b>=0)
+		{
+			freeBlock=newer[b];
+		}else
+		{
+			if(nBlocks==blockAddress.length)
+			{
+				int l=nBlocks*2;
+				blockAddress=Arrays.copyOf(blockAddress, l);
+				blockSize=Arrays.copyOf(blockSize, l);
+				blockPid=Arrays.copyOf(blockPid, l);
+				older=Arrays.copyOf(older, l);
+				newer=Arrays.copyOf(newer, l);
+				live=Arrays.copyOf(live, l);
+				livePos=Arrays.copyOf(livePos, l);
+			}
+			b=nBlocks++;
+		}
+		blockAddress[b]=address;
+		blockSize[b]=size;
+		blockPid[b]=(int)pid;
+		older[b]=newest;
+		newer[b]=-1;
+		if(newest>=0)
+		{
+			newer[newest]=b;
+		}
+		newest=b;
+		live[nLive]=b;
+		livePos[b]=nLive;
+		nLive++;
+	}
+	/**
+	 * Remove a freed block: unlink it from the allocation order and move the last live block to its place.
+	 */
+	private void removeBlock(int b)
+	{
+		if(older[b]>=0)
+		{
+			newer[older[b]]=newer[b];
+		}
+		if(newer[b]>=0)
+		{
+			older[newer[b]]=older[b];
+		}else
+		{
+			newest=older[b];
+		}
+		nLive--;
+		int last=live[nLive];
+		live[livePos[b]]=last;
+		livePos[last]=livePos[b];
+		newer[b]=freeBlock;
+		freeBlock=b;
+	}
+	private void writeEntry(OutputStream out, String method, long size, long address, long pid, long tid, int site) throws IOException
+	{
+		line.setLength(0);
+		line.append("+ ").append(method).append(' ').append(size).append(" 0x").append(Long.toHexString(address))
+			.append(' ').append(pid).append(' ').append(tid).append('\n');
+		write(out, line.toString().getBytes(StandardCharsets.US_ASCII));
+		write(out, siteStacks[site]);
+		out.write('-');
+		out.write('\n');
+		writtenBytes+=2;
+		writtenRecords++;
+	}
+	private void write(OutputStream out, byte[] b) throws IOException
+	{
+		out.write(b);
+		writtenBytes+=b.length;
+	}
+	/**
+	 * Skewed site selection: low site indexes are selected much more often.
+	 */
+	private int pickSite()
+	{
+		return (int)(siteStacks.length*Math.pow(rnd.nextDouble(), args.skew));
+	}
+	private long pickSize(int site)
+	{
+		return rnd.nextInt(4)==0?siteSizes[site]+8*rnd.nextInt(16):siteSizes[site];
+	}
+	private long pickTid(long pid)
+	{
+		return pid+rnd.nextInt(Math.max(1, args.threads));
+	}
+	private long allocateAddress(long size)
+	{
+		if(nFree>0 && rnd.nextInt(4)!=0)
+		{
+			return freeAddress[--nFree];
+		}
+		long ret=nextAddress;
+		nextAddress+=(size+31)&~15L;
+		return ret;
+	}
+	private void releaseAddress(long address)
+	{
+		if(nFree==freeAddress.length)
+		{
+			freeAddress=Arrays.copyOf(freeAddress, nFree*2);
+		}
+		freeAddress[nFree++]=address;
+	}
+	/**
+	 * Write the header and the configured number of records at the configured rate.
+	 * @param out closed when finished
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run(OutputStream out) throws IOException, InterruptedException
+	{
+		try(OutputStream bos=new BufferedOutputStream(out, 64*1024))
+		{
+			long t0=System.nanoTime();
+			writeHeader(bos);
+			while(args.records==0 || writtenRecords<args.records)
+			{
+				writeRecord(bos);
+				if(args.rate>0 && writtenRecords%256==0)
+				{
+					bos.flush();
+					long ahead=writtenRecords*1000000000L/args.rate-(System.nanoTime()-t0);
+					if(ahead>1000000)
+					{
+						Thread.sleep(ahead/1000000);
+					}
+				}
+			}
+		}
+	}
+	/**
+	 * Open the configured output: the file (or FIFO) or the TCP connection.
+	 * @return
+	 * @throws IOException
+	 */
+	public OutputStream openOutput() throws IOException
+	{
+		if(args.out!=null)
+		{
+			return new FileOutputStream(args.out);
+		}
+		if(args.host!=null)
+		{
+			@SuppressWarnings("resource")
+			Socket s=new Socket(args.host, args.port);
+			return s.getOutputStream();
+		}
+		throw new IllegalArgumentException("--out or --host must be set");
+	}
+	/**
+	 * @return number of records written (including the INIT record)
+	 */
+	public long getWrittenRecords() {
+		return writtenRecords;
+	}
+	public long getWrittenBytes() {
+		return writtenBytes;
+	}
+	/**
+	 * @return number of blocks allocated and not freed yet (leaked blocks are not included)
+	 */
+	public int getLiveCount() {
+		return nLive;
+	}
+	public static void main(String[] args) throws Exception {
+		Args a=new Args();
+		AnnotatedClass ac=new AnnotatedClass();
+		ac.parseAnnotations(a);
+		ac.parseArgs(args);
+		if(a.out==null && a.host==null)
+		{
+			System.out.println("Synthetic log-malloc-simple stream generator. Usage:");
+			ac.printHelpOn(System.out);
+			return;
+		}
+		LogGenerator g=new LogGenerator(a);
+		long t0=System.nanoTime();
+		g.run(g.openOutput());
+		double seconds=(System.nanoTime()-t0)/1e9;
+		System.out.println("Written records: "+g.getWrittenRecords()+" bytes: "+g.getWrittenBytes()+" in "+seconds+" s ("
+				+(long)(g.getWrittenRecords()/seconds)+" records/s)");
+	}
+}
@@ -0,0 +1,1090 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk index of a recorded log (tee file, its segments or an archive, see {@link LogArchive}) that maps
+ * addresses and allocator keys to the entries of the log: the history of an address (all allocations and frees of it)
+ * and the allocations of an allocator are found without processing the whole log again.
+ *
+ * Allocations and frees are indexed. Each is identified by its sequence number (index among the allocations and
+ * frees of the log, starting from 0)
+ * and the offset of its header line in the log stream (uncompressed). The text of the entries is read from the log
+ * when queried: plain files are seeked, compressed files are decompressed from their beginning.
+ *
+ * The file is written with the encoding of the {@link BinarySnapshot} (all numbers are LEB128 varints):
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>files of the log: number of files, then path and offset of the first byte in the stream of each</li>
+ * <li>allocator keys: number of keys, then the text of each. Keys are referenced by their index.</li>
+ * <li>address section: blocks of groups ordered by address. A group is the address (delta to the previous one
+ * in the block), the number of entries then the sequence number and offset delta of each entry.</li>
+ * <li>allocator section: blocks of groups ordered by key index in the same format. Only allocations are indexed.</li>
+ * <li>directory: number of blocks, then first address (key) and file position of each block for both sections</li>
+ * <li>file position of the directory (8 bytes big endian) and {@link #MAGIC}</li>
+ * </ul>
+ * A query reads the header and the directory then a single block of the index.
+ */
+public class LogIndex {
+	/**
+	 * First and last bytes of an index file.
+	 */
+	public static final byte[] MAGIC="LMSINDX1".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * Number of groups in a block of the address and of the allocator section.
+	 */
+	private static final int ADDRESS_BLOCK=1024;
+	private static final int KEY_BLOCK=16;
+	/**
+	 * Number of records sorted in memory while the index is built (about 64 MB with the sort buffers).
+	 */
+	private static final int RUN_RECORDS=2*1024*1024;
+	/**
+	 * Maximum number of runs merged at once.
+	 */
+	private static final int MERGE_RUNS=64;
+	private final File file;
+	private final File[] files;
+	private final long[] fileStarts;
+	private final String[] keys;
+	private final long[] addressBlockFirst;
+	private final long[] addressBlockPos;
+	private final long[] keyBlockFirst;
+	private final long[] keyBlockPos;
+	/**
+	 * File position of the directory: end of the last block.
+	 */
+	private final long directoryPos;
+	private LogIndex(File file, File[] files, long[] fileStarts, String[] keys, long[] addressBlockFirst,
+			long[] addressBlockPos, long[] keyBlockFirst, long[] keyBlockPos, long directoryPos) {
+		this.file=file;
+		this.files=files;
+		this.fileStarts=fileStarts;
+		this.keys=keys;
+		this.addressBlockFirst=addressBlockFirst;
+		this.addressBlockPos=addressBlockPos;
+		this.keyBlockFirst=keyBlockFirst;
+		this.keyBlockPos=keyBlockPos;
+		this.directoryPos=directoryPos;
+	}
+	/**
+	 * Entries of the log found by a query.
+	 */
+	public static class Result
+	{
+		/**
+		 * Number of all entries found.
+		 */
+		public final long count;
+		/**
+		 * Sequence numbers and offsets of the last entries found in increasing order.
+		 */
+		public final long[] seqs;
+		public final long[] offsets;
+		Result(long count, long[] seqs, long[] offsets) {
+			this.count=count;
+			this.seqs=seqs;
+			this.offsets=offsets;
+		}
+		public long size()
+		{
+			return count;
+		}
+	}
+	/**
+	 * Records of the log collected while the index is built: a run of consecutive records of bounded size.
+	 * The sequence number of a record is the sequence number of the first one plus its index.
+	 */
+	private static class Records
+	{
+		final long[] offsets=new long[RUN_RECORDS];
+		final long[] addresses=new long[RUN_RECORDS];
+		/**
+		 * Index of the allocator key. -1 in case of frees and entries without stack trace.
+		 */
+		final long[] keys=new long[RUN_RECORDS];
+		long first;
+		int n;
+		void add(long offset, long address, int key)
+		{
+			offsets[n]=offset;
+			addresses[n]=address;
+			keys[n]=key;
+			n++;
+		}
+		boolean isFull()
+		{
+			return n==RUN_RECORDS;
+		}
+	}
+	/**
+	 * Build the index of a recorded log.
+	 *
+	 * Memory use does not depend on the length of the log: records are collected in runs of {@link #RUN_RECORDS},
+	 * each run is sorted by address and by key and spilled into temporary files next to the index file.
+	 * The sections of the index are written by merging the runs.
+	 * @param spec the log, see {@link LogArchive}
+	 * @param indexFile
+	 * @param canonicalFrames index the allocator keys rewritten to module relative offsets, see {@link Analyze.Args#canonicalFrames}
+	 * @return number of indexed entries
+	 * @throws IOException
+	 */
+	public static long build(String spec, File indexFile, boolean canonicalFrames) throws IOException
+	{
+		List<File> files=LogArchive.getFiles(spec);
+		final StackDictionary stacks=new StackDictionary();
+		final Records records=new Records();
+		final Runs runs=new Runs(indexFile.getAbsoluteFile().getParentFile());
+		final Map<Integer, Integer> keyIndexes=new HashMap<Integer, Integer>();
+		final List<String> keys=new ArrayList<String>();
+		final LogParser[] parser=new LogParser[1];
+		final IOException[] error=new IOException[1];
+		parser[0]=new LogParser(stacks, new LogParser.Listener() {
+			@Override
+			public void entryParsed(Entry e) {
+				if(!e.isKnown() || !(e.isAllocation() || e.isFree()) || error[0]!=null)
+				{
+					return;
+				}
+				int key=-1;
+				if(e.isAllocation() && e.getAllocatorKeyId()!=StackDictionary.NO_FRAME)
+				{
+					Integer k=keyIndexes.get(e.getAllocatorKeyId());
+					if(k==null)
+					{
+						k=keys.size();
+						keyIndexes.put(e.getAllocatorKeyId(), k);
+						keys.add(e.getAllocatorKey());
+					}
+					key=k;
+				}
+				records.add(parser[0].getEntryStart(), e.getAddress(), key);
+				if(records.isFull())
+				{
+					try
+					{
+						runs.spill(records);
+					}catch(IOException ex)
+					{
+						error[0]=ex;
+					}
+				}
+			}
+		});
+		ProcessMaps header=new ProcessMaps();
+		LogArchive.SegmentInputStream segments=LogArchive.concat(files);
+		try
+		{
+			try(InputStream in=new LogArchive.ReadAheadInputStream(segments))
+			{
+				ByteBuffer buf=ByteBuffer.allocate(1024*1024);
+				int n;
+				while(error[0]==null && (n=in.read(buf.array(), buf.position(), buf.remaining()))>=0)
+				{
+					buf.position(buf.position()+n);
+					buf.flip();
+					if(!header.isComplete())
+					{
+						header.parse(buf.array(), buf.position(), buf.limit());
+						if(canonicalFrames && header.isComplete())
+						{
+							parser[0].setProcessMaps(header);
+						}
+					}
+					parser[0].parse(buf);
+					buf.compact();
+				}
+				buf.flip();
+				parser[0].finish(buf);
+			}
+			if(error[0]!=null)
+			{
+				throw error[0];
+			}
+			runs.spill(records);
+			write(indexFile, files, segments.getStarts(), keys, runs);
+			return runs.total;
+		}finally
+		{
+			runs.delete();
+		}
+	}
+	private static void write(File indexFile, List<File> files, long[] fileStarts, List<String> keys, Runs runs) throws IOException
+	{
+		File tmp=new File(indexFile.getPath()+".tmp");
+		try(FileOutputStream fos=new FileOutputStream(tmp))
+		{
+			CountingOutputStream cos=new CountingOutputStream(fos);
+			BinarySnapshot.Writer w=new BinarySnapshot.Writer(cos);
+			w.bytes(MAGIC);
+			w.varint(files.size());
+			for(int i=0;i<files.size();++i)
+			{
+				w.string(files.get(i).getAbsolutePath());
+				w.varint(fileStarts[i]);
+			}
+			w.varint(keys.size());
+			for(String k: keys)
+			{
+				w.string(k);
+			}
+			List<long[]> addressBlocks=writeSection(w, cos, runs, runs.byAddress, ADDRESS_BLOCK);
+			List<long[]> keyBlocks=writeSection(w, cos, runs, runs.byKey, KEY_BLOCK);
+			w.flush();
+			long directoryPos=cos.count;
+			writeDirectory(w, addressBlocks);
+			writeDirectory(w, keyBlocks);
+			w.flush();
+			fos.write(ByteBuffer.allocate(8).putLong(directoryPos).array());
+			fos.write(MAGIC);
+		}
+		if(indexFile.exists() && !indexFile.delete())
+		{
+			throw new IOException("Can not replace index file: "+indexFile.getAbsolutePath());
+		}
+		if(!tmp.renameTo(indexFile))
+		{
+			throw new IOException("Can not rename index file: "+tmp.getAbsolutePath());
+		}
+	}
+	/**
+	 * Write the records grouped by value in blocks.
+	 * The sorted runs are merged twice at the same time: the leading merge counts the records of the next group
+	 * (the count is written before the records) and the trailing merge writes them. So a group of any size
+	 * is not held in memory.
+	 * @param sorted runs sorted by value then by sequence number
+	 * @param groupsPerBlock
+	 * @return first value and file position of each block
+	 */
+	private static List<long[]> writeSection(BinarySnapshot.Writer w, CountingOutputStream cos, Runs runs, List<File> sorted,
+			int groupsPerBlock) throws IOException
+	{
+		List<long[]> ret=new ArrayList<long[]>();
+		List<File> merged=runs.reduce(sorted);
+		try(Merge lead=new Merge(merged); Merge trail=new Merge(merged))
+		{
+			long groups=0;
+			long prevValue=0;
+			while(lead.hasNext())
+			{
+				long value=lead.value;
+				long n=0;
+				while(lead.hasNext() && lead.value==value)
+				{
+					n++;
+					lead.next();
+				}
+				if(groups%groupsPerBlock==0)
+				{
+					w.flush();
+					ret.add(new long[]{value, cos.count});
+					prevValue=value;
+					w.varint(0);
+				}else
+				{
+					w.varint(value-prevValue);
+					prevValue=value;
+				}
+				groups++;
+				w.varint(n);
+				long prevSeq=0;
+				long prevOffset=0;
+				for(long k=0;k<n;++k)
+				{
+					w.varint(trail.seq-prevSeq);
+					w.varint(trail.offset-prevOffset);
+					prevSeq=trail.seq;
+					prevOffset=trail.offset;
+					trail.next();
+				}
+			}
+		}
+		return ret;
+	}
+	private static void writeDirectory(BinarySnapshot.Writer w, List<long[]> blocks) throws IOException
+	{
+		w.varint(blocks.size());
+		for(long[] b: blocks)
+		{
+			w.svarint(b[0]);
+			w.varint(b[1]);
+		}
+	}
+	/**
+	 * Stable sort of the indexes of the values: equal values are ordered by index (sequence number).
+	 * Values are compared unsigned so addresses are in natural order.
+	 * @param values
+	 * @param n number of values
+	 * @return the indexes of the values in order
+	 */
+	private static int[] sortedIndexes(long[] values, int n)
+	{
+		int[] ret=new int[n];
+		for(int i=0;i<n;++i)
+		{
+			ret[i]=i;
+		}
+		int[] tmp=new int[n];
+		for(int width=1;width<n;width*=2)
+		{
+			for(int lo=0;lo<n;lo+=2*width)
+			{
+				int mid=Math.min(lo+width, n);
+				int hi=Math.min(lo+2*width, n);
+				int a=lo;
+				int b=mid;
+				for(int k=lo;k<hi;++k)
+				{
+					if(a<mid && (b>=hi || Long.compareUnsigned(values[ret[a]], values[ret[b]])<=0))
+					{
+						tmp[k]=ret[a++];
+					}else
+					{
+						tmp[k]=ret[b++];
+					}
+				}
+			}
+			int[] t=ret;
+			ret=tmp;
+			tmp=t;
+		}
+		return ret;
+	}
+	/**
+	 * Temporary files of the sorted runs. A record is stored as its value (address or key index), sequence number
+	 * and offset (8 bytes each). Runs are in the order of the log so records with equal values are merged
+	 * in sequence number order.
+	 */
+	private static class Runs
+	{
+		private final File dir;
+		final List<File> byAddress=new ArrayList<File>();
+		final List<File> byKey=new ArrayList<File>();
+		private final List<File> all=new ArrayList<File>();
+		long total;
+		Runs(File dir) {
+			this.dir=dir;
+		}
+		/**
+		 * Sort the records and write them into a new run of both sections. The records are cleared.
+		 */
+		void spill(Records r) throws IOException
+		{
+			if(r.n==0)
+			{
+				return;
+			}
+			byAddress.add(writeRun(r, r.addresses));
+			byKey.add(writeRun(r, r.keys));
+			total+=r.n;
+			r.first+=r.n;
+			r.n=0;
+		}
+		private File writeRun(Records r, long[] values) throws IOException
+		{
+			File ret=create();
+			try(DataOutputStream out=open(ret))
+			{
+				for(int i: sortedIndexes(values, r.n))
+				{
+					// Records without key are ordered last (unsigned compare): not indexed
+					if(values==r.keys && values[i]<0)
+					{
+						break;
+					}
+					out.writeLong(values[i]);
+					out.writeLong(r.first+i);
+					out.writeLong(r.offsets[i]);
+				}
+			}
+			return ret;
+		}
+		/**
+		 * Merge the runs in steps of {@link #MERGE_RUNS} until there are at most that many, so the number of open files
+		 * is bounded.
+		 * @param runs
+		 * @return runs that contain the same records in the same order when merged
+		 */
+		List<File> reduce(List<File> runs) throws IOException
+		{
+			List<File> ret=runs;
+			while(ret.size()>MERGE_RUNS)
+			{
+				List<File> next=new ArrayList<File>();
+				for(int i=0;i<ret.size();i+=MERGE_RUNS)
+				{
+					File f=create();
+					try(Merge m=new Merge(ret.subList(i, Math.min(i+MERGE_RUNS, ret.size())));
+						DataOutputStream out=open(f))
+					{
+						while(m.hasNext())
+						{
+							out.writeLong(m.value);
+							out.writeLong(m.seq);
+							out.writeLong(m.offset);
+							m.next();
+						}
+					}
+					next.add(f);
+				}
+				ret=next;
+			}
+			return ret;
+		}
+		private File create() throws IOException
+		{
+			File ret=File.createTempFile("index", ".run", dir);
+			all.add(ret);
+			return ret;
+		}
+		private static DataOutputStream open(File f) throws IOException
+		{
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 64*1024));
+		}
+		void delete()
+		{
+			for(File f: all)
+			{
+				f.delete();
+			}
+		}
+	}
+	/**
+	 * K-way merge of sorted runs by value (unsigned) then by sequence number. The current record is in the fields.
+	 */
+	private static class Merge implements Closeable
+	{
+		private final DataInputStream[] ins;
+		/**
+		 * Current record of each run.
+		 */
+		private final long[] values;
+		private final long[] seqs;
+		private final long[] offsets;
+		/**
+		 * Min-heap of the indexes of the runs that are not finished.
+		 */
+		private final int[] heap;
+		private int size;
+		long value;
+		long seq;
+		long offset;
+		Merge(List<File> runs) throws IOException {
+			int n=runs.size();
+			ins=new DataInputStream[n];
+			values=new long[n];
+			seqs=new long[n];
+			offsets=new long[n];
+			heap=new int[n];
+			try
+			{
+				for(int i=0;i<n;++i)
+				{
+					ins[i]=new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), 16*1024));
+					if(read(i))
+					{
+						heap[size]=i;
+						siftUp(size++);
+					}
+				}
+			}catch(IOException e)
+			{
+				close();
+				throw e;
+			}
+			current();
+		}
+		private boolean read(int i) throws IOException
+		{
+			try
+			{
+				values[i]=ins[i].readLong();
+				seqs[i]=ins[i].readLong();
+				offsets[i]=ins[i].readLong();
+				return true;
+			}catch(EOFException e)
+			{
+				return false;
+			}
+		}
+		boolean hasNext()
+		{
+			return size>0;
+		}
+		/**
+		 * Step to the next record.
+		 */
+		void next() throws IOException
+		{
+			if(read(heap[0]))
+			{
+				siftDown(0);
+			}else
+			{
+				heap[0]=heap[--size];
+				siftDown(0);
+			}
+			current();
+		}
+		private void current()
+		{
+			if(size>0)
+			{
+				value=values[heap[0]];
+				seq=seqs[heap[0]];
+				offset=offsets[heap[0]];
+			}
+		}
+		private boolean less(int a, int b)
+		{
+			int c=Long.compareUnsigned(values[a], values[b]);
+			return c<0 || (c==0 && seqs[a]<seqs[b]);
+		}
+		private void siftUp(int i)
+		{
+			while(i>0)
+			{
+				int parent=(i-1)/2;
+				if(!less(heap[i], heap[parent]))
+				{
+					break;
+				}
+				int t=heap[i];
+				heap[i]=heap[parent];
+				heap[parent]=t;
+				i=parent;
+			}
+		}
+		private void siftDown(int i)
+		{
+			while(true)
+			{
+				int min=i;
+				int l=2*i+1;
+				int r=l+1;
+				if(l<size && less(heap[l], heap[min]))
+				{
+					min=l;
+				}
+				if(r<size && less(heap[r], heap[min]))
+				{
+					min=r;
+				}
+				if(min==i)
+				{
+					return;
+				}
+				int t=heap[i];
+				heap[i]=heap[min];
+				heap[min]=t;
+				i=min;
+			}
+		}
+		@Override
+		public void close() throws IOException
+		{
+			for(DataInputStream in: ins)
+			{
+				if(in!=null)
+				{
+					in.close();
+				}
+			}
+		}
+	}
+	private static class CountingOutputStream extends OutputStream
+	{
+		private final OutputStream out;
+		long count;
+		CountingOutputStream(OutputStream out) {
+			this.out=out;
+		}
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count+=len;
+		}
+	}
+	/**
+	 * Open an index file: the header and the directory are loaded.
+	 * @param f
+	 * @return
+	 * @throws IOException in case the file can not be read or it is not a complete index
+	 */
+	public static LogIndex open(File f) throws IOException
+	{
+		try(RandomAccessFile raf=new RandomAccessFile(f, "r"))
+		{
+			FileChannel ch=raf.getChannel();
+			long trailer=ch.size()-8-MAGIC.length;
+			ByteBuffer end=ByteBuffer.allocate(8+MAGIC.length);
+			if(trailer<MAGIC.length || readFully(ch, end, trailer)<end.capacity()
+					|| !Arrays.equals(Arrays.copyOfRange(end.array(), 8, end.capacity()), MAGIC))
+			{
+				throw new StreamCorruptedException("Not a complete index file: "+f.getAbsolutePath());
+			}
+			long directoryPos=end.getLong(0);
+			ch.position(0);
+			BinarySnapshot.Reader r=new BinarySnapshot.Reader(ch);
+			if(!r.matches(MAGIC))
+			{
+				throw new StreamCorruptedException("Not an index file: "+f.getAbsolutePath());
+			}
+			File[] files=new File[(int)r.varint()];
+			long[] fileStarts=new long[files.length];
+			for(int i=0;i<files.length;++i)
+			{
+				files[i]=new File(r.string());
+				fileStarts[i]=r.varint();
+			}
+			String[] keys=new String[(int)r.varint()];
+			for(int i=0;i<keys.length;++i)
+			{
+				keys[i]=r.string();
+			}
+			ch.position(directoryPos);
+			r=new BinarySnapshot.Reader(ch);
+			long[][] address=readDirectory(r);
+			long[][] key=readDirectory(r);
+			return new LogIndex(f, files, fileStarts, keys, address[0], address[1], key[0], key[1], directoryPos);
+		}
+	}
+	private static long[][] readDirectory(BinarySnapshot.Reader r) throws IOException
+	{
+		int n=(int)r.varint();
+		long[][] ret=new long[2][n];
+		for(int i=0;i<n;++i)
+		{
+			ret[0][i]=r.svarint();
+			ret[1][i]=r.varint();
+		}
+		return ret;
+	}
+	private static int readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException
+	{
+		while(b.hasRemaining())
+		{
+			if(ch.read(b, pos+b.position())<0)
+			{
+				break;
+			}
+		}
+		return b.position();
+	}
+	/**
+	 * @param address
+	 * @param n number of the last entries to return
+	 * @return the allocations and frees of the address
+	 * @throws IOException
+	 */
+	public Result history(long address, int n) throws IOException
+	{
+		return find(addressBlockFirst, addressBlockPos, address, true, n);
+	}
+	/**
+	 * @param key index of the allocator key, see {@link #findKeys(String)}
+	 * @param n number of the last entries to return
+	 * @return the allocations of the allocator
+	 * @throws IOException
+	 */
+	public Result sites(int key, int n) throws IOException
+	{
+		return find(keyBlockFirst, keyBlockPos, key, false, n);
+	}
+	/**
+	 * @param pattern
+	 * @return the index of the allocator key equal to the pattern or else the indexes of all keys that contain it
+	 */
+	public int[] findKeys(String pattern)
+	{
+		List<Integer> found=new ArrayList<Integer>();
+		for(int i=0;i<keys.length;++i)
+		{
+			if(keys[i].equals(pattern))
+			{
+				return new int[]{i};
+			}
+			if(keys[i].contains(pattern))
+			{
+				found.add(i);
+			}
+		}
+		int[] ret=new int[found.size()];
+		for(int i=0;i<ret.length;++i)
+		{
+			ret[i]=found.get(i);
+		}
+		return ret;
+	}
+	public String getKey(int key)
+	{
+		return keys[key];
+	}
+	/**
+	 * Find the group of the value. The block is streamed from the file, the other groups are skipped
+	 * and only the last max entries of the group are kept so memory use does not depend on the size of the index.
+	 */
+	private Result find(long[] blockFirst, long[] blockPos, long value, boolean unsigned, int max) throws IOException
+	{
+		int block=-1;
+		for(int lo=0, hi=blockFirst.length-1;lo<=hi;)
+		{
+			int mid=(lo+hi)>>>1;
+			int c=unsigned?Long.compareUnsigned(blockFirst[mid], value):Long.compare(blockFirst[mid], value);
+			if(c<=0)
+			{
+				block=mid;
+				lo=mid+1;
+			}else
+			{
+				hi=mid-1;
+			}
+		}
+		if(block>=0)
+		{
+			long end=block+1<blockPos.length?blockPos[block+1]:nextSectionStart(blockPos);
+			try(RandomAccessFile raf=new RandomAccessFile(file, "r"))
+			{
+				BinarySnapshot.Reader r=new BinarySnapshot.Reader(new BlockChannel(raf.getChannel(), blockPos[block], end));
+				long v=blockFirst[block];
+				boolean first=true;
+				while(true)
+				{
+					long delta;
+					try
+					{
+						delta=r.varint();
+					}catch(EOFException e)
+					{
+						break;
+					}
+					v=first?v:v+delta;
+					first=false;
+					long n=r.varint();
+					if(v==value)
+					{
+						return readGroup(r, n, max);
+					}
+					if(unsigned?Long.compareUnsigned(v, value)>0:v>value)
+					{
+						break;
+					}
+					for(long i=0;i<n;++i)
+					{
+						r.varint();
+						r.varint();
+					}
+				}
+			}
+		}
+		return new Result(0, new long[0], new long[0]);
+	}
+	/**
+	 * Read the entries of a group and keep the last max of them.
+	 */
+	private static Result readGroup(BinarySnapshot.Reader r, long n, int max) throws IOException
+	{
+		int size=(int)Math.min(n, Math.max(0, max));
+		long[] seqs=new long[size];
+		long[] offsets=new long[size];
+		long seq=0;
+		long offset=0;
+		for(long i=0;i<n;++i)
+		{
+			seq+=r.varint();
+			offset+=r.varint();
+			if(size>0)
+			{
+				int at=(int)(i%size);
+				seqs[at]=seq;
+				offsets[at]=offset;
+			}
+		}
+		// The ring buffer starts at the oldest kept entry
+		int from=size==0?0:(int)(n%size);
+		long[] retSeqs=new long[size];
+		long[] retOffsets=new long[size];
+		for(int i=0;i<size;++i)
+		{
+			retSeqs[i]=seqs[(from+i)%size];
+			retOffsets[i]=offsets[(from+i)%size];
+		}
+		return new Result(n, retSeqs, retOffsets);
+	}
+	/**
+	 * Reads a range of the file: a single block of the index.
+	 */
+	private static class BlockChannel implements ReadableByteChannel
+	{
+		private final FileChannel ch;
+		private long pos;
+		private final long end;
+		public BlockChannel(FileChannel ch, long pos, long end) {
+			this.ch=ch;
+			this.pos=pos;
+			this.end=end;
+		}
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if(pos>=end)
+			{
+				return -1;
+			}
+			ByteBuffer b=dst.slice();
+			b.limit((int)Math.min(b.remaining(), end-pos));
+			int ret=ch.read(b, pos);
+			if(ret>0)
+			{
+				pos+=ret;
+				dst.position(dst.position()+ret);
+			}
+			return ret;
+		}
+		@Override
+		public boolean isOpen() {
+			return ch.isOpen();
+		}
+		@Override
+		public void close() throws IOException {
+		}
+	}
+	/**
+	 * @return the end of the last block of the section: the start of the next section or the directory
+	 */
+	private long nextSectionStart(long[] blockPos)
+	{
+		if(blockPos==addressBlockPos && keyBlockPos.length>0)
+		{
+			return keyBlockPos[0];
+		}
+		return directoryPos;
+	}
+	/**
+	 * Read the text of entries from the log. The offsets are processed in increasing order with a single pass
+	 * over each file.
+	 * @param offsets offsets of the header lines of the entries in increasing order
+	 * @return the lines of each entry without the closing "-" line
+	 * @throws IOException
+	 */
+	public List<List<String>> readEntries(long[] offsets) throws IOException
+	{
+		List<List<String>> ret=new ArrayList<List<String>>();
+		int i=0;
+		while(i<offsets.length)
+		{
+			int f=findFile(offsets[i]);
+			// An entry may continue in the next file (segments are cut anywhere)
+			try(LineReader lr=new LineReader(files, f, fileStarts[f]))
+			{
+				while(i<offsets.length && (f+1==files.length || offsets[i]<fileStarts[f+1]))
+				{
+					lr.skipTo(offsets[i]);
+					List<String> lines=new ArrayList<String>();
+					String line;
+					while((line=lr.readLine())!=null && !line.startsWith("-"))
+					{
+						if(line.startsWith("+") && !lines.isEmpty())
+						{
+							// Entry not closed by "-"
+							break;
+						}
+						lines.add(line);
+					}
+					ret.add(lines);
+					i++;
+				}
+			}
+		}
+		return ret;
+	}
+	private int findFile(long offset)
+	{
+		int ret=0;
+		while(ret+1<files.length && fileStarts[ret+1]<=offset)
+		{
+			ret++;
+		}
+		return ret;
+	}
+	/**
+	 * Reads the lines of the log from the beginning of a file and continues in the next files at the end.
+	 * Tracks the position in the log stream.
+	 */
+	private static class LineReader implements Closeable
+	{
+		private final File[] files;
+		private int next;
+		private InputStream in;
+		private final byte[] buf=new byte[64*1024];
+		private int bufPos;
+		private int bufLimit;
+		/**
+		 * Position in the log stream of the next byte returned.
+		 */
+		private long position;
+		LineReader(File[] files, int first, long start) throws IOException {
+			this.files=files;
+			next=first+1;
+			in=LogArchive.openFile(files[first]);
+			position=start;
+		}
+		private boolean fill() throws IOException
+		{
+			while(true)
+			{
+				int n;
+				try
+				{
+					n=in.read(buf, 0, buf.length);
+				}catch(EOFException e)
+				{
+					// Compressed file cut at the end
+					n=-1;
+				}
+				if(n>=0)
+				{
+					bufPos=0;
+					bufLimit=n;
+					return true;
+				}
+				in.close();
+				in=null;
+				if(next==files.length)
+				{
+					return false;
+				}
+				in=LogArchive.openFile(files[next++]);
+			}
+		}
+		/**
+		 * Skip forward to the position (in the log stream). Plain files are seeked.
+		 */
+		void skipTo(long target) throws IOException
+		{
+			int n=(int)Math.min(bufLimit-bufPos, Math.max(0, target-position));
+			bufPos+=n;
+			position+=n;
+			while(position<target && in!=null)
+			{
+				long s=in.skip(target-position);
+				if(s<=0)
+				{
+					if(!fill() || bufLimit==0)
+					{
+						if(in==null)
+						{
+							return;
+						}
+						continue;
+					}
+					n=(int)Math.min(bufLimit, target-position);
+					bufPos=n;
+					position+=n;
+				}else
+				{
+					position+=s;
+				}
+			}
+		}
+		/**
+		 * @return the next line without the line end or null at the end of the log
+		 */
+		String readLine() throws IOException
+		{
+			StringBuilder sb=null;
+			while(true)
+			{
+				if(bufPos==bufLimit && (in==null || !fill()))
+				{
+					return sb==null?null:sb.toString();
+				}
+				int from=bufPos;
+				while(bufPos<bufLimit && buf[bufPos]!='\n')
+				{
+					bufPos++;
+				}
+				if(sb==null)
+				{
+					sb=new StringBuilder();
+				}
+				sb.append(new String(buf, from, bufPos-from, StandardCharsets.UTF_8));
+				position+=bufPos-from;
+				if(bufPos<bufLimit)
+				{
+					bufPos++;
+					position++;
+					return sb.toString();
+				}
+			}
+		}
+		@Override
+		public void close() throws IOException
+		{
+			if(in!=null)
+			{
+				in.close();
+				in=null;
+			}
+		}
+	}
+	/**
+	 * Print the entries found by a query: the entries kept in the result with their stack trace.
+	 * @param out
+	 * @param title
+	 * @param result
+	 * @throws IOException
+	 */
+	public void print(PrintStream out, String title, Result result) throws IOException
+	{
+		out.println(title+": "+result.size()+" entries"+(result.size()>result.seqs.length?", last "+result.seqs.length+":":""));
+		List<List<String>> entries=readEntries(result.offsets);
+		for(int i=0;i<entries.size();++i)
+		{
+			out.println("#"+result.seqs[i]+" at offset "+result.offsets[i]);
+			for(String line: entries.get(i))
+			{
+				out.println(line);
+			}
+		}
+	}
+	/**
+	 * @return the index file
+	 */
+	public File getFile() {
+		return file;
+	}
+	/**
+	 * @return number of allocator keys in the index
+	 */
+	public int getNumberOfKeys() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,483 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser of the log-malloc-simple output data stream that works on the raw bytes of the stream.
+ *
+ * Input is fed in chunks through {@link #parse(ByteBuffer)}. Complete lines are consumed from the buffer
+ * and the unfinished last line is left in the buffer so that the caller can compact it and append more data.
+ * The "+ method size 0xaddr pid tid" header lines are parsed in place without creating a String for the line.
+ * Stack frame lines are looked up in the {@link StackDictionary} by their bytes so only new frames are decoded.
+ * The stack trace of each entry is stored in the dictionary when the entry is closed.
+ *
+ * The parser is not thread safe. A single parser instance must be used for a single stream.
+ */
+public class LogParser {
+	/**
+	 * Receives the entries parsed from the stream.
+	 */
+	public interface Listener
+	{
+		/**
+		 * A log entry was closed by its "-" line (or by the next entry header or the end of the stream).
+		 * @param e the parsed entry. The object may be reused by the parser after this method returned.
+		 */
+		void entryParsed(Entry e);
+	}
+	/**
+	 * Method names that are expected in the stream. Stored as bytes so that they can be compared to the input
+	 * in place. The title of the entry will be the constant String so no new String is created.
+	 */
+	private static final String[] titles=new String[]{"malloc", "free", "calloc", "realloc_alloc", "realloc_free",
+			"memalign", "posix_memalign", "valloc", "pvalloc", "aligned_alloc", "INIT", "FINI"};
+	private static final byte[][] titleBytes=new byte[titles.length][];
+	static
+	{
+		for(int i=0;i<titles.length;++i)
+		{
+			titleBytes[i]=titles[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+	private final Listener listener;
+	/**
+	 * Frames and stack traces of parsed entries are stored into this dictionary.
+	 */
+	private final StackDictionary stacks;
+	/**
+	 * The entry that is being filled currently. null means that there is no open entry
+	 * (before the first header and after a "-" line).
+	 */
+	private Entry current;
+	/**
+	 * Known entries of other PIDs are skipped. 0 means no filtering.
+	 */
+	private long pidFilter;
+	/**
+	 * In case it is set then frames are rewritten to module relative offsets.
+	 */
+	private ProcessMaps maps;
+	/**
+	 * In case it is set then the stack lines of the entries that are not sampled are skipped.
+	 */
+	private Sampler sampler;
+	/**
+	 * The stack lines of all entries are skipped.
+	 */
+	private boolean skipStacks;
+	/**
+	 * The stack lines of the current entry are skipped.
+	 */
+	private boolean skipFrames;
+	/**
+	 * Number of bytes of the stream consumed by the parser and the offset of the header line of the open entry.
+	 */
+	private long consumed;
+	private long currentStart;
+	private byte[] canonical=new byte[256];
+	/**
+	 * Position of the next field to be parsed by the number parser methods.
+	 */
+	private int fieldPos;
+	/**
+	 * Size of the direct mapped caches of frames and stacks. Cache hits are resolved without accessing the
+	 * shared (synchronized) dictionary so multiple parsers do not contend on it.
+	 */
+	private static final int CACHE_SIZE=4096;
+	private final int[] frameCacheHash=new int[CACHE_SIZE];
+	/**
+	 * Text of the cached lines: the String stored in the dictionary unless the line was canonicalized.
+	 */
+	private final String[] frameCacheLines=new String[CACHE_SIZE];
+	private final int[] frameCacheId=new int[CACHE_SIZE];
+	private final int[] stackCacheHash=new int[CACHE_SIZE];
+	private final int[][] stackCacheFrames=new int[CACHE_SIZE][];
+	private final int[] stackCacheId=new int[CACHE_SIZE];
+	public LogParser(StackDictionary stacks, Listener listener) {
+		this.stacks=stacks;
+		this.listener=listener;
+	}
+	/**
+	 * Parse all complete lines found in the buffer between its position and limit.
+	 * After return the position of the buffer points to the first byte of the unfinished last line.
+	 * In case the buffer is full and contains no line end then the whole content is processed as a single line.
+	 * @param buf array backed buffer in read mode (flipped)
+	 */
+	public void parse(ByteBuffer buf)
+	{
+		if(!buf.hasArray())
+		{
+			throw new IllegalArgumentException("Only array backed buffers are supported");
+		}
+		byte[] a=buf.array();
+		int offset=buf.arrayOffset();
+		int lineStart=offset+buf.position();
+		int end=offset+buf.limit();
+		for(int i=lineStart;i<end;++i)
+		{
+			if(a[i]=='\n')
+			{
+				processLine(a, lineStart, i);
+				consumed+=i+1-lineStart;
+				lineStart=i+1;
+			}
+		}
+		if(lineStart==offset && buf.limit()==buf.capacity() && end>lineStart)
+		{
+			// Line is longer than the buffer: process it as a whole
+			processLine(a, lineStart, end);
+			consumed+=end-lineStart;
+			lineStart=end;
+		}
+		buf.position(lineStart-offset);
+	}
+	/**
+	 * Signal the end of the input stream. The remaining unfinished line in the buffer (if any) is processed
+	 * and the open entry is closed.
+	 * @param buf buffer in read mode (flipped) that holds the unfinished last line of the stream.
+	 */
+	public void finish(ByteBuffer buf)
+	{
+		if(buf.hasRemaining())
+		{
+			int offset=buf.arrayOffset();
+			processLine(buf.array(), offset+buf.position(), offset+buf.limit());
+			consumed+=buf.remaining();
+			buf.position(buf.limit());
+		}
+		closeEntry();
+	}
+	/**
+	 * Process a single line.
+	 * @param a
+	 * @param from index of the first character of the line
+	 * @param to index of the line end (exclusive)
+	 */
+	private void processLine(byte[] a, int from, int to)
+	{
+		if(from<to && a[from]=='+')
+		{
+			// Log entry starts. Close previous log entry and setup new object.
+			closeEntry();
+			currentStart=consumed;
+			current=createEntry();
+			parseHeader(current, a, from, to);
+			if(pidFilter!=0 && current.isKnown() && current.getPid()!=pidFilter)
+			{
+				// Stack lines of the skipped entry are ignored because there is no open entry
+				Entry e=current;
+				current=null;
+				entrySkipped(e);
+			}else
+			{
+				// Not sampled entries are accounted exactly but without stack trace
+				skipFrames=skipStacks || (sampler!=null && (current.isAllocation() || current.isFree())
+						&& !sampler.isSampled(current.getAddress(), current.getSize()));
+			}
+		}else if(from<to && a[from]=='-')
+		{
+			// Log entry finished. Process current log entry.
+			closeEntry();
+		}else if(current!=null && !skipFrames)
+		{
+			current.addFrame(internFrame(a, from, to));
+		}
+	}
+	private void closeEntry() {
+		if(current!=null)
+		{
+			Entry e=current;
+			current=null;
+			e.setStackId(internStack(e.getFrames(), e.getFrameCount()));
+			listener.entryParsed(e);
+		}
+	}
+	/**
+	 * @return number of bytes of the stream up to the end of the last closed entry: the entries before this offset
+	 * were all sent to the listener.
+	 */
+	public long getEntryBoundary()
+	{
+		return current==null?consumed:currentStart;
+	}
+	/**
+	 * @return offset in the stream of the header line of the open entry. In the listener: of the entry being closed.
+	 */
+	public long getEntryStart()
+	{
+		return currentStart;
+	}
+	/**
+	 * Entries of other PIDs than the given one are skipped right after their header was parsed:
+	 * their stack lines are not processed and the listener is not called.
+	 * Entries that have unknown method names are not skipped.
+	 * @param pid 0 means no filtering
+	 */
+	public void setPidFilter(long pid)
+	{
+		pidFilter=pid;
+	}
+	/**
+	 * Rewrite the absolute addresses of frames to module relative offsets, see {@link ProcessMaps#canonicalize(byte[], int, int, byte[])}.
+	 * Must be set before the first entry is parsed because the frame cache of the parser is not invalidated.
+	 * @param maps null means that frames are stored as they are
+	 */
+	public void setProcessMaps(ProcessMaps maps)
+	{
+		this.maps=maps;
+	}
+	/**
+	 * Skip the stack lines of the allocations and frees that are not sampled: the entries are delivered
+	 * to the listener without stack trace.
+	 * @param sampler null means that all stack traces are kept
+	 */
+	public void setSampler(Sampler sampler)
+	{
+		this.sampler=sampler;
+	}
+	/**
+	 * Skip the stack lines of all entries: only the header lines are parsed (eg. while the analyser is off).
+	 * @param skipStacks
+	 */
+	public void setSkipStacks(boolean skipStacks)
+	{
+		this.skipStacks=skipStacks;
+	}
+	/**
+	 * Find the PID of the first entry header in the data. Used to set up the PID filter before the data is parsed.
+	 * @param a
+	 * @param from
+	 * @param to
+	 * @return the first not 0 PID of the complete header lines or 0 if there is none
+	 */
+	public static long findFirstPid(byte[] a, int from, int to)
+	{
+		int lineStart=from;
+		for(int i=from;i<to;++i)
+		{
+			if(a[i]=='\n')
+			{
+				if(i>lineStart && a[lineStart]=='+')
+				{
+					// Skip "+", method, size and address
+					int p=lineStart;
+					for(int field=0;field<4;++field)
+					{
+						while(p<i && a[p]!=' ')
+						{
+							p++;
+						}
+						while(p<i && a[p]==' ')
+						{
+							p++;
+						}
+					}
+					long ret=0;
+					while(p<i && a[p]>='0' && a[p]<='9')
+					{
+						ret=ret*10+(a[p]-'0');
+						p++;
+					}
+					if(ret!=0)
+					{
+						return ret;
+					}
+				}
+				lineStart=i+1;
+			}
+		}
+		return 0;
+	}
+	/**
+	 * An entry created by {@link #createEntry()} was skipped by the PID filter. Subclasses may reuse the object.
+	 * @param e
+	 */
+	protected void entrySkipped(Entry e)
+	{
+	}
+	/**
+	 * Create the object that will be filled with the data of the next entry in the stream.
+	 * Subclasses may return reused objects.
+	 * @return
+	 */
+	protected Entry createEntry()
+	{
+		return new Entry(stacks);
+	}
+	private int internFrame(byte[] a, int from, int to)
+	{
+		int h=0;
+		for(int i=from;i<to;++i)
+		{
+			h=31*h+a[i];
+		}
+		int c=(h^(h>>>12))&(CACHE_SIZE-1);
+		String cached=frameCacheLines[c];
+		if(cached!=null && frameCacheHash[c]==h && StackDictionary.equalsLine(cached, a, from, to))
+		{
+			return frameCacheId[c];
+		}
+		int id;
+		int l=-1;
+		if(maps!=null)
+		{
+			int capacity=to-from+maps.getMaxGrowth();
+			if(canonical.length<capacity)
+			{
+				canonical=new byte[capacity];
+			}
+			l=maps.canonicalize(a, from, to, canonical);
+		}
+		if(l>=0)
+		{
+			id=stacks.internFrame(canonical, 0, l);
+			frameCacheLines[c]=new String(a, from, to-from, StandardCharsets.UTF_8);
+		}else
+		{
+			id=stacks.internFrame(a, from, to);
+			frameCacheLines[c]=stacks.getFrame(id);
+		}
+		frameCacheHash[c]=h;
+		frameCacheId[c]=id;
+		return id;
+	}
+	private int internStack(int[] frames, int n)
+	{
+		int h=n;
+		for(int i=0;i<n;++i)
+		{
+			h=31*h+frames[i];
+		}
+		int c=(h^(h>>>12))&(CACHE_SIZE-1);
+		int[] cached=stackCacheFrames[c];
+		if(cached!=null && stackCacheHash[c]==h && cached.length==n)
+		{
+			int i=0;
+			while(i<n && cached[i]==frames[i])
+			{
+				i++;
+			}
+			if(i==n)
+			{
+				return stackCacheId[c];
+			}
+		}
+		int id=stacks.internStack(frames, n);
+		stackCacheHash[c]=h;
+		stackCacheFrames[c]=Arrays.copyOf(frames, n);
+		stackCacheId[c]=id;
+		return id;
+	}
+	/**
+	 * Parse the "+ method size 0xaddr pid tid" header line into the entry.
+	 * Missing fields are left 0 (eg. in case of "+ FINI").
+	 */
+	private void parseHeader(Entry e, byte[] a, int from, int to)
+	{
+		fieldPos=from+1;
+		int titleStart=skipSpaces(a, to);
+		int titleEnd=skipField(a, to);
+		e.setTitle(getTitle(a, titleStart, titleEnd));
+		long size=parseDecimal(a, to);
+		long address=parseAddress(a, to);
+		long pid=parseDecimal(a, to);
+		long tid=parseDecimal(a, to);
+		e.setFields(size, address, pid, tid);
+	}
+	private String getTitle(byte[] a, int from, int to) {
+		int l=to-from;
+		outer:
+		for(int i=0;i<titleBytes.length;++i)
+		{
+			byte[] t=titleBytes[i];
+			if(t.length==l)
+			{
+				for(int j=0;j<l;++j)
+				{
+					if(t[j]!=a[from+j])
+					{
+						continue outer;
+					}
+				}
+				return titles[i];
+			}
+		}
+		return new String(a, from, l, StandardCharsets.UTF_8);
+	}
+	private int skipSpaces(byte[] a, int to)
+	{
+		while(fieldPos<to && a[fieldPos]==' ')
+		{
+			fieldPos++;
+		}
+		return fieldPos;
+	}
+	private int skipField(byte[] a, int to)
+	{
+		while(fieldPos<to && a[fieldPos]!=' ')
+		{
+			fieldPos++;
+		}
+		return fieldPos;
+	}
+	private long parseDecimal(byte[] a, int to)
+	{
+		int from=skipSpaces(a, to);
+		long ret=0;
+		while(fieldPos<to)
+		{
+			int c=a[fieldPos];
+			if(c>='0' && c<='9')
+			{
+				ret=ret*10+(c-'0');
+			}else if(c==' ')
+			{
+				break;
+			}else
+			{
+				System.err.println("Number parse error: "+new String(a, from, skipField(a, to)-from, StandardCharsets.UTF_8));
+				return 0;
+			}
+			fieldPos++;
+		}
+		return ret;
+	}
+	private long parseAddress(byte[] a, int to)
+	{
+		int from=skipSpaces(a, to);
+		int fieldEnd=skipField(a, to);
+		if(fieldEnd==from)
+		{
+			return 0;
+		}
+		if(fieldEnd-from<2 || a[from]!='0' || a[from+1]!='x')
+		{
+			System.err.println("Address does not start with 0x: "+new String(a, from, fieldEnd-from, StandardCharsets.UTF_8));
+			return 0;
+		}
+		long ret=0;
+		for(int i=from+2;i<fieldEnd;++i)
+		{
+			int c=a[i];
+			int d;
+			if(c>='0' && c<='9')
+			{
+				d=c-'0';
+			}else if(c>='a' && c<='f')
+			{
+				d=c-'a'+10;
+			}else if(c>='A' && c<='F')
+			{
+				d=c-'A'+10;
+			}else
+			{
+				System.err.println("Address parse error: "+new String(a, from, fieldEnd-from, StandardCharsets.UTF_8));
+				return 0;
+			}
+			ret=(ret<<4)|d;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,122 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A log-malloc-simple data stream processed by the analyser: the pipe input or a TCP connection.
+ * Each stream has its own entry processor. Stack traces are stored in the dictionary shared by all streams.
+ */
+public class LogStream {
+	/**
+	 * Identifier of the stream used in the user commands. 0 is the first stream.
+	 */
+	public final int id;
+	private volatile String name;
+	/**
+	 * Guarded by the monitor of the analyser.
+	 */
+	EntryProcessor entryProcessor;
+	/**
+	 * Processors of the other PIDs of the stream (forked children) in per PID mode. Created lazily
+	 * when the first entry of the PID is processed. Guarded by the monitor of the analyser.
+	 */
+	final Map<Long, EntryProcessor> pidProcessors=new LinkedHashMap<Long, EntryProcessor>();
+	volatile long processedBytes;
+	volatile long processedEntries;
+	/**
+	 * Sequence number of the last entry of the stream. Only accessed by the thread that processes the entries.
+	 */
+	long seq;
+	/**
+	 * Offset of the end of the last processed entry in the stream (the tee file). Guarded by the monitor of the analyser.
+	 */
+	long processedOffset;
+	/**
+	 * Offset of the first byte of the next input in the stream. Not 0 in case the processing was resumed from
+	 * a {@link Checkpoint}: the input continues the recorded log.
+	 */
+	long inputOffset;
+	/**
+	 * Tee output of the current input of the stream. null if the stream is not teed.
+	 */
+	volatile TeeWriter tee;
+	private volatile boolean open;
+	private volatile ProcessMaps header;
+	private boolean used;
+	public LogStream(int id, String name, EntryProcessor entryProcessor) {
+		this.id=id;
+		this.name=name;
+		this.entryProcessor=entryProcessor;
+	}
+	/**
+	 * Start using this stream for an input.
+	 * @param name
+	 * @return false if the stream was already used by an input
+	 */
+	synchronized boolean claim(String name)
+	{
+		if(used)
+		{
+			return false;
+		}
+		used=true;
+		open=true;
+		this.name=name;
+		return true;
+	}
+	/**
+	 * Get the processor of the PID in per PID mode. The entry processor of the stream processes the first PID
+	 * (and the entries without PID).
+	 * @param pid
+	 * @return
+	 */
+	EntryProcessor getProcessor(long pid)
+	{
+		long mainPid=entryProcessor.getPid();
+		if(mainPid==0 || pid==0 || mainPid==pid)
+		{
+			return entryProcessor;
+		}
+		EntryProcessor ret=pidProcessors.get(pid);
+		if(ret==null)
+		{
+			ret=entryProcessor.createEmpty();
+			pidProcessors.put(pid, ret);
+		}
+		return ret;
+	}
+	/**
+	 * Forget all processed entries of all PIDs.
+	 */
+	void reset()
+	{
+		entryProcessor=entryProcessor.createEmpty();
+		pidProcessors.clear();
+	}
+	void closed()
+	{
+		open=false;
+	}
+	void setHeader(ProcessMaps header) {
+		this.header=header;
+	}
+	/**
+	 * @return the header (PID, executable, memory maps) of the input. null if there was no input yet.
+	 */
+	public ProcessMaps getHeader() {
+		return header;
+	}
+	public String getName() {
+		return name;
+	}
+	public boolean isOpen() {
+		return open;
+	}
+	public long getProcessedBytes() {
+		return processedBytes;
+	}
+	public long getProcessedEntries() {
+		return processedEntries;
+	}
+}
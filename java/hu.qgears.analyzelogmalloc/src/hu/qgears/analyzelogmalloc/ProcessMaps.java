@@ -0,0 +1,286 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Header of the log-malloc-simple stream: the "# PID", "# EXE", "# CWD" lines and the "# MAPS" dump of
+ * /proc/self/maps that are written before the first entry.
+ *
+ * The memory mappings are stored in an address range index so that absolute addresses of stack frames
+ * can be converted to module relative offsets. Module relative offsets do not depend on the load address
+ * of the modules so they are the same in different runs of the program (ASLR).
+ */
+public class ProcessMaps {
+	private volatile long pid;
+	private volatile String exe;
+	private volatile String cwd;
+	private boolean inMaps;
+	private boolean complete;
+	private final List<String> modules=new ArrayList<String>();
+	private final List<byte[]> moduleBytes=new ArrayList<byte[]>();
+	private final Map<String, Integer> moduleIds=new HashMap<String, Integer>();
+	private int maxModuleLength;
+	/**
+	 * Address ranges of the mappings ordered by start address once the header is complete.
+	 */
+	private long[] starts=new long[64];
+	private long[] ends=new long[64];
+	private long[] fileOffsets=new long[64];
+	private int[] rangeModules=new int[64];
+	private int n;
+	/**
+	 * Process the next piece of the stream until the first entry header is found.
+	 * Only complete lines are processed: the unfinished last line has to be passed again with the next piece.
+	 * @param a
+	 * @param from
+	 * @param to
+	 * @return true if the header is complete: the first entry of the stream was found
+	 */
+	public boolean parse(byte[] a, int from, int to)
+	{
+		int lineStart=from;
+		for(int i=from;i<to && !complete;++i)
+		{
+			if(a[i]=='\n')
+			{
+				if(i>lineStart)
+				{
+					processLine(new String(a, lineStart, i-lineStart, StandardCharsets.UTF_8));
+				}
+				lineStart=i+1;
+			}
+		}
+		return complete;
+	}
+	private void processLine(String line)
+	{
+		if(line.startsWith("+"))
+		{
+			finish();
+		}else if(line.startsWith("# PID "))
+		{
+			pid=parseLong(line.substring(6).trim(), 10);
+		}else if(line.startsWith("# EXE "))
+		{
+			exe=line.substring(6).trim();
+		}else if(line.startsWith("# CWD "))
+		{
+			cwd=line.substring(6).trim();
+		}else if(line.startsWith("# MAPS"))
+		{
+			inMaps=true;
+		}else if(inMaps)
+		{
+			addMapping(line);
+		}
+	}
+	/**
+	 * Parse a line of /proc/self/maps: "start-end perms offset dev inode path"
+	 */
+	private void addMapping(String line)
+	{
+		String[] pieces=line.trim().split("\\s+", 6);
+		int dash=pieces[0].indexOf('-');
+		if(pieces.length<6 || dash<0)
+		{
+			// Anonymous mapping: frames can not be resolved to a module
+			return;
+		}
+		long start=parseLong(pieces[0].substring(0, dash), 16);
+		long end=parseLong(pieces[0].substring(dash+1), 16);
+		long offset=parseLong(pieces[2], 16);
+		String path=pieces[5];
+		Integer id=moduleIds.get(path);
+		if(id==null)
+		{
+			id=modules.size();
+			modules.add(path);
+			byte[] b=path.getBytes(StandardCharsets.UTF_8);
+			moduleBytes.add(b);
+			maxModuleLength=Math.max(maxModuleLength, b.length);
+			moduleIds.put(path, id);
+		}
+		if(n==starts.length)
+		{
+			starts=Arrays.copyOf(starts, n*2);
+			ends=Arrays.copyOf(ends, n*2);
+			fileOffsets=Arrays.copyOf(fileOffsets, n*2);
+			rangeModules=Arrays.copyOf(rangeModules, n*2);
+		}
+		starts[n]=start;
+		ends[n]=end;
+		fileOffsets[n]=offset;
+		rangeModules[n]=id;
+		n++;
+	}
+	private static long parseLong(String s, int radix)
+	{
+		try
+		{
+			return Long.parseUnsignedLong(s, radix);
+		}catch(NumberFormatException e)
+		{
+			System.err.println("Header parse error: "+s);
+			return 0;
+		}
+	}
+	/**
+	 * The header is finished: sort the ranges by address.
+	 */
+	private void finish()
+	{
+		complete=true;
+		Integer[] order=new Integer[n];
+		for(int i=0;i<n;++i)
+		{
+			order[i]=i;
+		}
+		Arrays.sort(order, (x, y)->Long.compareUnsigned(starts[x], starts[y]));
+		long[] s=new long[n];
+		long[] e=new long[n];
+		long[] o=new long[n];
+		int[] m=new int[n];
+		for(int i=0;i<n;++i)
+		{
+			s[i]=starts[order[i]];
+			e[i]=ends[order[i]];
+			o[i]=fileOffsets[order[i]];
+			m[i]=rangeModules[order[i]];
+		}
+		starts=s;
+		ends=e;
+		fileOffsets=o;
+		rangeModules=m;
+	}
+	/**
+	 * @param address
+	 * @return index of the mapping that contains the address or -1
+	 */
+	public int findRange(long address)
+	{
+		int lo=0;
+		int hi=n-1;
+		while(lo<=hi)
+		{
+			int mid=(lo+hi)>>>1;
+			if(Long.compareUnsigned(starts[mid], address)>0)
+			{
+				hi=mid-1;
+			}else if(Long.compareUnsigned(ends[mid], address)<=0)
+			{
+				lo=mid+1;
+			}else
+			{
+				return mid;
+			}
+		}
+		return -1;
+	}
+	/**
+	 * @param range index returned by {@link #findRange(long)}
+	 * @return id of the module (mapped file) of the range
+	 */
+	public int getModuleId(int range)
+	{
+		return rangeModules[range];
+	}
+	/**
+	 * @param range index returned by {@link #findRange(long)}
+	 * @param address address within the range
+	 * @return offset of the address within the mapped file
+	 */
+	public long getModuleOffset(int range, long address)
+	{
+		return address-starts[range]+fileOffsets[range];
+	}
+	public String getModule(int moduleId)
+	{
+		return modules.get(moduleId);
+	}
+	/**
+	 * @return maximum number of bytes that {@link #canonicalize(byte[], int, int, byte[])} adds to a frame line.
+	 */
+	public int getMaxGrowth()
+	{
+		return maxModuleLength+20;
+	}
+	/**
+	 * Rewrite a "module(symbol+0x12)[0x7f0011223344]" frame line into its canonical form:
+	 * the absolute address is replaced by the module relative offset: "module(symbol+0x12)[+0x5344]".
+	 * In case the frame line has no module name then the path of the mapped file is prepended.
+	 * @param a frame line
+	 * @param from
+	 * @param to
+	 * @param out receives the canonical line. Must be at least to-from+{@link #getMaxGrowth()} long.
+	 * @return length of the canonical line in out or -1 if the frame is not rewritten (address is not mapped)
+	 */
+	public int canonicalize(byte[] a, int from, int to, byte[] out)
+	{
+		if(to-from<4 || a[to-1]!=']')
+		{
+			return -1;
+		}
+		int open=to-2;
+		while(open>=from && a[open]!='[')
+		{
+			open--;
+		}
+		if(open<from || to-open<5 || a[open+1]!='0' || a[open+2]!='x')
+		{
+			return -1;
+		}
+		long address=0;
+		for(int i=open+3;i<to-1;++i)
+		{
+			int d=Character.digit(a[i], 16);
+			if(d<0)
+			{
+				return -1;
+			}
+			address=(address<<4)|d;
+		}
+		int range=findRange(address);
+		if(range<0)
+		{
+			return -1;
+		}
+		int ret=0;
+		if(open==from)
+		{
+			byte[] m=moduleBytes.get(rangeModules[range]);
+			System.arraycopy(m, 0, out, 0, m.length);
+			ret=m.length;
+		}
+		System.arraycopy(a, from, out, ret, open-from);
+		ret+=open-from;
+		byte[] off=("[+0x"+Long.toHexString(getModuleOffset(range, address))+"]").getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(off, 0, out, ret, off.length);
+		return ret+off.length;
+	}
+	/**
+	 * @return true if the whole header was processed
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	/**
+	 * @return number of mappings of files
+	 */
+	public int getNumberOfMappings() {
+		return n;
+	}
+	public long getPid() {
+		return pid;
+	}
+	public String getExe() {
+		return exe;
+	}
+	public String getCwd() {
+		return cwd;
+	}
+}
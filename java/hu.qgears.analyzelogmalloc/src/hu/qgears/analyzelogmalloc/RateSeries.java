@@ -0,0 +1,293 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Allocation rate time series: a ring of fixed width time buckets. Each bucket counts the allocations and frees
+ * (number and bytes) in its time interval globally and by allocator key.
+ *
+ * Allocator counters of a bucket are stored sparsely (only the allocators that were active in the interval)
+ * in primitive arrays behind an open addressing index so recording is O(1) and memory is bounded by
+ * the number of buckets and the active allocators.
+ *
+ * {@link #copy()} shares the buckets with the copy: a shared bucket is never modified, the series replaces it
+ * with a private copy (or a new bucket) when it is written next. So only the current bucket is copied after a copy
+ * of the series was taken.
+ */
+public class RateSeries {
+	public static final long DEFAULT_BUCKET_MILLIS=1000;
+	public static final int DEFAULT_BUCKETS=600;
+	/**
+	 * Counters of a single time interval.
+	 */
+	public static class Bucket
+	{
+		/**
+		 * Index of the interval since the epoch: start time is index*bucketMillis.
+		 */
+		private long index=-1;
+		private long allocs;
+		private long allocBytes;
+		private long frees;
+		private long freeBytes;
+		private int[] keys=new int[0];
+		private long[] keyAllocs=new long[0];
+		private long[] keyAllocBytes=new long[0];
+		private long[] keyFrees=new long[0];
+		private long[] keyFreeBytes=new long[0];
+		private int n;
+		/**
+		 * Open addressing index of keys: key slot+1, 0 means empty.
+		 */
+		private int[] keyIndex=new int[0];
+		/**
+		 * Referenced by a copy of the series: must not be modified.
+		 */
+		private boolean shared;
+		private void reset(long index)
+		{
+			this.index=index;
+			allocs=0;
+			allocBytes=0;
+			frees=0;
+			freeBytes=0;
+			n=0;
+			Arrays.fill(keyIndex, 0);
+		}
+		private int slot(int key)
+		{
+			if(n*2>=keyIndex.length)
+			{
+				grow();
+			}
+			int mask=keyIndex.length-1;
+			int h=mix(key)&mask;
+			int s;
+			while((s=keyIndex[h])!=0)
+			{
+				if(keys[s-1]==key)
+				{
+					return s-1;
+				}
+				h=(h+1)&mask;
+			}
+			int ret=n++;
+			keys[ret]=key;
+			keyAllocs[ret]=0;
+			keyAllocBytes[ret]=0;
+			keyFrees[ret]=0;
+			keyFreeBytes[ret]=0;
+			keyIndex[h]=ret+1;
+			return ret;
+		}
+		private void grow()
+		{
+			int l=Math.max(8, keys.length*2);
+			keys=Arrays.copyOf(keys, l);
+			keyAllocs=Arrays.copyOf(keyAllocs, l);
+			keyAllocBytes=Arrays.copyOf(keyAllocBytes, l);
+			keyFrees=Arrays.copyOf(keyFrees, l);
+			keyFreeBytes=Arrays.copyOf(keyFreeBytes, l);
+			keyIndex=new int[l*2];
+			int mask=keyIndex.length-1;
+			for(int i=0;i<n;++i)
+			{
+				int h=mix(keys[i])&mask;
+				while(keyIndex[h]!=0)
+				{
+					h=(h+1)&mask;
+				}
+				keyIndex[h]=i+1;
+			}
+		}
+		private static int mix(int key)
+		{
+			int h=key*0x9E3779B9;
+			return h^(h>>>16);
+		}
+		private Bucket copy()
+		{
+			Bucket ret=new Bucket();
+			ret.index=index;
+			ret.allocs=allocs;
+			ret.allocBytes=allocBytes;
+			ret.frees=frees;
+			ret.freeBytes=freeBytes;
+			ret.n=n;
+			ret.keys=keys.clone();
+			ret.keyAllocs=keyAllocs.clone();
+			ret.keyAllocBytes=keyAllocBytes.clone();
+			ret.keyFrees=keyFrees.clone();
+			ret.keyFreeBytes=keyFreeBytes.clone();
+			ret.keyIndex=keyIndex.clone();
+			return ret;
+		}
+		public long getAllocs() {
+			return allocs;
+		}
+		public long getAllocBytes() {
+			return allocBytes;
+		}
+		public long getFrees() {
+			return frees;
+		}
+		public long getFreeBytes() {
+			return freeBytes;
+		}
+		/**
+		 * @return number of allocators that were active in this interval
+		 */
+		public int getKeyCount() {
+			return n;
+		}
+		public int getKey(int i) {
+			return keys[i];
+		}
+		public long getKeyAllocs(int i) {
+			return keyAllocs[i];
+		}
+		public long getKeyAllocBytes(int i) {
+			return keyAllocBytes[i];
+		}
+		public long getKeyFrees(int i) {
+			return keyFrees[i];
+		}
+		public long getKeyFreeBytes(int i) {
+			return keyFreeBytes[i];
+		}
+	}
+	private final long bucketMillis;
+	private final Bucket[] ring;
+	public RateSeries() {
+		this(DEFAULT_BUCKET_MILLIS, DEFAULT_BUCKETS);
+	}
+	/**
+	 * @param bucketMillis width of a bucket
+	 * @param nBuckets number of buckets kept: older buckets are overwritten
+	 */
+	public RateSeries(long bucketMillis, int nBuckets) {
+		this.bucketMillis=bucketMillis;
+		ring=new Bucket[nBuckets];
+	}
+	/**
+	 * An allocation was processed.
+	 * @param now current time in millis
+	 * @param key allocator key
+	 * @param size
+	 */
+	public void allocated(long now, int key, long size)
+	{
+		Bucket b=bucket(now);
+		b.allocs++;
+		b.allocBytes+=size;
+		int s=b.slot(key);
+		b.keyAllocs[s]++;
+		b.keyAllocBytes[s]+=size;
+	}
+	/**
+	 * A free of an allocation of the allocator was processed.
+	 * @param now current time in millis
+	 * @param key allocator key
+	 * @param size
+	 */
+	public void freed(long now, int key, long size)
+	{
+		Bucket b=bucket(now);
+		b.frees++;
+		b.freeBytes+=size;
+		int s=b.slot(key);
+		b.keyFrees[s]++;
+		b.keyFreeBytes[s]+=size;
+	}
+	/**
+	 * A free of an allocation that is not known (allocated before the session) was processed.
+	 * Only the global counters are updated.
+	 * @param now current time in millis
+	 * @param size
+	 */
+	public void freed(long now, long size)
+	{
+		Bucket b=bucket(now);
+		b.frees++;
+		b.freeBytes+=size;
+	}
+	private Bucket bucket(long now)
+	{
+		long index=now/bucketMillis;
+		int i=(int)(index%ring.length);
+		Bucket b=ring[i];
+		if(b!=null && b.index>=index)
+		{
+			// In case the clock was set back the entry is counted in the newer bucket
+			if(b.shared)
+			{
+				b=b.copy();
+				ring[i]=b;
+			}
+			return b;
+		}
+		if(b==null || b.shared)
+		{
+			b=new Bucket();
+			ring[i]=b;
+		}
+		b.reset(index);
+		return b;
+	}
+	/**
+	 * @return a read only copy of the current state. O(number of buckets): the buckets are shared, see the description of the class.
+	 */
+	public RateSeries copy()
+	{
+		RateSeries ret=new RateSeries(bucketMillis, ring.length);
+		for(int i=0;i<ring.length;++i)
+		{
+			if(ring[i]!=null)
+			{
+				ring[i].shared=true;
+				ret.ring[i]=ring[i];
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Get the buckets of a time window ending at the given time.
+	 * Intervals without processed entries have no bucket.
+	 * @param now end of the window in millis
+	 * @param windowMillis length of the window
+	 * @return buckets in time order
+	 */
+	public Bucket[] getBuckets(long now, long windowMillis)
+	{
+		long last=now/bucketMillis;
+		long first=Math.max(last-ring.length+1, (now-windowMillis)/bucketMillis+1);
+		Bucket[] tmp=new Bucket[(int)Math.max(0, last-first+1)];
+		int n=0;
+		for(long index=first;index<=last;++index)
+		{
+			Bucket b=ring[(int)(index%ring.length)];
+			if(b!=null && b.index==index)
+			{
+				tmp[n++]=b;
+			}
+		}
+		return Arrays.copyOf(tmp, n);
+	}
+	/**
+	 * @param b
+	 * @return start time of the bucket in millis since the epoch
+	 */
+	public long getStartMillis(Bucket b)
+	{
+		return b.index*bucketMillis;
+	}
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+	/**
+	 * @return maximum length of history in millis
+	 */
+	public long getHistoryMillis() {
+		return bucketMillis*ring.length;
+	}
+}
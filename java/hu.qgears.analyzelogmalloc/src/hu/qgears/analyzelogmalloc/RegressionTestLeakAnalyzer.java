@@ -9,12 +9,27 @@ import java.util.Map;
 
 public class RegressionTestLeakAnalyzer {
 	private Map<String, ByteArrayOutputStream> snapshots=new HashMap<String, ByteArrayOutputStream>();
+	private boolean binary;
+	/**
+	 * Store snapshots in the compact {@link BinarySnapshot} format instead of text.
+	 * Compare detects the format of the snapshots so both kinds can be compared to each other.
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
 	public void snapshot(Analyze a) throws IOException {
 		snapshot("orig", a);
 	}
 	public void snapshot(String name, Analyze a) throws IOException {
 		ByteArrayOutputStream snapshot=new ByteArrayOutputStream();
-		a.snapshot(snapshot);
+		if(binary)
+		{
+			a.snapshotBinary(snapshot);
+		}else
+		{
+			a.snapshot(snapshot);
+		}
 		snapshots.put(name, snapshot);
 		prevName=name;
 	}
@@ -0,0 +1,166 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Estimated counters of the allocators in sampling mode (see {@link Sampler}). Only sampled blocks have an
+ * allocator key so {@link AllocatorStats} counts the sampled blocks of each key; this class scales them:
+ * each sampled block is counted with its weight (1/sampling probability).
+ *
+ * The variance of each estimate is summed too (Horvitz-Thompson: w*(w-1)*value^2 for each sampled block)
+ * so the error bound can be reported with the estimate. Arrays are indexed by the frame id of the allocator key +1
+ * like in {@link AllocatorStats}.
+ *
+ * Only the live set is estimated. The number of all allocations of an allocator can not be estimated from these
+ * samples: the decision depends on the address so an allocator that reuses the same addresses is either always or
+ * never sampled.
+ */
+public class SampledStats {
+	/**
+	 * 95% confidence interval in standard deviations.
+	 */
+	private static final double Z=1.96;
+	private double[] liveCount=new double[0];
+	private double[] liveCountVar=new double[0];
+	private double[] liveBytes=new double[0];
+	private double[] liveBytesVar=new double[0];
+	/**
+	 * A sampled block was allocated by the allocator.
+	 * @param key frame id of the allocator key
+	 * @param size
+	 * @param weight number of blocks represented by the sampled block
+	 */
+	public void allocated(int key, long size, double weight)
+	{
+		int i=index(key);
+		update(i, size, weight, 1);
+	}
+	/**
+	 * A sampled block of the allocator was freed (or overwritten by a new allocation on the same address).
+	 * @param key frame id of the allocator key
+	 * @param size
+	 * @param weight the weight of the block when it was allocated
+	 */
+	public void freed(int key, long size, double weight)
+	{
+		update(index(key), size, weight, -1);
+	}
+	private void update(int i, long size, double weight, int sign)
+	{
+		double var=weight*(weight-1);
+		liveCount[i]+=sign*weight;
+		liveCountVar[i]+=sign*var;
+		liveBytes[i]+=sign*weight*size;
+		liveBytesVar[i]+=sign*var*size*size;
+	}
+	private int index(int key)
+	{
+		int i=key+1;
+		if(i>=liveCount.length)
+		{
+			int l=Math.max(i+1, liveCount.length*2);
+			liveCount=Arrays.copyOf(liveCount, l);
+			liveCountVar=Arrays.copyOf(liveCountVar, l);
+			liveBytes=Arrays.copyOf(liveBytes, l);
+			liveBytesVar=Arrays.copyOf(liveBytesVar, l);
+		}
+		return i;
+	}
+	/**
+	 * @return a copy of the current state of the counters.
+	 */
+	public SampledStats copy()
+	{
+		SampledStats ret=new SampledStats();
+		ret.liveCount=liveCount.clone();
+		ret.liveCountVar=liveCountVar.clone();
+		ret.liveBytes=liveBytes.clone();
+		ret.liveBytesVar=liveBytesVar.clone();
+		return ret;
+	}
+	/**
+	 * Add the counters of the other object to this one (the variances of independent estimates add up).
+	 * @param o
+	 */
+	public void add(SampledStats o)
+	{
+		if(o.liveCount.length>0)
+		{
+			index(o.liveCount.length-2);
+		}
+		for(int i=0;i<o.liveCount.length;++i)
+		{
+			liveCount[i]+=o.liveCount[i];
+			liveCountVar[i]+=o.liveCountVar[i];
+			liveBytes[i]+=o.liveBytes[i];
+			liveBytesVar[i]+=o.liveBytesVar[i];
+		}
+	}
+	/**
+	 * @param n maximum number of keys returned
+	 * @return the keys with the most estimated live bytes in decreasing order
+	 */
+	public int[] getTopByLiveBytes(int n)
+	{
+		return top(liveBytes, n);
+	}
+	/**
+	 * @param n maximum number of keys returned
+	 * @return the keys with the most estimated live blocks in decreasing order
+	 */
+	public int[] getTopByLiveCount(int n)
+	{
+		return top(liveCount, n);
+	}
+	private static int[] top(double[] estimate, int n)
+	{
+		long[] metric=new long[estimate.length];
+		for(int i=0;i<metric.length;++i)
+		{
+			metric[i]=Math.round(estimate[i]);
+		}
+		int[] ret=AllocatorStats.topIndexes(metric, n);
+		for(int i=0;i<ret.length;++i)
+		{
+			ret[i]--;
+		}
+		return ret;
+	}
+	private static double get(double[] a, int key)
+	{
+		int i=key+1;
+		return i<a.length?a[i]:0;
+	}
+	/**
+	 * @param key
+	 * @return estimated number of not freed blocks of the allocator
+	 */
+	public long getLiveCount(int key) {
+		return Math.round(get(liveCount, key));
+	}
+	/**
+	 * @param key
+	 * @return half width of the 95% confidence interval of {@link #getLiveCount(int)}
+	 */
+	public long getLiveCountError(int key) {
+		return error(get(liveCountVar, key));
+	}
+	/**
+	 * @param key
+	 * @return estimated size of the not freed blocks of the allocator
+	 */
+	public long getLiveBytes(int key) {
+		return Math.round(get(liveBytes, key));
+	}
+	/**
+	 * @param key
+	 * @return half width of the 95% confidence interval of {@link #getLiveBytes(int)}
+	 */
+	public long getLiveBytesError(int key) {
+		return error(get(liveBytesVar, key));
+	}
+	private static long error(double var)
+	{
+		return Math.round(Z*Math.sqrt(Math.max(0, var)));
+	}
+}
@@ -0,0 +1,97 @@
+package hu.qgears.analyzelogmalloc;
+
+/**
+ * Decides which allocations keep their stack trace in sampling mode.
+ *
+ * The decision is a function of the address and the size of the block only so it is deterministic and
+ * the same for the allocation and the free of a block: the parser can skip the stack lines of unsampled
+ * entries and the processor finds the same decision when the block is freed without storing it.
+ * The hash of the address is used as the random number: blocks that are live at the same time have different
+ * addresses so the live set is sampled uniformly. Blocks allocated one after the other on the same address are not
+ * independent samples though (they all are or none of them is sampled) so cumulative counts like the number of all
+ * allocations of an allocator are not estimated.
+ *
+ * Two modes are supported:
+ * <ul>
+ * <li>1 in N allocations: each block is sampled with probability 1/N</li>
+ * <li>byte weighted: a block of size s is sampled with probability 1-exp(-s/T) so on average one sample is
+ * taken for each T bytes and large blocks are always sampled</li>
+ * </ul>
+ * Sampled blocks are counted with weight 1/probability so the sums of the weights estimate the counts of all blocks.
+ */
+public class Sampler {
+	private final int every;
+	private final long bytes;
+	/**
+	 * @param every sample 1 in every allocations. Used when bytes is 0.
+	 * @param bytes mean number of bytes between samples. 0 means count based sampling.
+	 */
+	public Sampler(int every, long bytes) {
+		if(bytes<=0 && every<1)
+		{
+			throw new IllegalArgumentException("Sampling interval must be positive: "+every);
+		}
+		this.every=every;
+		this.bytes=bytes;
+	}
+	/**
+	 * @param args
+	 * @return the sampler configured by the arguments or null if sampling is off
+	 */
+	public static Sampler create(Analyze.Args args)
+	{
+		if(args.sampleBytes>0)
+		{
+			return new Sampler(1, args.sampleBytes);
+		}
+		if(args.sampleEvery>1)
+		{
+			return new Sampler(args.sampleEvery, 0);
+		}
+		return null;
+	}
+	/**
+	 * @param address
+	 * @param size
+	 * @return true means that the stack trace of the block is kept
+	 */
+	public boolean isSampled(long address, long size)
+	{
+		return random(address)<getProbability(size);
+	}
+	/**
+	 * @param size
+	 * @return probability that a block of this size is sampled
+	 */
+	public double getProbability(long size)
+	{
+		if(bytes>0)
+		{
+			return -Math.expm1(-(double)Math.max(1, size)/bytes);
+		}
+		return 1.0/every;
+	}
+	/**
+	 * @param size
+	 * @return the number of blocks represented by a sampled block of this size
+	 */
+	public double getWeight(long size)
+	{
+		return 1.0/getProbability(size);
+	}
+	/**
+	 * Uniform number in [0,1) derived from the address (finalizer of SplitMix64).
+	 */
+	private static double random(long address)
+	{
+		long z=address+0x9e3779b97f4a7c15L;
+		z=(z^(z>>>30))*0xbf58476d1ce4e5b9L;
+		z=(z^(z>>>27))*0x94d049bb133111ebL;
+		z=z^(z>>>31);
+		return (z>>>11)*0x1.0p-53;
+	}
+	@Override
+	public String toString() {
+		return bytes>0?"1 sample per "+bytes+" bytes (byte weighted)":"1 in "+every+" allocations";
+	}
+}
@@ -0,0 +1,227 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of requested block sizes (or other non-negative values like lifetimes) with log-linear buckets
+ * (HDR histogram style).
+ *
+ * Sizes below {@link #SUB_BUCKETS} have their own bucket. Each larger power of two interval is split into
+ * {@link #SUB_BUCKETS} equal wide buckets so the relative error of the reported sizes is at most 1/{@link #SUB_BUCKETS}.
+ * Counters are stored in a primitive array that grows up to the highest bucket used so a histogram of an
+ * allocator that allocates only small blocks is small.
+ */
+public class SizeHistogram {
+	private static final int SUB_BITS=3;
+	public static final int SUB_BUCKETS=1<<SUB_BITS;
+	private long[] counts=new long[0];
+	private long n;
+	/**
+	 * Set when the instance is referenced by a point in time copy: it must not be modified any more,
+	 * see {@link #share(SizeHistogram[])}.
+	 */
+	private boolean shared;
+	/**
+	 * @param size
+	 * @return index of the bucket of the size
+	 */
+	public static int bucket(long size)
+	{
+		if(size<SUB_BUCKETS)
+		{
+			return (int)Math.max(0, size);
+		}
+		int e=63-Long.numberOfLeadingZeros(size);
+		return (e-SUB_BITS+1)*SUB_BUCKETS+(int)((size>>>(e-SUB_BITS))&(SUB_BUCKETS-1));
+	}
+	/**
+	 * @param bucket
+	 * @return the smallest size that belongs to the bucket
+	 */
+	public static long getLowerBound(int bucket)
+	{
+		if(bucket<SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int e=bucket/SUB_BUCKETS+SUB_BITS-1;
+		return ((long)(SUB_BUCKETS+bucket%SUB_BUCKETS))<<(e-SUB_BITS);
+	}
+	/**
+	 * @param bucket
+	 * @return the largest size that belongs to the bucket
+	 */
+	public static long getUpperBound(int bucket)
+	{
+		if(bucket<SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int e=bucket/SUB_BUCKETS+SUB_BITS-1;
+		return getLowerBound(bucket)+(1L<<(e-SUB_BITS))-1;
+	}
+	/**
+	 * Count a block.
+	 * @param size
+	 */
+	public void add(long size)
+	{
+		int b=bucket(size);
+		if(b>=counts.length)
+		{
+			counts=Arrays.copyOf(counts, Math.max(b+1, Math.min(counts.length*2, bucket(Long.MAX_VALUE)+1)));
+		}
+		counts[b]++;
+		n++;
+	}
+	/**
+	 * Remove a block that was counted before.
+	 * @param size
+	 */
+	public void remove(long size)
+	{
+		int b=bucket(size);
+		if(b<counts.length)
+		{
+			counts[b]--;
+			n--;
+		}
+	}
+	/**
+	 * Add all counters of an other histogram.
+	 * @param o
+	 */
+	public void add(SizeHistogram o)
+	{
+		if(o.counts.length>counts.length)
+		{
+			counts=Arrays.copyOf(counts, o.counts.length);
+		}
+		for(int i=0;i<o.counts.length;++i)
+		{
+			counts[i]+=o.counts[i];
+		}
+		n+=o.n;
+	}
+	public SizeHistogram copy()
+	{
+		SizeHistogram ret=new SizeHistogram();
+		ret.counts=counts.clone();
+		ret.n=n;
+		return ret;
+	}
+	/**
+	 * Point in time copy of an array of histograms in O(length of the array): the histograms are shared
+	 * between the original and the copy and copied on the next write, see {@link #writable(SizeHistogram[], int)}.
+	 * @param a
+	 * @return
+	 */
+	static SizeHistogram[] share(SizeHistogram[] a)
+	{
+		for(SizeHistogram h: a)
+		{
+			if(h!=null)
+			{
+				h.shared=true;
+			}
+		}
+		return a.clone();
+	}
+	/**
+	 * @param a
+	 * @param i
+	 * @return the histogram at the index, replaced by a private copy in case it is shared
+	 */
+	static SizeHistogram writable(SizeHistogram[] a, int i)
+	{
+		if(a[i].shared)
+		{
+			a[i]=a[i].copy();
+		}
+		return a[i];
+	}
+	/**
+	 * @return number of blocks counted
+	 */
+	public long getCount()
+	{
+		return n;
+	}
+	/**
+	 * @param bucket
+	 * @return number of blocks in the bucket
+	 */
+	public long getCount(int bucket)
+	{
+		return bucket<counts.length?counts[bucket]:0;
+	}
+	/**
+	 * @return number of buckets: indexes of all non-empty buckets are smaller
+	 */
+	public int getBucketLimit()
+	{
+		return counts.length;
+	}
+	/**
+	 * @param p percentile between 0 and 100
+	 * @return upper bound of the bucket that contains the block at the percentile. 0 if the histogram is empty.
+	 */
+	public long getPercentile(double p)
+	{
+		long rank=Math.max(1, (long)Math.ceil(p/100.0*n));
+		long sum=0;
+		for(int i=0;i<counts.length;++i)
+		{
+			sum+=counts[i];
+			if(sum>=rank)
+			{
+				return getUpperBound(i);
+			}
+		}
+		return 0;
+	}
+	/**
+	 * @param value
+	 * @return number of blocks in the buckets that only contain values not larger than the given value
+	 */
+	public long getCountAtMost(long value)
+	{
+		long ret=0;
+		for(int i=0;i<counts.length && getUpperBound(i)<=value;++i)
+		{
+			ret+=counts[i];
+		}
+		return ret;
+	}
+	/**
+	 * @return index of the bucket with the most blocks (the dominant size class). -1 if the histogram is empty.
+	 */
+	public int getDominantBucket()
+	{
+		int ret=-1;
+		for(int i=0;i<counts.length;++i)
+		{
+			if(counts[i]>0 && (ret<0 || counts[i]>counts[ret]))
+			{
+				ret=i;
+			}
+		}
+		return ret;
+	}
+	/**
+	 * @return single line summary: number of blocks, percentiles and the dominant size class
+	 */
+	@Override
+	public String toString()
+	{
+		if(n<=0)
+		{
+			return "n: 0";
+		}
+		int d=getDominantBucket();
+		long lo=getLowerBound(d);
+		long hi=getUpperBound(d);
+		return "n: "+n+" p50: "+getPercentile(50)+" p90: "+getPercentile(90)+" p99: "+getPercentile(99)
+			+" max: "+getPercentile(100)+" dominant: "+(lo==hi?""+lo:lo+"-"+hi)+" ("+(counts[d]*100/n)+"%)";
+	}
+}
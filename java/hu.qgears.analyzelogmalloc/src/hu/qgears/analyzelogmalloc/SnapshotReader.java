@@ -0,0 +1,118 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the entries of a snapshot (textual or {@link BinarySnapshot}) one by one in the order of the file.
+ * Only a single buffer of the input is held in memory.
+ */
+public class SnapshotReader implements Closeable {
+	private static final int BUFFER_SIZE=1024*1024;
+	private final InputStream in;
+	private final StackDictionary stacks;
+	private BinarySnapshot.Decoder decoder;
+	private Entry binaryEntry;
+	private LogParser parser;
+	private ByteBuffer buf;
+	private boolean eof;
+	/**
+	 * Entries parsed from the buffer but not returned yet.
+	 */
+	private final ArrayDeque<Entry> pending=new ArrayDeque<Entry>();
+	/**
+	 * Entry objects that can be reused by the parser.
+	 */
+	private final ArrayDeque<Entry> free=new ArrayDeque<Entry>();
+	private Entry returned;
+	/**
+	 * @param in the format of the stream is detected by its first bytes
+	 * @param stacks stack traces of the entries are stored into this dictionary
+	 * @throws IOException
+	 */
+	public SnapshotReader(InputStream in, StackDictionary stacks) throws IOException {
+		this.in=in;
+		this.stacks=stacks;
+		byte[] prefix=new byte[BinarySnapshot.MAGIC.length];
+		int n=0;
+		int r;
+		while(n<prefix.length && (r=in.read(prefix, n, prefix.length-n))>=0)
+		{
+			n+=r;
+		}
+		if(BinarySnapshot.isBinarySnapshot(prefix, n))
+		{
+			ReadableByteChannel ch=in instanceof FileInputStream?((FileInputStream) in).getChannel():Channels.newChannel(in);
+			decoder=new BinarySnapshot.Decoder(ch, stacks);
+			binaryEntry=new Entry(stacks);
+		}else
+		{
+			parser=new LogParser(stacks, new LogParser.Listener() {
+				@Override
+				public void entryParsed(Entry e) {
+					pending.add(e);
+				}
+			}) {
+				@Override
+				protected Entry createEntry() {
+					Entry e=free.poll();
+					if(e==null)
+					{
+						return new Entry(SnapshotReader.this.stacks);
+					}
+					e.reset();
+					return e;
+				}
+			};
+			buf=ByteBuffer.allocate(BUFFER_SIZE);
+			buf.put(prefix, 0, n);
+		}
+	}
+	/**
+	 * @return the next entry of the snapshot or null at the end of the stream.
+	 * The returned object is reused after the next call.
+	 * @throws IOException
+	 */
+	public Entry next() throws IOException
+	{
+		if(decoder!=null)
+		{
+			return decoder.next(binaryEntry)?binaryEntry:null;
+		}
+		if(returned!=null)
+		{
+			free.add(returned);
+			returned=null;
+		}
+		while(pending.isEmpty() && !eof)
+		{
+			int n=in.read(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+			if(n>0)
+			{
+				buf.position(buf.position()+n);
+			}
+			buf.flip();
+			if(n<0)
+			{
+				eof=true;
+				parser.finish(buf);
+			}else
+			{
+				parser.parse(buf);
+			}
+			buf.compact();
+		}
+		returned=pending.poll();
+		return returned;
+	}
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,269 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores each distinct stack frame line and each distinct stack trace once.
+ *
+ * Frames (lines of backtrace_symbols output) are mapped to integer frame ids. Each frame is stored once as a String
+ * and it is looked up by comparing the raw bytes of the log line to it so a frame that was already seen costs no
+ * String creation.
+ * Stack traces (arrays of frame ids) are mapped to integer stack ids. Stored blocks reference their
+ * stack trace by stack id and the text is resolved only when it is printed.
+ *
+ * Dictionary is shared between the parser and the entry processors and is thread safe.
+ */
+public class StackDictionary {
+	/**
+	 * Allocator key id of a stack that has no frames.
+	 */
+	public static final int NO_FRAME=-1;
+	private List<String> frames=new ArrayList<String>();
+	private int[] frameHashes=new int[1024];
+	/**
+	 * Open addressing hash index of frames: frame id+1, 0 means empty.
+	 */
+	private int[] frameIndex=new int[1024];
+	private int[][] stacks=new int[1024][];
+	private int[] stackHashes=new int[1024];
+	private int nStacks;
+	/**
+	 * Open addressing hash index of stacks: stack id+1, 0 means empty.
+	 */
+	private int[] stackIndex=new int[1024];
+	/**
+	 * Get the id of the frame line stored in the byte array.
+	 * A new id is created if this frame was not seen before.
+	 * @param a
+	 * @param from index of the first byte of the line
+	 * @param to index of the end of the line (exclusive)
+	 * @return id of the frame
+	 */
+	public synchronized int internFrame(byte[] a, int from, int to)
+	{
+		int h=hash(a, from, to);
+		int mask=frameIndex.length-1;
+		int i=h&mask;
+		int s;
+		while((s=frameIndex[i])!=0)
+		{
+			int id=s-1;
+			if(frameHashes[id]==h && equalsLine(frames.get(id), a, from, to))
+			{
+				return id;
+			}
+			i=(i+1)&mask;
+		}
+		int id=frames.size();
+		frames.add(new String(a, from, to-from, StandardCharsets.UTF_8));
+		if(id==frameHashes.length)
+		{
+			frameHashes=Arrays.copyOf(frameHashes, id*2);
+		}
+		frameHashes[id]=h;
+		frameIndex[i]=id+1;
+		if(frames.size()*2>frameIndex.length)
+		{
+			frameIndex=rehash(frameIndex, frameHashes, frameIndex.length*2);
+		}
+		return id;
+	}
+	/**
+	 * Get the id of the frame line. A new id is created if this frame was not seen before.
+	 * @param frame
+	 * @return
+	 */
+	public int internFrame(String frame)
+	{
+		byte[] a=frame.getBytes(StandardCharsets.UTF_8);
+		return internFrame(a, 0, a.length);
+	}
+	/**
+	 * @param id
+	 * @return the text of the frame
+	 */
+	public synchronized String getFrame(int id)
+	{
+		return frames.get(id);
+	}
+	/**
+	 * Get the id of a stack trace. A new id is created if this stack trace was not seen before.
+	 * @param frameIds ids of the frames of the stack trace. The array is copied when stored.
+	 * @param n number of frames
+	 * @return id of the stack trace
+	 */
+	public synchronized int internStack(int[] frameIds, int n)
+	{
+		int h=hash(frameIds, n);
+		int mask=stackIndex.length-1;
+		int i=h&mask;
+		int s;
+		while((s=stackIndex[i])!=0)
+		{
+			int id=s-1;
+			if(stackHashes[id]==h && equals(stacks[id], frameIds, n))
+			{
+				return id;
+			}
+			i=(i+1)&mask;
+		}
+		int id=nStacks++;
+		if(id==stacks.length)
+		{
+			stacks=Arrays.copyOf(stacks, id*2);
+			stackHashes=Arrays.copyOf(stackHashes, id*2);
+		}
+		stacks[id]=Arrays.copyOf(frameIds, n);
+		stackHashes[id]=h;
+		stackIndex[i]=id+1;
+		if(nStacks*2>stackIndex.length)
+		{
+			stackIndex=rehash(stackIndex, stackHashes, stackIndex.length*2);
+		}
+		return id;
+	}
+	/**
+	 * @param stackId
+	 * @return frame ids of the stack trace. The returned array must not be modified.
+	 */
+	public synchronized int[] getStackFrames(int stackId)
+	{
+		return stacks[stackId];
+	}
+	/**
+	 * The allocator key is the first frame of the stack trace: the method entry that has called the allocator.
+	 * @param stackId
+	 * @return frame id of the allocator key or {@link #NO_FRAME} if the stack is empty
+	 */
+	public int getAllocatorKey(int stackId)
+	{
+		int[] f=getStackFrames(stackId);
+		return f.length>0?f[0]:NO_FRAME;
+	}
+	/**
+	 * @return the allocator keys ({@link #getAllocatorKey(int)}) of all stored stacks indexed by stack id.
+	 * The returned array is a copy that is not updated with new stacks.
+	 */
+	public synchronized int[] getAllocatorKeys()
+	{
+		int[] ret=new int[nStacks];
+		for(int i=0;i<nStacks;++i)
+		{
+			ret[i]=stacks[i].length>0?stacks[i][0]:NO_FRAME;
+		}
+		return ret;
+	}
+	/**
+	 * Resolve the text of all frames of the stack trace.
+	 * @param stackId
+	 * @return new list of the lines of the stack trace
+	 */
+	public List<String> getLines(int stackId)
+	{
+		int[] f=getStackFrames(stackId);
+		List<String> ret=new ArrayList<String>(f.length);
+		for(int id: f)
+		{
+			ret.add(getFrame(id));
+		}
+		return ret;
+	}
+	/**
+	 * @return number of distinct frames stored.
+	 */
+	public synchronized int getFrameCount()
+	{
+		return frames.size();
+	}
+	/**
+	 * @return number of distinct stack traces stored.
+	 */
+	public synchronized int size()
+	{
+		return nStacks;
+	}
+	private static int[] rehash(int[] index, int[] hashes, int capacity)
+	{
+		int[] ret=new int[capacity];
+		int mask=capacity-1;
+		for(int s: index)
+		{
+			if(s!=0)
+			{
+				int i=hashes[s-1]&mask;
+				while(ret[i]!=0)
+				{
+					i=(i+1)&mask;
+				}
+				ret[i]=s;
+			}
+		}
+		return ret;
+	}
+	private static int hash(byte[] a, int from, int to)
+	{
+		int h=0;
+		for(int i=from;i<to;++i)
+		{
+			h=31*h+a[i];
+		}
+		return mix(h);
+	}
+	private static int hash(int[] a, int n)
+	{
+		int h=n;
+		for(int i=0;i<n;++i)
+		{
+			h=31*h+a[i];
+		}
+		return mix(h);
+	}
+	private static int mix(int h)
+	{
+		h*=0x9E3779B9;
+		return h^(h>>>16);
+	}
+	/**
+	 * Compare the text to the UTF-8 encoded line without decoding it. Frames are ASCII in practice: the line is
+	 * only decoded when it contains other characters.
+	 * @param text
+	 * @param a
+	 * @param from index of the first byte of the line
+	 * @param to index of the end of the line (exclusive)
+	 * @return true if the line decodes to the text
+	 */
+	static boolean equalsLine(String text, byte[] a, int from, int to)
+	{
+		for(int i=from;i<to;++i)
+		{
+			byte b=a[i];
+			if(b<0)
+			{
+				return text.equals(new String(a, from, to-from, StandardCharsets.UTF_8));
+			}
+			if(i-from>=text.length() || text.charAt(i-from)!=b)
+			{
+				return false;
+			}
+		}
+		return text.length()==to-from;
+	}
+	private static boolean equals(int[] stored, int[] a, int n)
+	{
+		if(stored.length!=n)
+		{
+			return false;
+		}
+		for(int i=0;i<n;++i)
+		{
+			if(stored[i]!=a[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
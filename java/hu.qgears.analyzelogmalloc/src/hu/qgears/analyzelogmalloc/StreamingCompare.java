@@ -0,0 +1,221 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hu.qgears.analyzelogmalloc.Analyze.Args;
+
+/**
+ * Compare two snapshots by walking both of them ordered by address at the same time (sort-merge).
+ * Snapshots are not loaded into memory: memory use is proportional to the number of distinct allocators
+ * (and stack traces) instead of the number of allocations.
+ *
+ * Output is the same as the output of {@link EntryProcessor#processCompare(PrintStream, EntryProcessor, Args)}.
+ * The {@link DifferentEntries} objects only store the first example of the freed and allocated entries:
+ * all differing entries are sent to {@link Args#compareFreedEntryEvent} and {@link Args#compareAllocatedEntryEvent}
+ * during the merge.
+ *
+ * Both snapshots must be ordered by address. Snapshots written by this analyser are ordered.
+ */
+public class StreamingCompare {
+	/**
+	 * Difference of a single allocator that only stores the counters and the first example.
+	 */
+	private static class Diff extends DifferentEntries
+	{
+		private long nAllocated;
+		private boolean hidden;
+		/**
+		 * Collected only in case the allocator will be printed with all its instances.
+		 */
+		private Map<String, Integer> allocatedStacks;
+		@Override
+		public long getAllocatedCount() {
+			return nAllocated;
+		}
+		@Override
+		public Map<String, Integer> getAllocatedStacks() {
+			return allocatedStacks==null?super.getAllocatedStacks():allocatedStacks;
+		}
+	}
+	/**
+	 * One of the compared snapshots.
+	 */
+	private class Side
+	{
+		private final SnapshotReader reader;
+		private long pid=0;
+		private Entry current;
+		private boolean started;
+		private long lastAddress;
+		public Side(SnapshotReader reader) {
+			this.reader=reader;
+		}
+		/**
+		 * Step to the next allocation of the snapshot. Entries that the entry processor would ignore are skipped.
+		 */
+		void advance() throws IOException
+		{
+			Entry e;
+			while((e=reader.next())!=null)
+			{
+				if(pid==0)
+				{
+					pid=e.getPid();
+				}
+				if(e.isAllocation() && pid==e.getPid())
+				{
+					if(started && e.getAddress()<=lastAddress)
+					{
+						throw new IOException("Snapshot is not ordered by address: 0x"+Long.toHexString(e.getAddress())
+							+" after 0x"+Long.toHexString(lastAddress));
+					}
+					started=true;
+					lastAddress=e.getAddress();
+					break;
+				}
+			}
+			current=e;
+		}
+	}
+	private final StackDictionary stacks;
+	private final Args args;
+	/**
+	 * Differences indexed by allocator key+1.
+	 */
+	private Diff[] diffs=new Diff[1024];
+	/**
+	 * @param stacks dictionary to store the stack traces of the snapshots
+	 * @param args printAllIfContains, hideIfContains and the compare events are used
+	 */
+	public StreamingCompare(StackDictionary stacks, Args args) {
+		this.stacks=stacks;
+		this.args=args;
+	}
+	/**
+	 * Execute compare.
+	 * @param is1 first snapshot to compare. Closed by this method.
+	 * @param is2 second snapshot to compare. Closed by this method.
+	 * @param out output to write compare result to
+	 * @throws IOException
+	 */
+	public void compare(InputStream is1, InputStream is2, PrintStream out) throws IOException
+	{
+		try(SnapshotReader r1=new SnapshotReader(is1, stacks); SnapshotReader r2=new SnapshotReader(is2, stacks))
+		{
+			Side prev=new Side(r1);
+			Side curr=new Side(r2);
+			prev.advance();
+			curr.advance();
+			while(prev.current!=null || curr.current!=null)
+			{
+				if(curr.current==null || (prev.current!=null && prev.current.getAddress()<curr.current.getAddress()))
+				{
+					freed(prev.current);
+					prev.advance();
+				}else if(prev.current==null || curr.current.getAddress()<prev.current.getAddress())
+				{
+					allocated(curr.current);
+					curr.advance();
+				}else
+				{
+					if(prev.current.getSize()!=curr.current.getSize())
+					{
+						freed(prev.current);
+						allocated(curr.current);
+					}
+					prev.advance();
+					curr.advance();
+				}
+			}
+		}
+		List<DifferentEntries> ret=new ArrayList<DifferentEntries>();
+		for(int i=0;i<diffs.length;++i)
+		{
+			Diff d=diffs[i];
+			if(d!=null && (d.diffNum!=0 || d.diffSize!=0))
+			{
+				ret.add(d);
+			}
+		}
+		EntryProcessor.printDiffs(out, ret, args);
+	}
+	private void freed(Entry e)
+	{
+		Diff d=getDiff(e);
+		d.diffNum--;
+		d.diffSize-=e.getSize();
+		d.freedSizes.add(e.getSize());
+		if(d.freed.isEmpty())
+		{
+			d.freed.add(copy(e));
+		}
+		if(!d.hidden)
+		{
+			args.compareFreedEntryEvent.eventHappened(e);
+		}
+	}
+	private void allocated(Entry e)
+	{
+		Diff d=getDiff(e);
+		d.diffNum++;
+		d.diffSize+=e.getSize();
+		d.allocatedSizes.add(e.getSize());
+		d.nAllocated++;
+		if(d.allocated.isEmpty())
+		{
+			d.allocated.add(copy(e));
+			for(String p: args.printAllIfContains)
+			{
+				if(e.containsPattern(p))
+				{
+					d.allocatedStacks=new HashMap<>();
+					break;
+				}
+			}
+		}
+		if(d.allocatedStacks!=null)
+		{
+			DifferentEntries.incStack(d.allocatedStacks, e.printToWholePointerBlurred());
+		}
+		if(!d.hidden)
+		{
+			args.compareAllocatedEntryEvent.eventHappened(e);
+		}
+	}
+	private Diff getDiff(Entry e)
+	{
+		int i=stacks.getAllocatorKey(e.getStackId())+1;
+		if(i>=diffs.length)
+		{
+			diffs=Arrays.copyOf(diffs, Math.max(i+1, diffs.length*2));
+		}
+		Diff ret=diffs[i];
+		if(ret==null)
+		{
+			ret=new Diff();
+			int key=i-1;
+			ret.key=""+(key==StackDictionary.NO_FRAME?null:stacks.getFrame(key));
+			ret.hidden=args.isHidden(ret.key);
+			diffs[i]=ret;
+		}
+		return ret;
+	}
+	/**
+	 * The readers reuse their entry objects so examples are copied.
+	 */
+	private Entry copy(Entry e)
+	{
+		Entry ret=new Entry(stacks);
+		ret.setTitle(e.getTitle());
+		ret.setFields(e.getSize(), e.getAddress(), e.getPid(), e.getTid());
+		ret.setStack(e.getStackId());
+		return ret;
+	}
+}
@@ -0,0 +1,538 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Copy of the raw bytes of an input stream into a file (tee) written by a separate thread so that disk and
+ * compression do not slow down the reader of the stream.
+ *
+ * The writer copies the data into its own buffers (the input buffers are reused by the reader). Full buffers are
+ * handed over to the writer thread through a bounded queue: in case the disk can not keep up then the reader is
+ * blocked instead of using unlimited memory. A partially filled buffer is handed over after a second too
+ * (by the writer thread in case no more data arrives). {@link #sync()} waits until all data is on the disk.
+ *
+ * Without segment limits and compression the stream is written into the file itself. Otherwise it is written
+ * into segments: "name-00000", "name-00001" etc. (".gz" appended in case of compression) started when the current
+ * segment reaches the size or age limit. The segments are listed in the manifest file ("name.manifest") with
+ * the offset of their first byte in the stream so the recorded stream can be read from any offset,
+ * see {@link #openRecorded(File, long)}.
+ */
+public class TeeWriter extends OutputStream {
+	private static final int BUFFER_SIZE=1024*1024;
+	private static final int BUFFERS=8;
+	/**
+	 * Partially filled buffers are handed over to the writer thread after this time.
+	 */
+	private static final long HANDOVER_MILLIS=1000;
+	private final File file;
+	private final long segmentBytes;
+	private final long segmentMillis;
+	private final boolean gzip;
+	private final boolean segmented;
+	private final ArrayBlockingQueue<ByteBuffer> free=new ArrayBlockingQueue<ByteBuffer>(BUFFERS);
+	private final ArrayBlockingQueue<ByteBuffer> toWrite=new ArrayBlockingQueue<ByteBuffer>(BUFFERS+1);
+	private final ByteBuffer poison=ByteBuffer.allocate(0);
+	/**
+	 * Queued by {@link #sync()}: the writer thread flushes and syncs the segment when it reaches the marker.
+	 */
+	private final ByteBuffer syncMarker=ByteBuffer.allocate(0);
+	/**
+	 * Guards the buffer that is being filled. A lock instead of the monitor so the writer thread can try it
+	 * without blocking, see {@link #handOverIdle()}.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+	/**
+	 * Number of sync markers queued (guarded by the lock) and processed by the writer thread (guarded by syncDoneLock).
+	 */
+	private long syncRequested;
+	private long syncDone;
+	private final Object syncDoneLock=new Object();
+	private final Thread thread;
+	/**
+	 * Buffer that is being filled by the reader and the time when the previous buffer was handed over.
+	 */
+	private ByteBuffer current;
+	private long handedOver=System.currentTimeMillis();
+	private boolean closed;
+	/**
+	 * State of the writer thread: the output of the current segment and the position in the stream.
+	 */
+	private OutputStream out;
+	private FileOutputStream fileOut;
+	private int segmentIndex;
+	private long segmentWritten;
+	private long segmentOpened;
+	private long offset;
+	private volatile boolean failed;
+	/**
+	 * @param file
+	 * @param segmentBytes start a new segment after this many bytes. 0 means no limit.
+	 * @param segmentMillis start a new segment after this time. 0 means no limit.
+	 * @param gzip compress the segments
+	 * @param append continue the recorded stream: append to the file or start a new segment after the last one
+	 * @throws IOException
+	 */
+	public TeeWriter(File file, long segmentBytes, long segmentMillis, boolean gzip, boolean append) throws IOException {
+		this.file=file;
+		this.segmentBytes=segmentBytes;
+		this.segmentMillis=segmentMillis;
+		this.gzip=gzip;
+		segmented=segmentBytes>0 || segmentMillis>0 || gzip;
+		if(segmented)
+		{
+			List<Segment> segments=append?readManifest(file):new ArrayList<Segment>();
+			if(segments.isEmpty())
+			{
+				new FileOutputStream(getManifest(file)).close();
+			}else
+			{
+				segmentIndex=segments.get(segments.size()-1).index+1;
+				offset=getRecordedLength(file);
+			}
+		}else
+		{
+			fileOut=new FileOutputStream(file, append);
+			out=fileOut;
+		}
+		for(int i=0;i<BUFFERS;++i)
+		{
+			free.add(ByteBuffer.allocate(BUFFER_SIZE));
+		}
+		current=free.poll();
+		thread=new Thread("tee writer "+file.getName()) {
+			@Override
+			public void run() {
+				runWriter();
+			}
+		};
+		thread.start();
+	}
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte)b}, 0, 1);
+	}
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		lock.lock();
+		try
+		{
+			while(len>0)
+			{
+				int n=Math.min(len, current.remaining());
+				current.put(b, off, n);
+				off+=n;
+				len-=n;
+				if(!current.hasRemaining())
+				{
+					handOver();
+				}
+			}
+			if(current.position()>0 && System.currentTimeMillis()-handedOver>HANDOVER_MILLIS)
+			{
+				handOver();
+			}
+		}finally
+		{
+			lock.unlock();
+		}
+	}
+	/**
+	 * Hand over the buffered data to the writer thread. Does not wait until it is written, see {@link #sync()}.
+	 */
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try
+		{
+			if(current.position()>0)
+			{
+				handOver();
+			}
+		}finally
+		{
+			lock.unlock();
+		}
+	}
+	/**
+	 * Write all data that was written into this stream before the call to the disk and wait until it is done:
+	 * the current segment is flushed (compressed data up to a sync point) and synced.
+	 * Used before a {@link Checkpoint} is written so the checkpoint never points past the end of the recorded stream.
+	 * @throws IOException in case writing the tee failed
+	 */
+	public void sync() throws IOException
+	{
+		long ticket;
+		lock.lock();
+		try
+		{
+			if(closed)
+			{
+				return;
+			}
+			if(current.position()>0)
+			{
+				handOver();
+			}
+			toWrite.put(syncMarker);
+			ticket=++syncRequested;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}finally
+		{
+			lock.unlock();
+		}
+		synchronized (syncDoneLock) {
+			while(syncDone<ticket && !failed)
+			{
+				if(!thread.isAlive())
+				{
+					throw new IOException("Tee writer thread is not running: "+file.getAbsolutePath());
+				}
+				try {
+					syncDoneLock.wait(HANDOVER_MILLIS);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+		if(failed)
+		{
+			throw new IOException("Writing tee file failed: "+file.getAbsolutePath());
+		}
+	}
+	/**
+	 * Must be called with the lock held.
+	 */
+	private void handOver() throws IOException
+	{
+		try {
+			current.flip();
+			toWrite.put(current);
+			current=free.take();
+			current.clear();
+			handedOver=System.currentTimeMillis();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+	/**
+	 * Called by the writer thread when there is no data to write: hand over the partially filled buffer in case it
+	 * is older than {@link #HANDOVER_MILLIS} so the tail of an idle stream is written too.
+	 * Does not block: in case the reader holds the lock (it may wait for the writer thread) nothing is done.
+	 */
+	private void handOverIdle()
+	{
+		if(!lock.tryLock())
+		{
+			return;
+		}
+		try
+		{
+			long now=System.currentTimeMillis();
+			if(!closed && current.position()>0 && now-handedOver>=HANDOVER_MILLIS)
+			{
+				ByteBuffer next=free.poll();
+				if(next!=null)
+				{
+					current.flip();
+					toWrite.add(current);
+					current=next;
+					current.clear();
+					handedOver=now;
+				}
+			}
+		}finally
+		{
+			lock.unlock();
+		}
+	}
+	/**
+	 * Write all buffered data and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try
+		{
+			if(closed)
+			{
+				return;
+			}
+			closed=true;
+			if(current.position()>0)
+			{
+				handOver();
+			}
+			toWrite.put(poison);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}finally
+		{
+			lock.unlock();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+	private void runWriter()
+	{
+		try {
+			while(true)
+			{
+				ByteBuffer b=toWrite.poll(HANDOVER_MILLIS, TimeUnit.MILLISECONDS);
+				if(b==null)
+				{
+					handOverIdle();
+					continue;
+				}
+				if(b==poison)
+				{
+					closeSegment();
+					return;
+				}
+				if(b==syncMarker)
+				{
+					if(!failed)
+					{
+						try
+						{
+							syncSegment();
+						}catch(IOException e)
+						{
+							fail(e);
+						}
+					}
+					synchronized (syncDoneLock) {
+						syncDone++;
+						syncDoneLock.notifyAll();
+					}
+					continue;
+				}
+				if(!failed)
+				{
+					try
+					{
+						write(b);
+					}catch(IOException e)
+					{
+						fail(e);
+					}
+				}
+				free.put(b);
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	private void fail(IOException e)
+	{
+		failed=true;
+		System.err.println("Writing tee file failed, the rest of the stream is not recorded: "+file.getAbsolutePath());
+		e.printStackTrace();
+	}
+	/**
+	 * Flush the current segment (a sync point in case of compression) and sync it to disk.
+	 */
+	private void syncSegment() throws IOException
+	{
+		if(out!=null)
+		{
+			out.flush();
+			fileOut.getFD().sync();
+		}
+	}
+	private void write(ByteBuffer b) throws IOException
+	{
+		long now=System.currentTimeMillis();
+		if(segmented && (out==null || (segmentBytes>0 && segmentWritten>=segmentBytes)
+				|| (segmentMillis>0 && now-segmentOpened>=segmentMillis)))
+		{
+			closeSegment();
+			openSegment(now);
+		}
+		out.write(b.array(), 0, b.limit());
+		segmentWritten+=b.limit();
+		offset+=b.limit();
+	}
+	private void openSegment(long now) throws IOException
+	{
+		File f=new File(file.getPath()+"-"+String.format("%05d", segmentIndex)+(gzip?".gz":""));
+		fileOut=new FileOutputStream(f);
+		out=gzip?new FastGZIPOutputStream(fileOut):fileOut;
+		try(PrintStream manifest=new PrintStream(new FileOutputStream(getManifest(file), true), true, "UTF-8"))
+		{
+			manifest.println(offset+" "+f.getName());
+		}
+		segmentIndex++;
+		segmentWritten=0;
+		segmentOpened=now;
+	}
+	private void closeSegment() throws IOException
+	{
+		if(out!=null)
+		{
+			out.close();
+			out=null;
+		}
+	}
+	/**
+	 * Compresses with the fastest level: the log compresses well even so and the writer has to keep up with the stream.
+	 * Flush writes all data compressed so far (sync flush) so a cut file can be decompressed up to the last flush.
+	 */
+	private static class FastGZIPOutputStream extends GZIPOutputStream
+	{
+		FastGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, 64*1024, true);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+	/**
+	 * A segment of a recorded stream listed in the manifest.
+	 */
+	private static class Segment
+	{
+		final long start;
+		final File file;
+		final int index;
+		Segment(long start, File file, int index) {
+			this.start=start;
+			this.file=file;
+			this.index=index;
+		}
+	}
+	public static final String MANIFEST_SUFFIX=".manifest";
+	private static File getManifest(File file)
+	{
+		return new File(file.getPath()+MANIFEST_SUFFIX);
+	}
+	/**
+	 * @param file the tee file
+	 * @return true if the stream was recorded into the file or into segments
+	 */
+	public static boolean isRecorded(File file)
+	{
+		return file.exists() || getManifest(file).exists();
+	}
+	/**
+	 * @param file the tee file
+	 * @return the segment files of the recorded stream in order. Empty if it was not recorded into segments.
+	 * @throws IOException
+	 */
+	public static List<File> getSegmentFiles(File file) throws IOException
+	{
+		return getFiles(readManifest(file));
+	}
+	private static List<File> getFiles(List<Segment> segments)
+	{
+		List<File> ret=new ArrayList<File>();
+		for(Segment s: segments)
+		{
+			ret.add(s.file);
+		}
+		return ret;
+	}
+	private static List<Segment> readManifest(File file) throws IOException
+	{
+		List<Segment> ret=new ArrayList<Segment>();
+		File manifest=getManifest(file);
+		if(!manifest.exists())
+		{
+			return ret;
+		}
+		try(BufferedReader br=new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8)))
+		{
+			String line;
+			while((line=br.readLine())!=null)
+			{
+				int sep=line.indexOf(' ');
+				if(sep>0)
+				{
+					ret.add(new Segment(Long.parseLong(line.substring(0, sep)),
+							new File(manifest.getParentFile(), line.substring(sep+1)), ret.size()));
+				}
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Open the recorded stream (the tee file or its segments in order) from the given offset.
+	 * A compressed segment that is cut at the end (the analyser was killed) is read until the cut.
+	 * @param file the tee file
+	 * @param offset offset in the stream
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openRecorded(File file, long offset) throws IOException
+	{
+		List<Segment> segments=readManifest(file);
+		if(segments.isEmpty())
+		{
+			FileInputStream ret=new FileInputStream(file);
+			ret.getChannel().position(offset);
+			return ret;
+		}
+		int first=0;
+		while(first+1<segments.size() && segments.get(first+1).start<=offset)
+		{
+			first++;
+		}
+		InputStream ret=LogArchive.concat(getFiles(segments.subList(first, segments.size())));
+		long skip=offset-segments.get(first).start;
+		while(skip>0)
+		{
+			long n=ret.skip(skip);
+			if(n<=0)
+			{
+				break;
+			}
+			skip-=n;
+		}
+		return ret;
+	}
+	/**
+	 * @param file the tee file
+	 * @return the length of the recorded stream (the uncompressed length in case of compression)
+	 * @throws IOException
+	 */
+	public static long getRecordedLength(File file) throws IOException
+	{
+		List<Segment> segments=readManifest(file);
+		if(segments.isEmpty())
+		{
+			return file.length();
+		}
+		Segment last=segments.get(segments.size()-1);
+		long ret=last.start;
+		try(InputStream in=LogArchive.concat(getFiles(segments.subList(segments.size()-1, segments.size()))))
+		{
+			byte[] b=new byte[64*1024];
+			int n;
+			while((n=in.read(b))>=0)
+			{
+				ret+=n;
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,181 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.util.Arrays;
+
+/**
+ * Counters of allocations aggregated by thread id. Updated in O(1) for each processed entry.
+ *
+ * Threads are mapped to dense indexes by an open addressing hash index. Counters are stored in
+ * primitive arrays by thread index. Allocations and allocated bytes are counted for the allocating thread,
+ * frees for the freeing thread. Live objects and bytes belong to the thread that allocated them.
+ */
+public class ThreadStats {
+	private long[] tids=new long[16];
+	private long[] allocs=new long[16];
+	private long[] allocBytes=new long[16];
+	private long[] frees=new long[16];
+	private long[] liveCount=new long[16];
+	private long[] liveBytes=new long[16];
+	private int n;
+	/**
+	 * Open addressing hash index: thread index+1, 0 means empty.
+	 */
+	private int[] index=new int[32];
+	/**
+	 * A block was allocated by the thread.
+	 * @param tid
+	 * @param size
+	 */
+	public void allocated(long tid, long size)
+	{
+		int i=index(tid);
+		allocs[i]++;
+		allocBytes[i]+=size;
+		liveCount[i]++;
+		liveBytes[i]+=size;
+	}
+	/**
+	 * A block was freed.
+	 * @param tid thread that freed the block
+	 * @param allocTid thread that allocated the block
+	 * @param size
+	 */
+	public void freed(long tid, long allocTid, long size)
+	{
+		frees[index(tid)]++;
+		removeLive(allocTid, size);
+	}
+	/**
+	 * A block was freed that was not allocated in the session.
+	 * @param tid thread that freed the block
+	 */
+	public void freed(long tid)
+	{
+		frees[index(tid)]++;
+	}
+	/**
+	 * A block allocated by the thread was overwritten by a new allocation on the same address
+	 * without being freed.
+	 * @param allocTid
+	 * @param size
+	 */
+	public void lost(long allocTid, long size)
+	{
+		removeLive(allocTid, size);
+	}
+	private void removeLive(long tid, long size)
+	{
+		int i=index(tid);
+		liveCount[i]--;
+		liveBytes[i]-=size;
+	}
+	private int index(long tid)
+	{
+		int mask=index.length-1;
+		int h=hash(tid)&mask;
+		int s;
+		while((s=index[h])!=0)
+		{
+			if(tids[s-1]==tid)
+			{
+				return s-1;
+			}
+			h=(h+1)&mask;
+		}
+		int ret=n++;
+		if(ret==tids.length)
+		{
+			int l=ret*2;
+			tids=Arrays.copyOf(tids, l);
+			allocs=Arrays.copyOf(allocs, l);
+			allocBytes=Arrays.copyOf(allocBytes, l);
+			frees=Arrays.copyOf(frees, l);
+			liveCount=Arrays.copyOf(liveCount, l);
+			liveBytes=Arrays.copyOf(liveBytes, l);
+		}
+		tids[ret]=tid;
+		index[h]=ret+1;
+		if(n*2>index.length)
+		{
+			rehash(index.length*2);
+		}
+		return ret;
+	}
+	private void rehash(int capacity)
+	{
+		int[] newIndex=new int[capacity];
+		int mask=capacity-1;
+		for(int i=0;i<n;++i)
+		{
+			int h=hash(tids[i])&mask;
+			while(newIndex[h]!=0)
+			{
+				h=(h+1)&mask;
+			}
+			newIndex[h]=i+1;
+		}
+		index=newIndex;
+	}
+	private static int hash(long tid)
+	{
+		long h=tid*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32));
+	}
+	/**
+	 * @return a copy of the current state of the counters.
+	 */
+	public ThreadStats copy()
+	{
+		ThreadStats ret=new ThreadStats();
+		ret.tids=tids.clone();
+		ret.allocs=allocs.clone();
+		ret.allocBytes=allocBytes.clone();
+		ret.frees=frees.clone();
+		ret.liveCount=liveCount.clone();
+		ret.liveBytes=liveBytes.clone();
+		ret.n=n;
+		ret.index=index.clone();
+		return ret;
+	}
+	/**
+	 * @return number of threads seen
+	 */
+	public int size()
+	{
+		return n;
+	}
+	/**
+	 * @param n maximum number of threads returned
+	 * @return indexes of the threads with the most allocations in decreasing order
+	 */
+	public int[] getTopByAllocs(int n)
+	{
+		return AllocatorStats.topIndexes(Arrays.copyOf(allocs, this.n), n);
+	}
+	/**
+	 * @param n maximum number of threads returned
+	 * @return indexes of the threads with the most live bytes in decreasing order
+	 */
+	public int[] getTopByLiveBytes(int n)
+	{
+		return AllocatorStats.topIndexes(Arrays.copyOf(liveBytes, this.n), n);
+	}
+	public long getTid(int i) {
+		return tids[i];
+	}
+	public long getAllocs(int i) {
+		return allocs[i];
+	}
+	public long getAllocBytes(int i) {
+		return allocBytes[i];
+	}
+	public long getFrees(int i) {
+		return frees[i];
+	}
+	public long getLiveCount(int i) {
+		return liveCount[i];
+	}
+	public long getLiveBytes(int i) {
+		return liveBytes[i];
+	}
+}
@@ -0,0 +1,230 @@
+package hu.qgears.analyzelogmalloc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import joptsimple.annot.AnnotatedClass;
+import joptsimple.annot.JOHelp;
+
+/**
+ * Load test of the analyser: runs an analyser in this JVM and feeds it with a {@link LogGenerator} stream over
+ * a FIFO (same as --pipe) or a TCP connection (same as --host) at the target rate.
+ *
+ * Prints the written and processed rate, the ingest lag and the heap use every second and the sustained
+ * processing rate, the maximum lag and the peak heap use at the end.
+ * All generator options are accepted, the output options of the generator are set by the harness.
+ */
+public class ThroughputHarness {
+	public static class Args extends LogGenerator.Args
+	{
+		@JOHelp("Feed the analyser over a TCP connection on localhost instead of a FIFO")
+		public boolean tcp;
+		@JOHelp("FIFO used to feed the analyser. Created with mkfifo if it does not exist.")
+		public File fifo=new File("/tmp/analyzelogmalloc-harness.fifo");
+		@JOHelp("Number of parser threads of the analyser. Negative means the default of the analyser.")
+		public int parserThreads=-1;
+		@JOHelp("Maximum time in seconds to wait for the analyser to process the remaining records after the generator finished")
+		public int drainSeconds=60;
+	}
+	private static final long SAMPLE_MILLIS=100;
+	private final Args args;
+	private final Analyze analyze=new Analyze();
+	private final MemoryMXBean memory=ManagementFactory.getMemoryMXBean();
+	/**
+	 * Time (millis since start) and number of written records of each sample. Used to measure the lag in time:
+	 * the time elapsed since the generator had written the records that are processed now.
+	 */
+	private final List<long[]> written=new ArrayList<long[]>();
+	private long maxLagRecords;
+	private long maxLagMillis;
+	private long peakHeap;
+	public ThroughputHarness(Args args) {
+		this.args=args;
+	}
+	public static void main(String[] args) throws Exception {
+		Args a=new Args();
+		AnnotatedClass ac=new AnnotatedClass();
+		ac.parseAnnotations(a);
+		ac.parseArgs(args);
+		if(a.records==0)
+		{
+			System.out.println("Throughput harness of the analyser. --records must be positive. Usage:");
+			ac.printHelpOn(System.out);
+			return;
+		}
+		new ThroughputHarness(a).run();
+	}
+	public void run() throws Exception
+	{
+		Analyze.Args aargs=new Analyze.Args();
+		aargs.modeInteractive=false;
+		aargs.perPid=args.pids>1;
+		if(args.parserThreads>=0)
+		{
+			aargs.parserThreads=args.parserThreads;
+		}
+		args.out=null;
+		args.host=null;
+		if(args.tcp)
+		{
+			try(ServerSocket s=new ServerSocket(0))
+			{
+				aargs.port=s.getLocalPort();
+			}
+			aargs.host="localhost";
+		}else
+		{
+			createFifo(args.fifo);
+			aargs.pipe=args.fifo;
+		}
+		System.out.println("Feeding the analyser over "+(args.tcp?"TCP port "+aargs.port:"FIFO "+args.fifo)+" with "
+				+args.records+" records at "+(args.rate>0?args.rate+" records/s":"maximum rate")
+				+" parser threads: "+aargs.parserThreads);
+		analyze.start(aargs);
+		final OutputStream out=args.tcp?connect(aargs.host, aargs.port):new FileOutputStream(args.fifo);
+		final LogGenerator generator=new LogGenerator(args);
+		final Exception[] error=new Exception[1];
+		Thread t=new Thread("generator thread") {
+			public void run() {
+				try {
+					generator.run(out);
+				} catch (Exception e) {
+					error[0]=e;
+				}
+			};
+		};
+		long t0=System.currentTimeMillis();
+		t.start();
+		long lastProgress=t0;
+		long lastProcessed=0;
+		long lastPrint=t0;
+		long lastPrintWritten=0;
+		long lastPrintProcessed=0;
+		long tDone=t0;
+		while(true)
+		{
+			Thread.sleep(SAMPLE_MILLIS);
+			long now=System.currentTimeMillis();
+			long w=generator.getWrittenRecords();
+			long p=analyze.getProcessedEntries();
+			sample(now-t0, w, p);
+			if(p>lastProcessed)
+			{
+				lastProcessed=p;
+				lastProgress=now;
+				tDone=now;
+			}
+			if(now-lastPrint>=1000)
+			{
+				double s=(now-lastPrint)/1000.0;
+				System.out.println(String.format("%6.1fs written: %d (%d/s) processed: %d (%d/s) lag: %d records %d ms heap: %d MB",
+						(now-t0)/1000.0, w, (long)((w-lastPrintWritten)/s), p, (long)((p-lastPrintProcessed)/s),
+						w-p, lagMillis(now-t0, p), memory.getHeapMemoryUsage().getUsed()/1024/1024));
+				lastPrint=now;
+				lastPrintWritten=w;
+				lastPrintProcessed=p;
+			}
+			if(!t.isAlive())
+			{
+				if(p>=generator.getWrittenRecords())
+				{
+					break;
+				}
+				if(now-lastProgress>args.drainSeconds*1000L)
+				{
+					System.out.println("Analyser did not process the remaining "+(generator.getWrittenRecords()-p)+" records in "+args.drainSeconds+" s");
+					break;
+				}
+			}
+		}
+		if(error[0]!=null)
+		{
+			error[0].printStackTrace();
+		}
+		long p=analyze.getProcessedEntries();
+		double seconds=Math.max(1, tDone-t0)/1000.0;
+		System.gc();
+		System.out.println("Processed records: "+p+" bytes: "+analyze.getProcessedBytes()+" in "+seconds+" s");
+		System.out.println("Sustained rate: "+(long)(p/seconds)+" records/s "+(long)(analyze.getProcessedBytes()/seconds/1024/1024)+" MB/s");
+		System.out.println("Max ingest lag: "+maxLagRecords+" records "+maxLagMillis+" ms");
+		System.out.println("Peak heap use: "+peakHeap/1024/1024+" MB, after GC: "+memory.getHeapMemoryUsage().getUsed()/1024/1024
+				+" MB (live blocks: "+generator.getLiveCount()+")");
+		analyze.close();
+	}
+	private void sample(long millis, long w, long p)
+	{
+		written.add(new long[]{millis, w});
+		maxLagRecords=Math.max(maxLagRecords, w-p);
+		maxLagMillis=Math.max(maxLagMillis, lagMillis(millis, p));
+		peakHeap=Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+	}
+	/**
+	 * @param millis current time since start
+	 * @param processed number of processed records
+	 * @return time elapsed since the first sample that had at least this number of written records
+	 */
+	private long lagMillis(long millis, long processed)
+	{
+		int lo=0;
+		int hi=written.size()-1;
+		if(hi<0 || written.get(hi)[1]<processed)
+		{
+			return 0;
+		}
+		while(lo<hi)
+		{
+			int mid=(lo+hi)/2;
+			if(written.get(mid)[1]>=processed)
+			{
+				hi=mid;
+			}else
+			{
+				lo=mid+1;
+			}
+		}
+		return millis-written.get(lo)[0];
+	}
+	private static void createFifo(File fifo) throws IOException, InterruptedException
+	{
+		if(fifo.exists())
+		{
+			return;
+		}
+		int ret=new ProcessBuilder("mkfifo", fifo.getAbsolutePath()).inheritIO().start().waitFor();
+		if(ret!=0)
+		{
+			throw new IOException("mkfifo failed: "+fifo.getAbsolutePath());
+		}
+	}
+	/**
+	 * Connect to the TCP server of the analyser. The server is opened on a separate thread so retry until it accepts.
+	 */
+	private static OutputStream connect(String host, int port) throws IOException, InterruptedException
+	{
+		for(int i=0;;++i)
+		{
+			try
+			{
+				@SuppressWarnings("resource")
+				Socket s=new Socket(host, port);
+				return s.getOutputStream();
+			}catch(ConnectException e)
+			{
+				if(i>=100)
+				{
+					throw e;
+				}
+				Thread.sleep(SAMPLE_MILLIS);
+			}
+		}
+	}
+}